@@ -0,0 +1,54 @@
+package com.veda.discovery.commons;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Striped per-client locks. The work of one client holds its stripe, so
+ * that the subscription check, the usage upsert and the deactivation of a
+ * client are not interleaved with those of another call for the same
+ * client. Every path deciding to stop a client holds it for the decision,
+ * and stops the pollers after releasing it, since a stop may take long.
+ * Clients on different stripes run in parallel, CLIENT_LOCK_STRIPES
+ * is kept well above the no.of threads so that few clients share one.
+ */
+public final class ClientLocks {
+	
+	private static final String CLIENT_LOCK_STRIPES = "CLIENT_LOCK_STRIPES";
+	private static final Lock[] STRIPES = createStripes(ConfigUtils.getIntProperty(CLIENT_LOCK_STRIPES, 256));
+	
+	private ClientLocks() {
+	}
+	
+	/**
+	 * Gets the lock of the stripe of a client
+	 * @param clientId : Id of the client
+	 */
+	public static Lock get(String clientId) {
+		return STRIPES[stripe(clientId, STRIPES.length)];
+	}
+	
+	public static int getStripeCount() {
+		return STRIPES.length;
+	}
+	
+	/**
+	 * Maps a client to one of a no.of stripes, also used to route a client
+	 * to its lane
+	 */
+	public static int stripe(String clientId, int stripes) {
+		int hash = clientId == null ? 0 : clientId.hashCode();
+		return (hash & Integer.MAX_VALUE) % stripes;
+	}
+	
+	private static Lock[] createStripes(int count) {
+		int stripes = Math.max(1, count);
+		Lock[] locks = new Lock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		return locks;
+	}
+}
@@ -0,0 +1,208 @@
+package com.veda.discovery.commons;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.veda.discovery.handler.IncrementalSweep;
+import com.veda.discovery.usageStats.QuotaLeaseAllocator;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Creates the indexes the per-event and per-client queries depend on, and
+ * explains each of those queries to verify that none of them scans its
+ * collection. Runs once, when a process starts and before it serves usage
+ * events or sweeps subscriptions : the entry points call
+ * {@link #provisionAtStartup()}, and so does a process which embeds
+ * {@link com.veda.discovery.usageStats.UsageStats} before its first event.
+ *
+ * With INDEX_CHECK_MODE = FAIL a collection scan exits the process, with
+ * WARN (default) it is logged as an error, OFF skips the explain.
+ */
+public final class IndexProvisioner {
+	
+	private static final String INDEX_PROVISIONING_ENABLED = "INDEX_PROVISIONING_ENABLED";
+	private static final String INDEX_CHECK_MODE = "INDEX_CHECK_MODE";
+	private static final String CHECK_MODE_FAIL = "FAIL";
+	private static final String CHECK_MODE_OFF = "OFF";
+	
+	private static Logger logger = Logger.getLogger(IndexProvisioner.class);
+	
+	private final MongoDbUtils mdbUtils = new MongoDbUtils();
+	private final List<IndexedQuery> queries = new ArrayList<IndexedQuery>();
+	
+	private IndexProvisioner() {
+		ObjectId sampleId = new ObjectId();
+		BasicDBList sampleSnetIds = new BasicDBList();
+		sampleSnetIds.add("SNET_ID");
+		// active subscription of a client, read on every cache miss
+		add(false, "MONGO_SUBSCRIPTIONS", new BasicDBObject("client_id", 1).append("is_active", 1), false,
+			new BasicDBObject("client_id", sampleId).append("is_active", 1));
+		// project label and csdl query
+		add(true, "MONGO_PROJECTS", new BasicDBObject("snet_id", 1), false,
+			new BasicDBObject("snet_id", "SNET_ID"));
+		// projects of a client, read and deactivated when its poller is stopped
+		add(true, "MONGO_PROJECTS", new BasicDBObject("client_id", 1).append("snet_id", 1), false,
+			new BasicDBObject("client_id", sampleId).append("snet_id", new BasicDBObject("$in", sampleSnetIds)));
+		add(false, "MONGO_PROJECT_USAGE", new BasicDBObject("subscription_id", 1).append("snet_id", 1), true,
+			new BasicDBObject("subscription_id", sampleId).append("snet_id", "SNET_ID"));
+		add(true, "MONGO_STREAM_DPU_USAGE", new BasicDBObject("client_id", 1).append("snet_id", 1)
+											.append("subscription_id", 1), false,
+			new BasicDBObject("client_id", sampleId).append("snet_id", new BasicDBObject("$in", sampleSnetIds))
+											.append("subscription_id", sampleId));
+		// csdl_query is left out of the key, csdl queries can exceed the index key size
+		BasicDBList historyQueries = new BasicDBList();
+		historyQueries.add(new BasicDBObject("snet_id", "SNET_ID").append("csdl_query", "CSDL_QUERY"));
+		add(true, "MONGO_STREAM_DPU_HISTORY", new BasicDBObject("snet_id", 1).append("subscription_id", 1), false,
+			new BasicDBObject("subscription_id", sampleId).append("stream_usage.end_date", "NA")
+											.append("$or", historyQueries));
+		if (QuotaLeaseAllocator.isEnabled()) {
+			// leases of a client, revoked when its subscription is made inactive
+			add(false, "MONGO_QUOTA_LEASES", new BasicDBObject("client_id", 1), false,
+				new BasicDBObject("client_id", sampleId));
+			// lease closed by a renewal or a release
+			add(false, "MONGO_QUOTA_LEASES", new BasicDBObject("leases.lease_id", 1), false,
+				new BasicDBObject("leases.lease_id", "LEASE_ID"));
+			// leases which ended without being renewed, see QuotaLeaseAllocator#reclaimExpired
+			add(false, "MONGO_QUOTA_LEASES", new BasicDBObject("leases.expires_at", 1), false,
+				new BasicDBObject("leases.expires_at", new BasicDBObject("$lte", new Date())));
+		}
+		if (IncrementalSweep.isEnabled()) {
+			// clients changed since the last sweep, see IncrementalSweep
+			Date sampleDate = new Date();
+			add(false, "MONGO_USAGE_TOTALS", new BasicDBObject("updated_at", 1), false,
+				new BasicDBObject("updated_at", new BasicDBObject("$gte", sampleDate)));
+			add(false, "MONGO_SUBSCRIPTIONS", new BasicDBObject("is_active", 1).append("end_date", 1), false,
+				new BasicDBObject("is_active", 1).append("end_date", new BasicDBObject("$gt", sampleDate)
+											.append("$lte", sampleDate)));
+		}
+	}
+	
+	/**
+	 * Creates the indexes and checks the query plans. Exits the process if
+	 * INDEX_CHECK_MODE is FAIL and a query scans its collection, the shutdown
+	 * hook then closes the Mongo client.
+	 */
+	public static void provisionAtStartup() {
+		if (!ConfigUtils.getBooleanProperty(INDEX_PROVISIONING_ENABLED, true)) {
+			return;
+		}
+		IndexProvisioner provisioner = new IndexProvisioner();
+		provisioner.createIndexes();
+		String checkMode = ConfigUtils.getProperty(INDEX_CHECK_MODE, "WARN");
+		if (!CHECK_MODE_OFF.equalsIgnoreCase(checkMode)) {
+			List<String> scans = provisioner.findCollectionScans();
+			if (!scans.isEmpty() && CHECK_MODE_FAIL.equalsIgnoreCase(checkMode)) {
+				logger.error("Queries scan their collection : " + scans + ", exiting as INDEX_CHECK_MODE = FAIL");
+				System.exit(1);
+			}
+		}
+	}
+	
+	private void add(boolean discoveryDb, String collectionKey, BasicDBObject keys, boolean unique,
+					 BasicDBObject sampleQuery) {
+		queries.add(new IndexedQuery(discoveryDb, collectionKey, keys, unique, sampleQuery));
+	}
+	
+	/**
+	 * Ensures every index exists. Building in the background keeps the
+	 * collections writable when an index is created on a live deployment.
+	 */
+	void createIndexes() {
+		for (IndexedQuery query : queries) {
+			try {
+				BasicDBObject options = new BasicDBObject("background", true);
+				if (query.unique) {
+					options.append("unique", true);
+				}
+				getCollection(query).createIndex(query.keys, options);
+			} catch (Exception e) {
+				logger.error("Exception in creating index " + query.keys + " on " + query.collectionKey + " : ", e);
+			}
+		}
+	}
+	
+	/**
+	 * Explains each query
+	 * @return the queries which would scan their collection
+	 */
+	List<String> findCollectionScans() {
+		List<String> scans = new ArrayList<String>();
+		for (IndexedQuery query : queries) {
+			try {
+				DBCollection collection = getCollection(query);
+				DBObject plan = collection.find(query.sampleQuery).explain();
+				if (isCollectionScan(plan)) {
+					String scan = collection.getName() + " " + query.sampleQuery;
+					logger.error("COLLECTION SCAN : " + scan + " is not served by the index " + query.keys
+								 + ", every call will read the whole collection. Plan : " + plan);
+					scans.add(scan);
+				}
+			} catch (Exception e) {
+				logger.error("Exception in explaining the query on " + query.collectionKey + " : ", e);
+			}
+		}
+		return scans;
+	}
+	
+	private DBCollection getCollection(IndexedQuery query) {
+		DB db = query.discoveryDb ? mdbUtils.getMongoDbConnection() : mdbUtils.getSubscriptionDbConnection();
+		return db.getCollection(mdbUtils.retrieveCollectionName(query.collectionKey));
+	}
+	
+	/**
+	 * Looks for a collection scan anywhere in an explain output, i.e in the
+	 * clauses of an $or. Servers before 3.0 report a BasicCursor, later
+	 * ones a COLLSCAN stage.
+	 */
+	static boolean isCollectionScan(Object plan) {
+		if (plan instanceof DBObject) {
+			DBObject dbObject = (DBObject) plan;
+			Object cursor = dbObject.get("cursor");
+			if (cursor instanceof String && ((String) cursor).startsWith("BasicCursor")) {
+				return true;
+			}
+			if ("COLLSCAN".equals(dbObject.get("stage"))) {
+				return true;
+			}
+			for (String key : dbObject.keySet()) {
+				// the rejected plans are not what the query runs with
+				if (!"rejectedPlans".equals(key) && !"allPlans".equals(key)
+						&& isCollectionScan(dbObject.get(key))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Index and the query shape it has to serve
+	 */
+	private static class IndexedQuery {
+		private final boolean discoveryDb;
+		// key of the collection name in mongodb.properties
+		private final String collectionKey;
+		private final BasicDBObject keys;
+		private final boolean unique;
+		private final BasicDBObject sampleQuery;
+		
+		IndexedQuery(boolean discoveryDb, String collectionKey, BasicDBObject keys, boolean unique,
+					 BasicDBObject sampleQuery) {
+			this.discoveryDb = discoveryDb;
+			this.collectionKey = collectionKey;
+			this.keys = keys;
+			this.unique = unique;
+			this.sampleQuery = sampleQuery;
+		}
+	}
+}
@@ -1,14 +1,22 @@
 package com.veda.discovery.commons;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.Metrics;
 import com.veda.discovery.utils.MongoDbUtils;
 
 public class ProjectsCollection {
 	
 	private static final String MONGO_PROJECTS = "MONGO_PROJECTS";
+	private static AsyncLog logger = AsyncLog.getLog(ProjectsCollection.class);
 	
 	
 	/**
@@ -25,19 +33,52 @@ public class ProjectsCollection {
 				BasicDBObject query = new BasicDBObject();
 				query.append("snet_id", snetId);
 				BasicDBObject project = new BasicDBObject("csdl_query" , 1);
-				DBCursor cursor = collection.find(query, project);
-				if (cursor.hasNext()) {
-					csdlQuery = (String) cursor.next().get("csdl_query");
+				long started = Metrics.start();
+				try {
+					DBCursor cursor = collection.find(query, project);
+					if (cursor.hasNext()) {
+						csdlQuery = (String) cursor.next().get("csdl_query");
+					}
+				} finally {
+					Metrics.stop(Metrics.MONGO_FIND, started);
 				}
 			} 
 		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			if (mongoDb != null) {
-				mongoDb.closeMongoConnection();
-			}
-			
+			logger.error("Exception : ", e);
 		}
 		return csdlQuery;
 	}
+	
+	/**
+	 * Retrieves the csdl queries of the specified projects in one query.
+	 * @return csdl query by snet_id, projects not found are left out
+	 */
+	public Map<String, String> retreiveCsdlQueries(List<String> snetIdList) {
+		MongoDbUtils mongoDb = new MongoDbUtils();
+		Map<String, String> csdlQueries = new HashMap<String, String>();
+		try {
+			if (snetIdList != null && !snetIdList.isEmpty()) {
+				DB db = mongoDb.getMongoDbConnection();
+				DBCollection collection = db.getCollection(mongoDb.retrieveCollectionName(MONGO_PROJECTS));
+				BasicDBObject query = new BasicDBObject("snet_id", new BasicDBObject("$in", snetIdList));
+				BasicDBObject project = new BasicDBObject("snet_id", 1).append("csdl_query" , 1);
+				long started = Metrics.start();
+				try {
+					DBCursor cursor = collection.find(query, project);
+					while (cursor.hasNext()) {
+						DBObject dbObject = cursor.next();
+						String snetId = (String) dbObject.get("snet_id");
+						if (!csdlQueries.containsKey(snetId)) {
+							csdlQueries.put(snetId, (String) dbObject.get("csdl_query"));
+						}
+					}
+				} finally {
+					Metrics.stop(Metrics.MONGO_FIND, started);
+				}
+			}
+		} catch (Exception e) {
+			logger.error("Exception : ", e);
+		}
+		return csdlQueries;
+	}
 }
@@ -0,0 +1,152 @@
+package com.veda.discovery.commons;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Bounded, time limited cache of the active subscription of each client, so
+ * that the checks of one usage event share a single subscriptions read.
+ *
+ * Entries are evicted in least recently used order once the cache is full and
+ * are re-read after the TTL. The entry of a client must be invalidated whenever
+ * its subscription is changed by this process.
+ *
+ * A client without an active subscription is not cached. Subscriptions are
+ * created outside of this process, so a cached miss would keep treating a
+ * client who just subscribed as expired until the TTL runs out.
+ */
+public class SubscriptionCache {
+	
+	private static final String SUBSCRIPTION_CACHE_MAX_SIZE = "SUBSCRIPTION_CACHE_MAX_SIZE";
+	private static final String SUBSCRIPTION_CACHE_TTL = "SUBSCRIPTION_CACHE_TTL";
+	
+	private static final SubscriptionCache INSTANCE = new SubscriptionCache(
+						ConfigUtils.getIntProperty(SUBSCRIPTION_CACHE_MAX_SIZE, 10000),
+						ConfigUtils.getLongProperty(SUBSCRIPTION_CACHE_TTL, 60));
+	
+	static {
+		Metrics.addSource(new MetricSource() {
+			@Override
+			public void collect(Map<String, Number> metrics) {
+				metrics.put("subscriptionCache.hits", INSTANCE.getHitCount());
+				metrics.put("subscriptionCache.misses", INSTANCE.getMissCount());
+				metrics.put("subscriptionCache.evictions", INSTANCE.getEvictionCount());
+				metrics.put("subscriptionCache.size", INSTANCE.size());
+			}
+		});
+	}
+	
+	private final int maxSize;
+	private final long ttlNanos;
+	private final Map<String, CachedSnapshot> snapshots;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+	// bumped on every invalidation so that reads racing with it are not cached
+	private long generation = 0;
+	
+	SubscriptionCache(int maxSize, long ttlSeconds) {
+		this.maxSize = maxSize;
+		this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+		this.snapshots = new LinkedHashMap<String, CachedSnapshot>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedSnapshot> eldest) {
+				if (size() > SubscriptionCache.this.maxSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	public static SubscriptionCache getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Gets the active subscription of a client, reading it from the
+	 * subscriptions collection if it is not cached or has expired
+	 * @param clientId : Id of the client
+	 * @return snapshot of the active subscription, or null if it could not be read
+	 */
+	public SubscriptionSnapshot get(String clientId) {
+		if (clientId == null) {
+			return null;
+		}
+		long now = System.nanoTime();
+		long loadGeneration;
+		synchronized (snapshots) {
+			CachedSnapshot cached = snapshots.get(clientId);
+			if (cached != null && now - cached.loadedAt < ttlNanos) {
+				hitCount.incrementAndGet();
+				return cached.snapshot;
+			}
+			loadGeneration = generation;
+		}
+		missCount.incrementAndGet();
+		SubscriptionSnapshot snapshot = new SubscriptionCollection().loadActiveSubscription(clientId);
+		if (snapshot != null && snapshot.getSubscriptionId() != null) {
+			synchronized (snapshots) {
+				if (loadGeneration == generation) {
+					snapshots.put(clientId, new CachedSnapshot(snapshot, now));
+				}
+			}
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Removes the cached subscription of a client
+	 * @param clientId : Id of the client
+	 */
+	public void invalidate(String clientId) {
+		synchronized (snapshots) {
+			generation++;
+			snapshots.remove(clientId);
+		}
+	}
+	
+	public void invalidateAll() {
+		synchronized (snapshots) {
+			generation++;
+			snapshots.clear();
+		}
+	}
+	
+	public int size() {
+		synchronized (snapshots) {
+			return snapshots.size();
+		}
+	}
+	
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+	
+	private static class CachedSnapshot {
+		private final SubscriptionSnapshot snapshot;
+		private final long loadedAt;
+		
+		CachedSnapshot(SubscriptionSnapshot snapshot, long loadedAt) {
+			this.snapshot = snapshot;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
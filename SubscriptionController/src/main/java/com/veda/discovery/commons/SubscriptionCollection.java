@@ -1,18 +1,24 @@
 package com.veda.discovery.commons;
 
-import org.apache.log4j.Logger;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.bson.types.ObjectId;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.Metrics;
 import com.veda.discovery.utils.MongoDbUtils;
 
 public class SubscriptionCollection {
 
 	private static final String MONGO_SUBSCRIPTIONS = "MONGO_SUBSCRIPTIONS";
-	private static Logger logger = Logger.getLogger(SubscriptionCollection.class);
+	private static AsyncLog logger = AsyncLog.getLog(SubscriptionCollection.class);
 	
 	
 	/**
@@ -21,6 +27,21 @@ public class SubscriptionCollection {
 	 * @return
 	 */
 	public String getActiveSubscriptionId (String clientId) {
+		SubscriptionSnapshot snapshot = SubscriptionCache.getInstance().get(clientId);
+		if (snapshot != null) {
+			return snapshot.getSubscriptionId();
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads the active subscription of a client. Callers should go through
+	 * {@link SubscriptionCache} instead of calling this directly, unless they
+	 * can not act on a stale subscription, i.e when a quota lease is sized.
+	 * @param clientId : Id of the client
+	 * @return snapshot of the active subscription, or null if it could not be read
+	 */
+	public SubscriptionSnapshot loadActiveSubscription(String clientId) {
 		if (clientId == null) {
 			return null;
 		}
@@ -32,20 +53,68 @@ public class SubscriptionCollection {
 			BasicDBObject query= new BasicDBObject();
 			query.append("client_id", new ObjectId(clientId));
 			query.append("is_active", 1);
-			DBObject dBObject = mongoCollection.findOne(query);
+			long started = Metrics.start();
+			DBObject dBObject;
+			try {
+				dBObject = mongoCollection.findOne(query);
+			} finally {
+				Metrics.stop(Metrics.MONGO_FIND_ONE, started);
+			}
 			if (dBObject != null) {
-				String subId = dBObject.get("_id").toString();
-				return subId;
+				return toSnapshot(clientId, dBObject);
 			}
+			return SubscriptionSnapshot.noSubscription(clientId);
 		} catch (NullPointerException e) {
-			System.out.println("Exception : The user may not be subscribed");
 			logger.error("Exception : The user may not be subscribed", e);
 		}  catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return null;
 	}
-}
+	
+	/**
+	 * Scans the active subscriptions of all the clients
+	 * @return active subscription of each client by client-ID
+	 */
+	public Map<String, SubscriptionSnapshot> getAllActiveSubscriptions() {
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		Map<String, SubscriptionSnapshot> subscriptions = new HashMap<String, SubscriptionSnapshot>();
+		DB mDb = mdbUtils.getSubscriptionDbConnection();
+		DBCollection mongoCollection = mDb.getCollection(mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS));
+		BasicDBObject fields = new BasicDBObject("client_id", 1).append("plan_ref_id", 1)
+									.append("end_date", 1).append("total_sentences", 1)
+									.append("total_credits", 1).append("is_active", 1);
+		long started = Metrics.start();
+		DBCursor dbCursor = mongoCollection.find(new BasicDBObject("is_active", 1), fields);
+		try {
+			while (dbCursor.hasNext()) {
+				DBObject dbObject = dbCursor.next();
+				String clientId = dbObject.get("client_id").toString();
+				if (!subscriptions.containsKey(clientId)) {
+					subscriptions.put(clientId, toSnapshot(clientId, dbObject));
+				}
+			}
+		} finally {
+			dbCursor.close();
+			Metrics.stop(Metrics.MONGO_FIND, started);
+		}
+		return subscriptions;
+	}
+	
+	/**
+	 * Builds the snapshot from a subscriptions document
+	 */
+	public static SubscriptionSnapshot toSnapshot(String clientId, DBObject dBObject) {
+		Object planRefId = dBObject.get("plan_ref_id");
+		Object totalSentences = dBObject.get("total_sentences");
+		Object totalCredits = dBObject.get("total_credits");
+		Object isActive = dBObject.get("is_active");
+		return new SubscriptionSnapshot(clientId,
+						dBObject.get("_id").toString(),
+						planRefId == null ? null : planRefId.toString(),
+						(Date) dBObject.get("end_date"),
+						totalSentences == null ? 0 : ((Number) totalSentences).intValue(),
+						totalCredits == null ? 0.0 : ((Number) totalCredits).doubleValue(),
+						isActive != null && ((Number) isActive).intValue() == 1);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,73 @@
+package com.veda.discovery.commons;
+
+import java.util.Date;
+
+/**
+ * Immutable view of the active subscription of a client, built from a
+ * single read of the subscriptions collection.
+ */
+public class SubscriptionSnapshot {
+	
+	private final String clientId;
+	private final String subscriptionId;
+	private final String planRefId;
+	private final Date endDate;
+	private final int totalSentences;
+	private final double totalCredits;
+	private final boolean active;
+	
+	public SubscriptionSnapshot(String clientId, String subscriptionId, String planRefId,
+								Date endDate, int totalSentences, double totalCredits,
+								boolean active) {
+		this.clientId = clientId;
+		this.subscriptionId = subscriptionId;
+		this.planRefId = planRefId;
+		this.endDate = endDate == null ? null : new Date(endDate.getTime());
+		this.totalSentences = totalSentences;
+		this.totalCredits = totalCredits;
+		this.active = active;
+	}
+	
+	/**
+	 * Snapshot of a client which has no active subscription
+	 */
+	public static SubscriptionSnapshot noSubscription(String clientId) {
+		return new SubscriptionSnapshot(clientId, null, null, null, 0, 0.0, false);
+	}
+	
+	public String getClientId() {
+		return clientId;
+	}
+	
+	public String getSubscriptionId() {
+		return subscriptionId;
+	}
+	
+	public String getPlanRefId() {
+		return planRefId;
+	}
+	
+	public Date getEndDate() {
+		return endDate == null ? null : new Date(endDate.getTime());
+	}
+	
+	public int getTotalSentences() {
+		return totalSentences;
+	}
+	
+	public double getTotalCredits() {
+		return totalCredits;
+	}
+	
+	public boolean isActive() {
+		return active;
+	}
+	
+	/**
+	 * Checks whether the end date of the subscription is crossed
+	 * @param date : date to compare with
+	 */
+	public boolean isExpiredAt(Date date) {
+		return endDate != null && date.after(endDate);
+	}
+}
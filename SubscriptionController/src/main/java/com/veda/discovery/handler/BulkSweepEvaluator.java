@@ -0,0 +1,150 @@
+package com.veda.discovery.handler;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.veda.discovery.commons.SubscriptionCollection;
+import com.veda.discovery.commons.SubscriptionSnapshot;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.usageStats.UsageDocuments;
+import com.veda.discovery.usageStats.UsageStatsBuffer;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Evaluates the subscriptions of all clients with a constant number of queries
+ * instead of running the checks client by client: one scan of the active
+ * subscriptions and one read of the usage totals per chunk of
+ * subscriptions, joined in memory.
+ */
+public class BulkSweepEvaluator {
+	
+	// keeps the $in list well below the document limit
+	private static final int READ_CHUNK_SIZE = 1000;
+	
+	private static Logger logger = Logger.getLogger(BulkSweepEvaluator.class);
+	
+	/**
+	 * Reason for stopping the poller of a client
+	 */
+	public enum StopReason {
+		NO_ACTIVE_SUBSCRIPTION, DATE_EXPIRED, SENTENCES_EXHAUSTED, CREDITS_EXHAUSTED
+	}
+	
+	/**
+	 * Finds the clients whose subscription is missing, expired or exhausted
+	 * @param clientIds : Ids of the clients to evaluate
+	 * @return clients to stop with the reason, in the order of clientIds
+	 */
+	public Map<String, StopReason> evaluate(Iterable<String> clientIds) {
+		if (UsageStatsBuffer.isEnabled()) {
+			// the usage accepted till now has to be in the usage totals
+			UsageStatsBuffer.getInstance().flush();
+		}
+		Map<String, SubscriptionSnapshot> subscriptions = new SubscriptionCollection().getAllActiveSubscriptions();
+		Map<String, Usage> usageBySubscription = getUsage(subscriptions.values());
+		Map<String, StopReason> clientsToStop = new LinkedHashMap<String, StopReason>();
+		Date now = new Date();
+		for (String clientId : clientIds) {
+			StopReason reason = evaluate(clientId, subscriptions.get(clientId),
+										 usageBySubscription, now);
+			if (reason != null) {
+				clientsToStop.put(clientId, reason);
+			}
+		}
+		return clientsToStop;
+	}
+	
+	private StopReason evaluate(String clientId, SubscriptionSnapshot subscription,
+								Map<String, Usage> usageBySubscription, Date now) {
+		if (subscription == null) {
+			return StopReason.NO_ACTIVE_SUBSCRIPTION;
+		}
+		if (subscription.isExpiredAt(now)) {
+			logger.error("Stopping Poller...as Date Expired at : " + now + " for clientId : " + clientId);
+			return StopReason.DATE_EXPIRED;
+		}
+		Usage usage = usageBySubscription.get(subscription.getSubscriptionId());
+		if (usage == null) {
+			return null;
+		}
+		if (usage.sentencesCount >= subscription.getTotalSentences()) {
+			logger.error("Stopping Poller...as Sentences Exhausted at :" + now + " for clientId : " + clientId);
+			return StopReason.SENTENCES_EXHAUSTED;
+		}
+		// rounding off the credits upto two decimals as checkCredits does
+		double creditsCount = Math.round(usage.creditsCount * 100.0) / 100.0;
+		if (creditsCount >= subscription.getTotalCredits()) {
+			logger.error("Stopping Poller...as Credits Exhausted at : " + now + " for clientId : " + clientId);
+			return StopReason.CREDITS_EXHAUSTED;
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads the sentences and credits used by each of the subscriptions from
+	 * their totals documents
+	 * @return usage by subscription-ID, subscriptions without usage are left out
+	 */
+	private Map<String, Usage> getUsage(Iterable<SubscriptionSnapshot> subscriptions) {
+		/**
+		 * Query Used (per chunk of subscriptions) :
+		 * db.usage_totals.find({"_id" : {"$in" : [ObjectId("52a728abc07f8ad68acedcdd"), ...]}},
+		 *                      {"sentences_count" : 1, "dpu" : 1})
+		 */
+		DBCollection mongoCollection = UsageDocuments.getTotalsCollection(new MongoDbUtils());
+		Map<String, Usage> usageBySubscription = new HashMap<String, Usage>();
+		List<ObjectId> chunk = new ArrayList<ObjectId>();
+		for (SubscriptionSnapshot subscription : subscriptions) {
+			chunk.add(new ObjectId(subscription.getSubscriptionId()));
+			if (chunk.size() == READ_CHUNK_SIZE) {
+				readUsage(mongoCollection, chunk, usageBySubscription);
+				chunk.clear();
+			}
+		}
+		if (!chunk.isEmpty()) {
+			readUsage(mongoCollection, chunk, usageBySubscription);
+		}
+		return usageBySubscription;
+	}
+	
+	private void readUsage(DBCollection mongoCollection, List<ObjectId> subscriptionIds,
+						   Map<String, Usage> usageBySubscription) {
+		BasicDBObject query = new BasicDBObject("_id", new BasicDBObject("$in", subscriptionIds));
+		BasicDBObject fields = new BasicDBObject("sentences_count", 1).append("dpu", 1);
+		long started = Metrics.start();
+		try {
+			DBCursor cursor = mongoCollection.find(query, fields);
+			while (cursor.hasNext()) {
+				DBObject dbObject = cursor.next();
+				Object sentences = dbObject.get("sentences_count");
+				Object credits = dbObject.get("dpu");
+				usageBySubscription.put(dbObject.get("_id").toString(), new Usage(
+								sentences instanceof Number ? ((Number) sentences).longValue() : 0L,
+								credits instanceof Number ? ((Number) credits).doubleValue() : 0.0));
+			}
+		} finally {
+			Metrics.stop(Metrics.MONGO_FIND, started);
+		}
+	}
+	
+	private static class Usage {
+		private final long sentencesCount;
+		private final double creditsCount;
+		
+		Usage(long sentencesCount, double creditsCount) {
+			this.sentencesCount = sentencesCount;
+			this.creditsCount = creditsCount;
+		}
+	}
+}
@@ -3,86 +3,331 @@ package com.veda.discovery.handler;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
 
-import org.apache.log4j.Logger;
 import org.bson.types.ObjectId;
 
-import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.veda.discovery.commons.ClientLocks;
+import com.veda.discovery.commons.IndexProvisioner;
+import com.veda.discovery.commons.SubscriptionCache;
+import com.veda.discovery.commons.SubscriptionSnapshot;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.Metrics;
 import com.veda.discovery.usageStats.PollerStopper;
+import com.veda.discovery.usageStats.QuotaHeadroomGate;
+import com.veda.discovery.usageStats.QuotaLeaseAllocator;
+import com.veda.discovery.usageStats.QuotaLedger;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.IoExecutor;
 import com.veda.discovery.utils.MongoDbUtils;
 
 
 public class CheckSubscription {
 	
-	private static final String MONGO_USAGE_STATISTICS = "MONGO_USAGE_STATISTICS";
 	private static final String MONGO_SUBSCRIPTIONS = "MONGO_SUBSCRIPTIONS";
 	private static final String MONGO_CLIENTS = "MONGO_CLIENTS";
 	private static final String MONGO_PROJECTS = "MONGO_PROJECTS";
+	private static final String SWEEP_MODE = "SWEEP_MODE";
+	private static final String SWEEP_MODE_BULK = "BULK";
+	private static final String SWEEP_CURSOR_BATCH_SIZE = "SWEEP_CURSOR_BATCH_SIZE";
 	
-	private static Logger logger = Logger.getLogger(CheckSubscription.class);
+	private static AsyncLog logger = AsyncLog.getLog(CheckSubscription.class);
 	
 	/**
 	 * This method checks all the conditions to stop polling for client i.e 
-	 * credits, sentences and end-date are expired or exhausted
+	 * credits, sentences and end-date are expired or exhausted. The clients
+	 * are checked in parallel, see {@link SubscriptionSweeper}. With
+	 * SWEEP_INCREMENTAL only the clients which changed since the last sweep
+	 * are checked, see {@link IncrementalSweep}
+	 * @return report of the sweep
 	 */
-	public void enquireSubscription() throws Exception{
-		List<String> clientIdList = getAllClients();
-		if (clientIdList.size() > 0) {
-			for (String clientId : clientIdList) {
-				if (clientId != null) {
-					if (checkExpiryDate(clientId)) {
-						// stopping poller
-						new PollerStopper().stopPollerForClient(clientId);
-					} else if (checkSentences(clientId)) {
-						// stopping Poller
-						new PollerStopper().stopPollerForClient(clientId);
-					} else if (checkCredits(clientId)) {
-						// stopping poller
-						new PollerStopper().stopPollerForClient(clientId);
+	public SweepReport enquireSubscription() throws Exception{
+		IncrementalSweep.Pass pass = null;
+		if (IncrementalSweep.isEnabled()) {
+			pass = new IncrementalSweep().begin(getSweepStateId(), getSweepScope());
+		}
+		final IncrementalSweep.Pass currentPass = pass;
+		SweepReport report;
+		if (SWEEP_MODE_BULK.equalsIgnoreCase(ConfigUtils.getProperty(SWEEP_MODE, ""))) {
+			report = enquireSubscriptionInBulk(filterOwned(pass == null || pass.isFull() ? getAllClients()
+																						 : pass.getClientIds()), pass);
+		} else if (pass == null || pass.isFull()) {
+			final ClientIdSource clients = new ClientIdSource(getSweepStateId(),
+											SweepCluster.isEnabled() ? SweepCluster.getInstance() : null);
+			try {
+				clients.open();
+				if (pass != null && clients.getResumedStart() != null) {
+					// the clients before the checkpoint were checked by the interrupted pass
+					pass = pass.startedAt(clients.getResumedStart());
+				}
+				final IncrementalSweep.Pass fullPass = pass;
+				report = new SubscriptionSweeper().sweep(clients, new SubscriptionSweeper.ClientCheck() {
+					@Override
+					public boolean check(String clientId) throws Exception {
+						try {
+							return sweepClient(clientId, false, fullPass);
+						} finally {
+							clients.completed(clientId);
+						}
 					}
+				});
+				clients.finish();
+			} finally {
+				clients.close();
+			}
+		} else {
+			report = new SubscriptionSweeper().sweep(filterOwned(pass.getClientIds()),
+													 new SubscriptionSweeper.ClientCheck() {
+				@Override
+				public boolean check(String clientId) throws Exception {
+					return sweepClient(clientId, false, currentPass);
 				}
+			});
+		}
+		if (pass != null) {
+			new IncrementalSweep().complete(pass);
+		}
+		return report;
+	}
+	
+	/**
+	 * Runs the check of one client in a sweep. A client whose check failed,
+	 * i.e because some of its pollers could not be stopped, is checked again
+	 * by the next incremental pass
+	 * @param evaluated : true if the client is known to be stopped, false to check it first
+	 * @param pass : incremental pass of the sweep, or null
+	 */
+	private boolean sweepClient(String clientId, boolean evaluated, IncrementalSweep.Pass pass) throws Exception {
+		try {
+			return evaluated ? stopPoller(clientId) : checkAndStopPoller(clientId);
+		} catch (Exception e) {
+			if (pass != null) {
+				pass.retry(clientId);
 			}
+			throw e;
 		}
 	}
 	
+	/**
+	 * Keeps the clients of the partitions this instance holds in cluster
+	 * mode, the other instances sweep the rest
+	 */
+	private List<String> filterOwned(List<String> clientIdList) {
+		return SweepCluster.isEnabled() ? SweepCluster.getInstance().filterOwned(clientIdList) : clientIdList;
+	}
+	
+	/**
+	 * Id the sweep keeps the passes and the checkpoint of this instance under
+	 */
+	private String getSweepStateId() {
+		return SweepCluster.isEnabled() ? SweepCluster.getInstance().getInstanceId() : "default";
+	}
+	
+	/**
+	 * Clients this instance sweeps, a pass after it changed checks all of them
+	 */
+	private String getSweepScope() {
+		if (!SweepCluster.isEnabled()) {
+			return "all";
+		}
+		return new TreeSet<Integer>(SweepCluster.getInstance().getOwnedPartitions()).toString();
+	}
+	
+	/**
+	 * Evaluates all the clients with a constant number of queries, see
+	 * {@link BulkSweepEvaluator}, and stops the pollers of the clients found
+	 * @param clientIdList : Ids of the clients
+	 * @param pass : incremental pass of the sweep, or null
+	 * @return report of the sweep
+	 */
+	private SweepReport enquireSubscriptionInBulk(List<String> clientIdList, final IncrementalSweep.Pass pass)
+					throws Exception {
+		Map<String, BulkSweepEvaluator.StopReason> clientsToStop =
+							new BulkSweepEvaluator().evaluate(clientIdList);
+		Metrics.add(Metrics.SUBSCRIPTION_CHECKS, clientIdList.size());
+		SweepReport report = new SubscriptionSweeper().sweep(clientsToStop.keySet(),
+							new SubscriptionSweeper.ClientCheck() {
+			@Override
+			public boolean check(String clientId) throws Exception {
+				return sweepClient(clientId, true, pass);
+			}
+		});
+		report.checkedInBulk(clientIdList.size() - clientsToStop.size());
+		return report;
+	}
+	
+	/**
+	 * Stops the poller of a client if its subscription is expired or exhausted
+	 * @param clientId : Id of the client
+	 * @return true if the poller was stopped
+	 */
+	private boolean checkAndStopPoller(String clientId) throws Exception {
+		Metrics.increment(Metrics.SUBSCRIPTION_CHECKS);
+		boolean ended;
+		Lock clientLock = ClientLocks.get(clientId);
+		clientLock.lock();
+		try {
+			ended = checkExpiryDate(clientId) || checkSentences(clientId) || checkCredits(clientId);
+		} finally {
+			clientLock.unlock();
+		}
+		// stopping poller, outside the lock, see checkEnded
+		return ended && stopPoller(clientId);
+	}
+	
+	/**
+	 * Stops the poller of a client found by the sweep
+	 * @param clientId : Id of the client
+	 * @return false if the partition was taken over by another instance
+	 */
+	private boolean stopPoller(String clientId) throws Exception {
+		if (!fence(clientId)) {
+			return false;
+		}
+		new PollerStopper().stopPollerForClient(clientId);
+		return true;
+	}
+	
+	/**
+	 * Checks that this instance may stop a client. Every stop goes through
+	 * it : in cluster mode a sweep instance stops only the clients of the
+	 * partitions it holds, see {@link SweepCluster#fence}. A process which
+	 * does not sweep, i.e the ingestion server, does not join the cluster
+	 * and stops the clients it finds ended itself, the stop and the
+	 * deactivation being idempotent.
+	 * @param clientId : Id of the client
+	 * @return false if the client is left to the owner of its partition
+	 */
+	private boolean fence(String clientId) {
+		SweepCluster cluster = SweepCluster.isEnabled() ? SweepCluster.getJoined() : null;
+		if (cluster != null && !cluster.fence(clientId)) {
+			logger.info("Partition of clientId : {} moved, leaving it to its owner", clientId);
+			return false;
+		}
+		return true;
+	}
+	
 	/**
 	 * This method checks all the conditions i.e credits, sentences and end-date 
 	 * are expired or exhausted to stop polling for client and deactivates the active
 	 * subscription and active projects of the client
 	 * @param clientId : Id of the client
-	 * @return
+	 * @return true if the poller was stopped, false if the subscription is active
+	 *         or its stop is left to the owner of its partition, see {@link #stopEnded}
 	 */
 	public boolean enquireSubscriptionForClient(String clientId) throws Exception{
-		if (clientId != null) {
-			if (checkExpiryDate(clientId)) {
-				System.out.println("Expiry-Date : Check");
-				// stopping poller
-				new PollerStopper().stopPollerForClient(clientId);
-				//sets the status of subscription to inactive
-				makeSubscriptionInactive(clientId);
-				return true;
+		if (clientId != null && checkEnded(clientId)) {
+			return stopEnded(clientId);
+		}
+		return false;
+	}
+	
+	/**
+	 * Checks whether the subscription of a client is expired or exhausted,
+	 * holding the lock of the client so that its usage is not recorded or its
+	 * subscription deactivated in between. The caller stops an ended client
+	 * with {@link #stopEnded} once it released the lock, a poller stop is too
+	 * slow to hold up the other clients of the stripe.
+	 * @param clientId : Id of the client
+	 * @return true if the subscription ended
+	 */
+	public boolean checkEnded(String clientId) throws Exception {
+		Metrics.increment(Metrics.SUBSCRIPTION_CHECKS);
+		String reason;
+		Lock clientLock = ClientLocks.get(clientId);
+		clientLock.lock();
+		try {
+			if (checkSubscriptionEnded(clientId)) {
+				reason = "Expiry-Date";
 			} else if (checkSentences(clientId)) {
-				System.out.println("Sentences : Check");
-				// stopping Poller
-				new PollerStopper().stopPollerForClient(clientId);
-				//sets the status of subscription to inactive
-				makeSubscriptionInactive(clientId);
-				return true;
+				reason = "Sentences";
 			} else if (checkCredits(clientId)) {
-				System.out.println("Credits : Check");
-				// stopping poller
-				new PollerStopper().stopPollerForClient(clientId);
-				//sets the status of subscription to inactive
-				makeSubscriptionInactive(clientId);
-				return true;
+				reason = "Credits";
+			} else {
+				reason = null;
 			}
+		} finally {
+			clientLock.unlock();
 		}
-		return false;
+		if (reason == null) {
+			return false;
+		}
+		logger.info("{} : Check for clientId : {}", reason, clientId);
+		return true;
+	}
+	
+	/**
+	 * Stops the pollers of a client whose subscription ended and deactivates
+	 * the subscription, see {@link #checkEnded}. The subscription stays active
+	 * if some of the pollers could not be stopped. In cluster mode a client
+	 * of a partition held by another instance is left to it, see {@link #fence},
+	 * and the caller records the usage of the event as for an active subscription
+	 * until the owner stops the client.
+	 * @param clientId : Id of the client
+	 * @return false if the client is left to the owner of its partition
+	 */
+	public boolean stopEnded(String clientId) throws Exception {
+		if (!fence(clientId)) {
+			return false;
+		}
+		// stopping poller
+		new PollerStopper().stopPollerForClient(clientId);
+		//sets the status of subscription to inactive
+		makeSubscriptionInactive(clientId);
+		return true;
+	}
+	
+	/**
+	 * Asynchronous form of {@link #stopEnded}
+	 * @return future of true once the poller is stopped and the subscription deactivated,
+	 *         false if the client is left to the owner of its partition
+	 */
+	public CompletableFuture<Boolean> stopEndedAsync(final String clientId) {
+		return IoExecutor.supply(() -> fence(clientId)).thenCompose(fenced -> {
+			if (!fenced) {
+				return CompletableFuture.completedFuture(false);
+			}
+			return new PollerStopper().stopPollerForClientAsync(clientId).thenCompose(stopped ->
+							IoExecutor.supply(() -> {
+								//sets the status of subscription to inactive
+								makeSubscriptionInactive(clientId);
+								return true;
+							}));
+		});
+	}
+	
+	/**
+	 * Asynchronous form of {@link #enquireSubscriptionForClient}. The end-date,
+	 * sentences and credits checks are independent and run concurrently on the
+	 * {@link IoExecutor}. If one of them finds the subscription ended it is
+	 * confirmed under the lock of the client, see {@link #checkEnded}; the
+	 * poller stop and the deactivation follow.
+	 * @param clientId : Id of the client
+	 * @return future of true if the subscription ended and the poller is stopped
+	 */
+	public CompletableFuture<Boolean> enquireSubscriptionForClientAsync(final String clientId) {
+		if (clientId == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		final CompletableFuture<Boolean> ended = IoExecutor.supply(() -> checkSubscriptionEnded(clientId));
+		final CompletableFuture<Boolean> sentences = IoExecutor.supply(() -> checkSentences(clientId));
+		final CompletableFuture<Boolean> credits = IoExecutor.supply(() -> checkCredits(clientId));
+		return CompletableFuture.allOf(ended, sentences, credits).thenCompose(ignored -> {
+			if (!ended.join() && !sentences.join() && !credits.join()) {
+				Metrics.increment(Metrics.SUBSCRIPTION_CHECKS);
+				return CompletableFuture.completedFuture(false);
+			}
+			return IoExecutor.supply(() -> checkEnded(clientId)).thenCompose(confirmed ->
+							confirmed ? stopEndedAsync(clientId) : CompletableFuture.completedFuture(false));
+		});
 	}
 	
 	/**
@@ -90,11 +335,15 @@ public class CheckSubscription {
 	 * are expired or exhausted to stop polling for client and deactivates the active
 	 * subscription and active projects of the client
 	 * @param clientId : Id of the client
-	 * @return
+	 * @return true if the projects were stopped, false if the subscription is active
+	 *         or its stop is left to the owner of its partition
 	 */
 	public boolean enquireSubscriptionForClientOffline(String clientId) throws Exception{
-		if (clientId != null && (checkExpiryDate(clientId) ||
-				checkSentences(clientId) || checkCredits(clientId))) {
+		if (clientId != null && checkEnded(clientId)) {
+			if (!fence(clientId)) {
+				// the owner of the partition deactivates it
+				return false;
+			}
 			new PollerStopper().updateOfflineProjectStatus(clientId);
 			//sets the status of subscription to inactive
 			makeSubscriptionInactive(clientId);
@@ -109,68 +358,28 @@ public class CheckSubscription {
 	 * @return true : if the current sentences count exceeds the total sentences count
 	 */
 	public boolean checkSentences(String clientId) throws Exception{
-		/**
-		 * Query Used : 
-		 * db.usage_statistics.aggregate(
-		 * {"$match": {"client_id" : ObjectId("52a728abc07f8ad68acedccc")}
-           },
-           {"$unwind" : "$statistics"},
-           {"$group" : {"_id" : "$subscription_id",
-                        "count" : { "$sum" : "$statistics.sentences_count"}
-           }
-            })
-		 */
-		
-		MongoDbUtils mdbUtils = new MongoDbUtils();
 		try { 
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String stats = mdbUtils.retrieveCollectionName(MONGO_USAGE_STATISTICS);
-			DBCollection mongoCollection = mDb.getCollection(stats);
-			BasicDBObject matchQuery = new BasicDBObject();
-			//Matches the client-ID in the query
-			matchQuery.append("$match", new BasicDBObject()
-											.append("client_id", new ObjectId(clientId)));
-			
-			//Unwinds the array
-			BasicDBObject unwindQuery = new BasicDBObject("$unwind","$statistics");
-			BasicDBObject groupQuery = new BasicDBObject();
-			//Groups the elements based on subscription-ID 
-			groupQuery.append("$group", new BasicDBObject().append("_id", "$subscription_id")
-											.append("count", new BasicDBObject()
-											.append("$sum", "$statistics.sentences_count")));
-			
-			AggregationOutput result = mongoCollection.aggregate(matchQuery,
-																 unwindQuery, 
-																 groupQuery);
-			int sentencesCount = 0;
-			String activeSubId = null;
-			for (DBObject dbObject : result.results()) { 
-				 if (checkActiveSubscription(dbObject.get("_id").toString())) {
-					 activeSubId = dbObject.get("_id").toString();
-					//gets the used no.of sentences till date
-					sentencesCount = (Integer) dbObject.get("count");
-					break;
-				 }
+			SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+			if (subscription == null) {
+				return false;
 			}
-			
-			if (activeSubId != null) {
+			//gets the used no.of sentences till date from the ledger
+			QuotaLedger.Usage usage = QuotaLedger.getInstance().getUsage(clientId,
+												subscription.getSubscriptionId());
+			if (usage != null) {
+				long sentencesCount = usage.getSentencesCount();
 				//gets the total sentences of client for subscription
-				int totSentences = getTotalSentencesforSubscription(activeSubId);
+				int totSentences = subscription.getTotalSentences();
 				//checks if processed sentences count exceeds the total sentences assigned
 				// for client to stop the poller
 				if (sentencesCount >= totSentences) {
-					System.out.println("Stopping Poller...as Sentences Exhausted at :"
-										+ new Date() + " for clientId : " + clientId);
-					logger.error("Stopping Poller...as Sentences Exhausted at :"
-										+ new Date() + " for clientId : " + clientId);
+					logger.error("Stopping Poller...as Sentences Exhausted at : {} for clientId : {}",
+									 new Date(), clientId);
 					return true;
 				}
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return false;
 	}
@@ -181,175 +390,81 @@ public class CheckSubscription {
 	 * @return true : if the current credits count exceeds the total credits 
 	 */
 	public boolean checkCredits(String clientId) throws Exception{
-		/**
-		 * Query Used : 
-		 * db.usage_statistics.aggregate(
-		 * {"$match": {"client_id" : ObjectId("52a728abc07f8ad68acedccc")}
-           },
-           {"$unwind" : "$statistics"},
-           {"$group" : {"_id" : "$subscription_id",
-                        "count" : { "$sum" : "$statistics.credits"}
-           }
-            })
-		 * 
-		 */
-		
-		MongoDbUtils mdbUtils = new MongoDbUtils();
 		try { 
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String stats = mdbUtils.retrieveCollectionName(MONGO_USAGE_STATISTICS);
-			DBCollection mongoCollection = mDb.getCollection(stats);
-			BasicDBObject matchQuery = new BasicDBObject();
-			//Matches the client-ID in the query
-			matchQuery.append("$match", new BasicDBObject()
-											.append("client_id", new ObjectId(clientId)));
-			//Unwinds the array
-			BasicDBObject unwindQuery = new BasicDBObject("$unwind","$statistics");
-			BasicDBObject groupQuery = new BasicDBObject();
-			//Groups the elements based on subscription-ID 
-			groupQuery.append("$group", new BasicDBObject().append("_id", "$subscription_id")
-											.append("count", new BasicDBObject()
-											.append("$sum", "$statistics.dpu")));
-			
-			AggregationOutput result = mongoCollection.aggregate(matchQuery,
-																 unwindQuery, 
-																 groupQuery);
-			double currentCreditCount = 0;
-			String activeSubId = null;
-			for (DBObject dbObject : result.results()) {
-				if (checkActiveSubscription(dbObject.get("_id").toString())) {
-					 activeSubId = dbObject.get("_id").toString();
-					// gets the used no.of credits till date 
-					// rounding off the currentCreditCount upto two decimals
-					currentCreditCount = Math.round((Double) dbObject.get("count")*100.0)/100.0;
-					break;
-				 }
-				
+			SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+			if (subscription == null) {
+				return false;
 			}
-			if (activeSubId != null) {
+			QuotaLedger.Usage usage = QuotaLedger.getInstance().getUsage(clientId,
+												subscription.getSubscriptionId());
+			if (usage != null) {
+				// gets the used no.of credits till date from the ledger
+				// rounding off the currentCreditCount upto two decimals
+				double currentCreditCount = Math.round(usage.getCreditsCount()*100.0)/100.0;
 				// gets the total credits for subscription
-				double totCreditCount = getTotalCreditsforSubscription(activeSubId);
+				double totCreditCount = subscription.getTotalCredits();
 				//checks if used credit count exceeds the total credits assigned
 				// for client to stop the poller
 				if (currentCreditCount >= totCreditCount) {
-					System.out.println("Stopping Poller...as Credits Exhausted at : "
-									+ new Date() + " for clientId : " + clientId);
-					logger.error("Stopping Poller...as Credits Exhausted at : "
-									+ new Date() + " for clientId : " + clientId);
+					logger.error("Stopping Poller...as Credits Exhausted at : {} for clientId : {}",
+									 new Date(), clientId);
 					return true;
 				}
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return false;
 	}
 	
+	/**
+	 * Checks whether the client has no active subscription or, unless the
+	 * expiries are scheduled by {@link ExpiryScheduler}, whether it is expired
+	 * @param clientId : Id of the client
+	 * @return true : if the subscription is ended
+	 */
+	private boolean checkSubscriptionEnded(String clientId) throws Exception {
+		if (!ExpiryScheduler.isEnabled()) {
+			return checkExpiryDate(clientId);
+		}
+		// expiries are stopped by the scheduler, started with the first check
+		ExpiryScheduler.ensureStarted();
+		SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+		return subscription != null && !subscription.isActive();
+	}
+	
 	/**
 	 * Checks whether the subscription endDate is expired 
 	 * @param clientId : Id of the client
 	 * @return true : if the current date crosses the subscription end date
 	 */
 	public boolean checkExpiryDate(String clientId) throws Exception{
-		MongoDbUtils mdbUtils = new MongoDbUtils();
 		try {
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String subs = mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS);
-			DBCollection mongoCollection = mDb.getCollection(subs);
-			BasicDBObject query = new BasicDBObject();
-			query.append("client_id", new ObjectId(clientId));
-			query.append("is_active", 1);
-			DBObject dbObject = mongoCollection.findOne(query);
-			if (dbObject != null) {
-				Date endDate = (Date) dbObject.get("end_date");
-				Date date = new Date();
-				//checks if the current date is after the end date 
-				// to stop the poller
-				if (date.after(endDate)) {
-					System.out.println("Stopping Poller...as Date Expired at : "
-										+ new Date() + " for clientId : " + clientId);
-					logger.error("Stopping Poller...as Date Expired at : "
-										+ new Date() + " for clientId : " + clientId);
+			SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+			if (subscription != null) {
+				if (subscription.isActive()) {
+					//checks if the current date is after the end date 
+					// to stop the poller
+					if (subscription.isExpiredAt(new Date())) {
+						logger.error("Stopping Poller...as Date Expired at : {} for clientId : {}",
+										 new Date(), clientId);
+						return true;
+					}
+				} else {
 					return true;
 				}
-			} else {
-				return true;
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return false;
 	}
 	
-	/**
-	 * Gets the total no.of sentences for a subscription
-	 * @param subscriptionId :Id of subscription
-	 * @return total no.of sentences for a subscription
-	 */
-	private int getTotalSentencesforSubscription(String subscriptionId) {
-		if (subscriptionId == null) {
-			return 0;
-		}
-		MongoDbUtils mdbUtils = new MongoDbUtils();
-		int totalSentences = 0;
-		try { 
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String subscription = mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS);
-			DBCollection mongoCollection = mDb.getCollection(subscription);
-			BasicDBObject query = new BasicDBObject();
-			query.append("_id", new ObjectId(subscriptionId));
-			DBObject dbObject = mongoCollection.findOne(query);
-			if (dbObject != null) {
-				totalSentences = (Integer) dbObject.get("total_sentences");
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
-		}
-		return totalSentences;
-	}
-	
-	/**
-	 * Gets the total no.of credits for a subscription
-	 * @param subscriptionId :Id of subscription
-	 * @return total no.of credits for a subscription
-	 */
-	private double getTotalCreditsforSubscription(String subscriptionId) {
-		if (subscriptionId == null) {
-			return 0.0;
-		}
-		MongoDbUtils mdbUtils = new MongoDbUtils();
-		double credits = 0;
-		try { 
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String subscription = mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS);
-			DBCollection mongoCollection = mDb.getCollection(subscription);
-			BasicDBObject query = new BasicDBObject();
-			query.append("_id", new ObjectId(subscriptionId));
-			DBObject dbObject = mongoCollection.findOne(query);
-			if (dbObject != null) {
-				credits = (Double) dbObject.get("total_credits");
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
-		}
-		return credits;
-	}
-	
 	
 	/**
-	 * Returns the list of client Ids from the database
+	 * Returns the list of client Ids from the database. Only the bulk sweep
+	 * reads them all up front, {@link BulkSweepEvaluator} evaluates the whole
+	 * list with a constant number of queries
 	 * @return
 	 */
 	private List<String> getAllClients() {
@@ -359,54 +474,43 @@ public class CheckSubscription {
 			DB mDb = mdbUtils.getMongoDbConnection();
 			String clients = mdbUtils.retrieveCollectionName(MONGO_CLIENTS);
 			DBCollection mongoCollection = mDb.getCollection(clients);
-			DBCursor dbCursor = mongoCollection.find();
-			while (dbCursor.hasNext()) {
-				DBObject dbObject = dbCursor.next();
-				String clientId = dbObject.get("_id").toString();
-				clientIdList.add(clientId);
+			long started = Metrics.start();
+			// only the Ids, held in memory for the bulk evaluation
+			DBCursor dbCursor = mongoCollection.find(new BasicDBObject(), new BasicDBObject("_id", 1))
+									.batchSize(ConfigUtils.getIntProperty(SWEEP_CURSOR_BATCH_SIZE, 1000));
+			try {
+				while (dbCursor.hasNext()) {
+					DBObject dbObject = dbCursor.next();
+					String clientId = dbObject.get("_id").toString();
+					clientIdList.add(clientId);
+				}
+			} finally {
+				dbCursor.close();
+				Metrics.stop(Metrics.MONGO_FIND, started);
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return clientIdList;
 	}
 	
 	/**
-	 * Checks if the subscription is active or not
-	 * @param subId : Id of the subscription
-	 * @return true if the subscription is Active
+	 * Stops the poller and deactivates the subscription of a client
+	 * whose end date is reached
+	 * @param clientId : Id of the client
 	 */
-	private boolean checkActiveSubscription(String subId) {
-		MongoDbUtils mdbUtils = new MongoDbUtils();
-		try {
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String subscription = mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS);
-			DBCollection mongoCollection = mDb.getCollection(subscription);
-			BasicDBObject query = new BasicDBObject();
-			query.append("_id", new ObjectId(subId));
-			DBObject dbObject = mongoCollection.findOne(query);
-			int subStatus = (Integer) dbObject.get("is_active");
-			if (subStatus == 0) {
-				return false;
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
-		}
-		return true;
+	void expireSubscription(String clientId) throws Exception {
+		stopEnded(clientId);
 	}
 	
 	/**
-	 * Deactivates the active subscription 
+	 * Deactivates the active subscription, holding the lock of the client
 	 * @param clientId : Id of the client
 	 */
 	private void makeSubscriptionInactive(String clientId) throws Exception {
 		MongoDbUtils mdbUtils = new MongoDbUtils();
+		Lock clientLock = ClientLocks.get(clientId);
+		clientLock.lock();
 		try {
 			DB mDb = mdbUtils.getSubscriptionDbConnection();
 			String subscription = mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS);
@@ -416,23 +520,39 @@ public class CheckSubscription {
 			query.append("is_active", 1);
 			BasicDBObject updateQuery = new BasicDBObject("$set",
 												new BasicDBObject("is_active", 0));
-			mongoCollection.update(query, updateQuery);
+			long started = Metrics.start();
+			try {
+				mongoCollection.update(query, updateQuery);
+			} finally {
+				Metrics.stop(Metrics.MONGO_UPDATE, started);
+			}
+			//the next subscription of the client is read and seeded afresh
+			SubscriptionCache.getInstance().invalidate(clientId);
+			QuotaLedger.getInstance().evictClient(clientId);
+			if (ExpiryScheduler.isEnabled()) {
+				ExpiryScheduler.getInstance().cancel(clientId);
+			}
+			if (QuotaHeadroomGate.isEnabled()) {
+				QuotaHeadroomGate.getInstance().reset(clientId);
+			}
+			if (QuotaLeaseAllocator.isEnabled()) {
+				QuotaLeaseAllocator.getInstance().revokeClient(clientId);
+			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
 		} finally {
-			mdbUtils.closeMongoConnection();
+			clientLock.unlock();
 		}
 	}
 	
 	public static void main(String[] args) {
 		//new CheckSubscription().checkSentences("52c7aa334c31b4e1ce6f93d9");
 		//new CheckSubscription().checkCredits("52c7aa334c31b4e1ce6f93d9");
+		IndexProvisioner.provisionAtStartup();
 		try {
 			new CheckSubscription().enquireSubscriptionForClient("52df67e330d24de9fbce81eb");
 		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			logger.error("Exception : ", e);
 		}
 		//new CheckSubscription().makeSubscriptionInactive("52c7aa334c31b4e1ce6f93d9");
 		//new CheckSubscription().getActiveProjects("52fc6258e4b049743727f1ed");
@@ -0,0 +1,234 @@
+package com.veda.discovery.handler;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Streams the Ids of all the clients to a sweep in the order of their _id,
+ * reading only the _id in batches of SWEEP_CURSOR_BATCH_SIZE. The sweep pulls
+ * the next client only once it has a free slot, so no more than a batch is
+ * held in memory and the first client is checked as soon as the first batch
+ * is read.
+ *
+ * Every SWEEP_CHECKPOINT_INTERVAL clients the position is written to the
+ * sweep_state collection : the smallest client still being checked, or the
+ * last one read if none is. A sweep interrupted by a crash resumes from
+ * there, so at most the clients which were in progress are checked twice.
+ * The checkpoint is removed once the sweep has gone through all the clients.
+ *
+ * A cursor the server closed, i.e after it timed out between two batches, is
+ * opened again after the last client read.
+ */
+public class ClientIdSource implements Iterable<String> {
+	
+	private static final String SWEEP_CURSOR_BATCH_SIZE = "SWEEP_CURSOR_BATCH_SIZE";
+	private static final String SWEEP_CHECKPOINT_INTERVAL = "SWEEP_CHECKPOINT_INTERVAL";
+	private static final String MONGO_CLIENTS = "MONGO_CLIENTS";
+	private static final String MONGO_SWEEP_STATE = "MONGO_SWEEP_STATE";
+	
+	private static Logger logger = Logger.getLogger(ClientIdSource.class);
+	
+	private final String checkpointId;
+	private final SweepCluster cluster;
+	private final int batchSize;
+	private final int checkpointInterval;
+	// Ids handed to the sweep and not checked yet, their order is the _id order
+	private final ConcurrentSkipListSet<String> inFlight = new ConcurrentSkipListSet<String>();
+	private Date started;
+	private Date resumedStart;
+	private DBCursor cursor;
+	private Object lastRead;
+	private String next;
+	private long handedOut;
+	
+	/**
+	 * @param stateId : Id of the sweeping instance, its checkpoint is kept under it
+	 * @param cluster : instance in cluster mode, only the clients of its partitions
+	 * are handed out, or null
+	 */
+	public ClientIdSource(String stateId, SweepCluster cluster) {
+		this(stateId, cluster, ConfigUtils.getIntProperty(SWEEP_CURSOR_BATCH_SIZE, 1000),
+			 ConfigUtils.getIntProperty(SWEEP_CHECKPOINT_INTERVAL, 1000));
+	}
+	
+	public ClientIdSource(String stateId, SweepCluster cluster, int batchSize, int checkpointInterval) {
+		this.checkpointId = stateId + "/clients";
+		this.cluster = cluster;
+		this.batchSize = Math.max(1, batchSize);
+		this.checkpointInterval = checkpointInterval;
+	}
+	
+	/**
+	 * Opens the cursor, after the checkpoint of an interrupted sweep if there is one
+	 */
+	public void open() {
+		started = new Date();
+		BasicDBObject query = new BasicDBObject();
+		if (checkpointInterval > 0) {
+			DBObject checkpoint = getStateCollection().findOne(new BasicDBObject("_id", checkpointId));
+			if (checkpoint != null) {
+				resumedStart = (Date) checkpoint.get("started");
+				started = resumedStart;
+				if (checkpoint.get("resume_from") != null) {
+					query.append("_id", new BasicDBObject("$gte", checkpoint.get("resume_from")));
+				} else if (checkpoint.get("resume_after") != null) {
+					query.append("_id", new BasicDBObject("$gt", checkpoint.get("resume_after")));
+				}
+				logger.info("Resuming the sweep started at " + resumedStart + " from " + query);
+			}
+		}
+		openCursor(query);
+	}
+	
+	/**
+	 * @return start of the interrupted sweep this one resumes, or null
+	 */
+	public Date getResumedStart() {
+		return resumedStart;
+	}
+	
+	/**
+	 * Marks a client handed out as checked, whatever the outcome
+	 */
+	public void completed(String clientId) {
+		inFlight.remove(clientId);
+	}
+	
+	/**
+	 * Removes the checkpoint once the sweep went through all the clients
+	 */
+	public void finish() {
+		if (checkpointInterval > 0) {
+			getStateCollection().remove(new BasicDBObject("_id", checkpointId));
+		}
+	}
+	
+	public void close() {
+		if (cursor != null) {
+			cursor.close();
+			cursor = null;
+		}
+	}
+	
+	/**
+	 * The single pass over the clients, the source is read once
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return advance();
+			}
+			
+			@Override
+			public String next() {
+				if (!advance()) {
+					throw new NoSuchElementException();
+				}
+				String clientId = next;
+				next = null;
+				inFlight.add(clientId);
+				if (checkpointInterval > 0 && ++handedOut % checkpointInterval == 0) {
+					checkpoint();
+				}
+				return clientId;
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Reads up to the next client to hand out
+	 * @return false once all the clients are read
+	 */
+	private boolean advance() {
+		while (next == null) {
+			DBObject dbObject = nextDocument();
+			if (dbObject == null) {
+				return false;
+			}
+			lastRead = dbObject.get("_id");
+			String clientId = lastRead.toString();
+			if (cluster == null || cluster.owns(clientId)) {
+				next = clientId;
+			}
+		}
+		return true;
+	}
+	
+	private DBObject nextDocument() {
+		if (cursor == null) {
+			return null;
+		}
+		try {
+			return cursor.hasNext() ? cursor.next() : null;
+		} catch (MongoException e) {
+			logger.warn("Client cursor failed after " + lastRead + ", opening it again", e);
+			cursor.close();
+			openCursor(lastRead == null ? new BasicDBObject()
+										: new BasicDBObject("_id", new BasicDBObject("$gt", lastRead)));
+			return cursor.hasNext() ? cursor.next() : null;
+		}
+	}
+	
+	private void openCursor(BasicDBObject query) {
+		/**
+		 * Query Used :
+		 * db.clients.find({"_id" : {"$gt" : ObjectId("...")}}, {"_id" : 1}).sort({"_id" : 1}).batchSize(1000)
+		 */
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		DBCollection clients = mdbUtils.getMongoDbConnection().getCollection(mdbUtils.retrieveCollectionName(MONGO_CLIENTS));
+		long started = Metrics.start();
+		try {
+			cursor = clients.find(query, new BasicDBObject("_id", 1)).sort(new BasicDBObject("_id", 1))
+							.batchSize(batchSize);
+		} finally {
+			Metrics.stop(Metrics.MONGO_FIND, started);
+		}
+	}
+	
+	/**
+	 * Writes the position the sweep can resume from. Clients are handed out
+	 * in order, so every one before the smallest in progress is checked.
+	 */
+	private void checkpoint() {
+		Iterator<String> inProgress = inFlight.iterator();
+		BasicDBObject checkpoint = new BasicDBObject("_id", checkpointId).append("started", started);
+		if (inProgress.hasNext()) {
+			String first = inProgress.next();
+			checkpoint.append("resume_from", ObjectId.isValid(first) ? new ObjectId(first) : first);
+		} else {
+			checkpoint.append("resume_after", lastRead);
+		}
+		try {
+			getStateCollection().update(new BasicDBObject("_id", checkpointId), checkpoint, true, false);
+		} catch (Exception e) {
+			// the sweep goes on, a crash resumes from the previous checkpoint
+			logger.error("Exception in writing the sweep checkpoint : ", e);
+		}
+	}
+	
+	private static DBCollection getStateCollection() {
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		return mdbUtils.getMongoDbConnection().getCollection(mdbUtils.retrieveCollectionName(MONGO_SWEEP_STATE));
+	}
+}
@@ -0,0 +1,300 @@
+package com.veda.discovery.handler;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiFunction;
+
+
+import com.veda.discovery.commons.ClientLocks;
+import com.veda.discovery.commons.SubscriptionCache;
+import com.veda.discovery.commons.SubscriptionCollection;
+import com.veda.discovery.commons.SubscriptionSnapshot;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.usageStats.PollerStopException;
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Stops the pollers and deactivates the subscription of a client when the
+ * end_date of its active subscription is reached, instead of finding the
+ * expiry on the next usage event or sweep.
+ *
+ * The end dates of all active subscriptions are loaded on start and reloaded
+ * every EXPIRY_SCHEDULER_RELOAD_INTERVAL seconds, which picks up renewals and
+ * new subscriptions and makes the schedule survive restarts. Code changing a
+ * subscription should call {@link #reschedule(String)}.
+ *
+ * In cluster mode every sweep instance schedules all the subscriptions, but only
+ * the instance holding the partition of a client expires it, see {@link SweepCluster}.
+ * An expiry due while no instance holds the partition is found by the next sweep.
+ * A process which does not sweep does not join the cluster and expires the
+ * subscriptions it schedules itself.
+ */
+public class ExpiryScheduler {
+	
+	private static final String EXPIRY_SCHEDULER_ENABLED = "EXPIRY_SCHEDULER_ENABLED";
+	private static final String EXPIRY_SCHEDULER_RELOAD_INTERVAL = "EXPIRY_SCHEDULER_RELOAD_INTERVAL";
+	private static final String EXPIRY_SCHEDULER_THREADS = "EXPIRY_SCHEDULER_THREADS";
+	private static final String EXPIRY_SCHEDULER_RETRY_DELAY = "EXPIRY_SCHEDULER_RETRY_DELAY";
+	
+	private static AsyncLog logger = AsyncLog.getLog(ExpiryScheduler.class);
+	private static final boolean ENABLED = ConfigUtils.getBooleanProperty(EXPIRY_SCHEDULER_ENABLED, false);
+	private static volatile ExpiryScheduler instance;
+	
+	private final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+	// client-ID -> current deadline, queued deadlines not in here are stale
+	private final ConcurrentMap<String, Deadline> scheduled = new ConcurrentHashMap<String, Deadline>();
+	private final Thread dispatcher;
+	private final ExecutorService expiryExecutor;
+	private final ScheduledExecutorService reloader;
+	private final long retryDelayMillis;
+	
+	private ExpiryScheduler() {
+		dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "expiry-dispatcher");
+		dispatcher.setDaemon(true);
+		expiryExecutor = Executors.newFixedThreadPool(
+						ConfigUtils.getIntProperty(EXPIRY_SCHEDULER_THREADS, 2), newThreadFactory("expiry-worker"));
+		reloader = Executors.newSingleThreadScheduledExecutor(newThreadFactory("expiry-reloader"));
+		retryDelayMillis = TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(EXPIRY_SCHEDULER_RETRY_DELAY, 60));
+	}
+	
+	/**
+	 * Checks whether expiries are scheduled instead of checked per event
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+	
+	/**
+	 * Gets the scheduler, starting it on first use
+	 */
+	public static ExpiryScheduler getInstance() {
+		return ensureStarted();
+	}
+	
+	/**
+	 * Starts the scheduler unless it is running, loading the end dates of the
+	 * active subscriptions and starting the dispatcher
+	 * @return the running scheduler
+	 */
+	public static ExpiryScheduler ensureStarted() {
+		ExpiryScheduler scheduler = instance;
+		if (scheduler == null) {
+			synchronized (ExpiryScheduler.class) {
+				scheduler = instance;
+				if (scheduler == null) {
+					scheduler = new ExpiryScheduler();
+					scheduler.start();
+					instance = scheduler;
+					Metrics.addSource(new MetricSource() {
+						@Override
+						public void collect(Map<String, Number> metrics) {
+							metrics.put("expiryScheduler.scheduled", instance.getScheduledCount());
+						}
+					});
+				}
+			}
+		}
+		return scheduler;
+	}
+	
+	private void start() {
+		reload();
+		dispatcher.start();
+		long interval = ConfigUtils.getLongProperty(EXPIRY_SCHEDULER_RELOAD_INTERVAL, 600);
+		reloader.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reload();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Schedules the expiry of a client, replacing its previous deadline
+	 * @param clientId : Id of the client
+	 * @param endDate : end date of the active subscription
+	 */
+	public void schedule(String clientId, Date endDate) {
+		// fires once the end date is passed, as checkExpiryDate compares with after()
+		final long endTime = endDate.getTime() + 1;
+		// atomic with the removal of a due deadline in dispatch()
+		scheduled.compute(clientId, new BiFunction<String, Deadline, Deadline>() {
+			@Override
+			public Deadline apply(String clientId, Deadline previous) {
+				if (previous != null && previous.endTime == endTime) {
+					// already queued, keeps the queued one current
+					return previous;
+				}
+				Deadline deadline = new Deadline(clientId, endTime);
+				deadlines.add(deadline);
+				return deadline;
+			}
+		});
+	}
+	
+	/**
+	 * Cancels the expiry of a client, i.e when its subscription is deactivated
+	 * @param clientId : Id of the client
+	 */
+	public void cancel(String clientId) {
+		scheduled.remove(clientId);
+	}
+	
+	/**
+	 * Re-reads the active subscription of a client and schedules its expiry
+	 * @param clientId : Id of the client
+	 */
+	public void reschedule(String clientId) {
+		SubscriptionCache.getInstance().invalidate(clientId);
+		SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+		if (subscription != null && subscription.isActive() && subscription.getEndDate() != null) {
+			schedule(clientId, subscription.getEndDate());
+		} else if (subscription != null) {
+			cancel(clientId);
+		}
+	}
+	
+	public int getScheduledCount() {
+		return scheduled.size();
+	}
+	
+	/**
+	 * Loads the end dates of all the active subscriptions
+	 */
+	private void reload() {
+		try {
+			Map<String, SubscriptionSnapshot> subscriptions = new SubscriptionCollection().getAllActiveSubscriptions();
+			for (SubscriptionSnapshot subscription : subscriptions.values()) {
+				if (subscription.getEndDate() != null) {
+					schedule(subscription.getClientId(), subscription.getEndDate());
+				}
+			}
+			Iterator<String> clientIds = scheduled.keySet().iterator();
+			while (clientIds.hasNext()) {
+				if (!subscriptions.containsKey(clientIds.next())) {
+					clientIds.remove();
+				}
+			}
+			logger.info("Expiry scheduled for {} subscriptions", scheduled.size());
+		} catch (Exception e) {
+			logger.error("Exception in loading subscription end dates : ", e);
+		}
+	}
+	
+	private void dispatch() {
+		while (true) {
+			final Deadline deadline;
+			try {
+				deadline = deadlines.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (!scheduled.remove(deadline.clientId, deadline)) {
+				// replaced or cancelled
+				continue;
+			}
+			SweepCluster cluster = SweepCluster.isEnabled() ? SweepCluster.getJoined() : null;
+			if (cluster != null && !cluster.owns(deadline.clientId)) {
+				// expired by the instance holding the partition of the client
+				logger.debug("Skipping expiry of clientId : {}, partition held by another instance", deadline.clientId);
+				continue;
+			}
+			expiryExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					expire(deadline.clientId);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Expires the subscription of a client unless it was renewed in the meantime.
+	 * The subscription is read under the lock of the client, and the pollers are
+	 * stopped once it is released, see {@link CheckSubscription#checkEnded}.
+	 * If some of its pollers could not be stopped the subscription stays active
+	 * and the expiry is tried again after EXPIRY_SCHEDULER_RETRY_DELAY seconds.
+	 */
+	private void expire(String clientId) {
+		try {
+			boolean expired = false;
+			Lock clientLock = ClientLocks.get(clientId);
+			clientLock.lock();
+			try {
+				SubscriptionCache.getInstance().invalidate(clientId);
+				SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+				if (subscription == null || !subscription.isActive()) {
+					return;
+				}
+				if (subscription.isExpiredAt(new Date())) {
+					expired = true;
+				} else if (subscription.getEndDate() != null) {
+					schedule(clientId, subscription.getEndDate());
+				}
+			} finally {
+				clientLock.unlock();
+			}
+			if (expired) {
+				logger.error("Stopping Poller...as Date Expired at : {} for clientId : {}", new Date(), clientId);
+				new CheckSubscription().expireSubscription(clientId);
+			}
+		} catch (PollerStopException e) {
+			logger.error("{}, retrying the expiry in {} ms", e.getMessage(), retryDelayMillis);
+			schedule(clientId, new Date(System.currentTimeMillis() + retryDelayMillis));
+		} catch (Exception e) {
+			logger.error("Exception in expiring subscription of clientId : {}", clientId, e);
+		}
+	}
+	
+	private static ThreadFactory newThreadFactory(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	private static class Deadline implements Delayed {
+		private final String clientId;
+		private final long endTime;
+		
+		Deadline(String clientId, long endTime) {
+			this.clientId = clientId;
+			this.endTime = endTime;
+		}
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(endTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed other) {
+			long diff = getDelay(TimeUnit.MILLISECONDS) - other.getDelay(TimeUnit.MILLISECONDS);
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package com.veda.discovery.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.usageStats.UsageDocuments;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Picks the clients a sweep has to check, so that with SWEEP_INCREMENTAL it
+ * costs in proportion to the clients which changed instead of all the clients.
+ *
+ * A client changed since the last pass if the usage totals of its subscription
+ * were updated, it got a new subscription, or the end date of its active
+ * subscription was crossed. A client with none of these can not have become
+ * expired or exhausted. Every SWEEP_FULL_PASS_INTERVAL seconds, and whenever
+ * the clients of this instance change in cluster mode, all the clients are
+ * checked again to catch what the change queries miss, i.e a subscription
+ * whose totals were lowered in place.
+ *
+ * The start of the last pass is kept in the sweep_state collection, so that
+ * a sweep run as a new process each time is incremental too. The changes are
+ * looked for from SWEEP_INCREMENTAL_OVERLAP seconds before it, which covers
+ * the clock skew between the writers and the sweep. The clients whose check
+ * failed in a pass, i.e because their pollers could not be stopped, are kept
+ * with it and checked again by the next pass.
+ */
+public class IncrementalSweep {
+	
+	private static final String SWEEP_INCREMENTAL = "SWEEP_INCREMENTAL";
+	private static final String SWEEP_FULL_PASS_INTERVAL = "SWEEP_FULL_PASS_INTERVAL";
+	private static final String SWEEP_INCREMENTAL_OVERLAP = "SWEEP_INCREMENTAL_OVERLAP";
+	private static final String MONGO_SWEEP_STATE = "MONGO_SWEEP_STATE";
+	private static final String MONGO_SUBSCRIPTIONS = "MONGO_SUBSCRIPTIONS";
+	
+	private static Logger logger = Logger.getLogger(IncrementalSweep.class);
+	
+	private static final boolean ENABLED = ConfigUtils.getBooleanProperty(SWEEP_INCREMENTAL, false);
+	
+	private final long fullPassIntervalMillis;
+	private final long overlapMillis;
+	
+	public IncrementalSweep() {
+		this(TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(SWEEP_FULL_PASS_INTERVAL, 86400)),
+			 TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(SWEEP_INCREMENTAL_OVERLAP, 60)));
+	}
+	
+	public IncrementalSweep(long fullPassIntervalMillis, long overlapMillis) {
+		this.fullPassIntervalMillis = fullPassIntervalMillis;
+		this.overlapMillis = overlapMillis;
+	}
+	
+	/**
+	 * Checks whether the sweeps check only the clients which changed
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+	
+	/**
+	 * Plans the next pass from the state of the last completed one
+	 * @param stateId : Id of the sweeping instance, passes of different instances are tracked apart
+	 * @param scope : clients this instance sweeps, i.e its partitions, a change makes the pass full
+	 * @return full pass, or the clients which changed since the last pass
+	 */
+	public Pass begin(String stateId, String scope) {
+		long now = System.currentTimeMillis();
+		DBObject state = getStateCollection().findOne(new BasicDBObject("_id", stateId));
+		Date lastStarted = state == null ? null : (Date) state.get("last_started");
+		Date lastFull = state == null ? null : (Date) state.get("last_full");
+		if (lastStarted == null || lastFull == null || now - lastFull.getTime() >= fullPassIntervalMillis
+				|| !scope.equals(state.get("scope"))) {
+			logger.info("Full sweep pass of " + stateId);
+			return new Pass(stateId, scope, now, null);
+		}
+		Date since = new Date(lastStarted.getTime() - overlapMillis);
+		Set<String> clientIds = new LinkedHashSet<String>();
+		Object retries = state.get("retry_client_ids");
+		if (retries instanceof List) {
+			for (Object clientId : (List<?>) retries) {
+				clientIds.add(clientId.toString());
+			}
+		}
+		addUsageChanges(since, clientIds);
+		addSubscriptionChanges(since, new Date(now), clientIds);
+		logger.info("Incremental sweep pass of " + stateId + ", " + clientIds.size()
+					+ " clients changed since " + since);
+		return new Pass(stateId, scope, now, new ArrayList<String>(clientIds));
+	}
+	
+	/**
+	 * Records a pass which ran through, the next one looks for the changes
+	 * from its start and checks again the clients marked with {@link Pass#retry}
+	 */
+	public void complete(Pass pass) {
+		BasicDBObject fields = new BasicDBObject("last_started", new Date(pass.started)).append("scope", pass.scope)
+										.append("retry_client_ids", new ArrayList<String>(pass.retryClientIds));
+		if (pass.isFull()) {
+			fields.append("last_full", new Date(pass.started));
+		}
+		getStateCollection().update(new BasicDBObject("_id", pass.stateId), new BasicDBObject("$set", fields),
+									true, false);
+	}
+	
+	/**
+	 * Clients whose usage totals were written since, see {@link UsageDocuments}
+	 */
+	private void addUsageChanges(Date since, Set<String> clientIds) {
+		/**
+		 * Query Used :
+		 * db.usage_totals.find({"updated_at" : {"$gte" : ISODate("...")}}, {"client_id" : 1})
+		 */
+		DBCollection totals = UsageDocuments.getTotalsCollection(new MongoDbUtils());
+		addClientIds(totals, new BasicDBObject("updated_at", new BasicDBObject("$gte", since)), clientIds);
+	}
+	
+	/**
+	 * Clients with a subscription created since, the time of an ObjectId is
+	 * its creation time, and clients whose active subscription ended since
+	 */
+	private void addSubscriptionChanges(Date since, Date now, Set<String> clientIds) {
+		/**
+		 * Queries Used :
+		 * db.subscriptions.find({"_id" : {"$gte" : ObjectId("<since>0000000000000000")}}, {"client_id" : 1})
+		 * db.subscriptions.find({"is_active" : 1, "end_date" : {"$gt" : ISODate("..."), "$lte" : ISODate("...")}},
+		 *                       {"client_id" : 1})
+		 */
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		DBCollection subscriptions = mdbUtils.getSubscriptionDbConnection().getCollection(
+										mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS));
+		addClientIds(subscriptions, new BasicDBObject("_id", new BasicDBObject("$gte", new ObjectId(since, 0, 0))),
+					 clientIds);
+		addClientIds(subscriptions, new BasicDBObject("is_active", 1).append("end_date",
+										new BasicDBObject("$gt", since).append("$lte", now)), clientIds);
+	}
+	
+	private static void addClientIds(DBCollection collection, BasicDBObject query, Set<String> clientIds) {
+		long started = Metrics.start();
+		DBCursor cursor = collection.find(query, new BasicDBObject("client_id", 1));
+		try {
+			while (cursor.hasNext()) {
+				Object clientId = cursor.next().get("client_id");
+				if (clientId != null) {
+					clientIds.add(clientId.toString());
+				}
+			}
+		} finally {
+			cursor.close();
+			Metrics.stop(Metrics.MONGO_FIND, started);
+		}
+	}
+	
+	private static DBCollection getStateCollection() {
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		return mdbUtils.getMongoDbConnection().getCollection(mdbUtils.retrieveCollectionName(MONGO_SWEEP_STATE));
+	}
+	
+	/**
+	 * One pass of the sweep
+	 */
+	public static class Pass {
+		private final String stateId;
+		private final String scope;
+		private final long started;
+		private final List<String> clientIds;
+		private final Set<String> retryClientIds;
+		
+		Pass(String stateId, String scope, long started, List<String> clientIds) {
+			this(stateId, scope, started, clientIds, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+		}
+		
+		private Pass(String stateId, String scope, long started, List<String> clientIds, Set<String> retryClientIds) {
+			this.stateId = stateId;
+			this.scope = scope;
+			this.started = started;
+			this.clientIds = clientIds;
+			this.retryClientIds = retryClientIds;
+		}
+		
+		/**
+		 * Same pass started earlier, i.e by the sweep it resumes after a crash
+		 */
+		Pass startedAt(Date started) {
+			return new Pass(stateId, scope, started.getTime(), clientIds, retryClientIds);
+		}
+		
+		/**
+		 * Marks a client whose check failed, to be checked again by the next pass
+		 */
+		public void retry(String clientId) {
+			retryClientIds.add(clientId);
+		}
+		
+		/**
+		 * Checks whether all the clients have to be checked
+		 */
+		public boolean isFull() {
+			return clientIds == null;
+		}
+		
+		/**
+		 * @return Ids of the clients which changed, null for a full pass
+		 */
+		public List<String> getClientIds() {
+			return clientIds;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.veda.discovery.handler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Runs the checks of a sweep for many clients in parallel.
+ *
+ * At most SWEEP_PARALLELISM clients are checked at a time, either on a fixed
+ * thread pool or, when SWEEP_THREAD_MODE is VIRTUAL and the JVM supports it,
+ * on virtual threads. A client whose checks exceed SWEEP_CLIENT_TIMEOUT is
+ * counted as timed out and its worker is interrupted, a client whose checks
+ * throw is counted as failed; neither affects the other clients.
+ *
+ * A client holds its permit until its worker returns, also after it timed
+ * out, so checks which do not end on the interrupt never run beyond the
+ * parallelism. The sweep waits for them up to another timeout at its end.
+ */
+public class SubscriptionSweeper {
+	
+	private static final String SWEEP_PARALLELISM = "SWEEP_PARALLELISM";
+	private static final String SWEEP_THREAD_MODE = "SWEEP_THREAD_MODE";
+	private static final String SWEEP_CLIENT_TIMEOUT = "SWEEP_CLIENT_TIMEOUT";
+	private static final String THREAD_MODE_VIRTUAL = "VIRTUAL";
+	
+	private static Logger logger = Logger.getLogger(SubscriptionSweeper.class);
+	
+	/**
+	 * Checks of one client
+	 */
+	public interface ClientCheck {
+		/**
+		 * @return true if the poller of the client was stopped
+		 */
+		boolean check(String clientId) throws Exception;
+	}
+	
+	private final int parallelism;
+	private final String threadMode;
+	private final long clientTimeoutMillis;
+	
+	public SubscriptionSweeper() {
+		this(ConfigUtils.getIntProperty(SWEEP_PARALLELISM, Runtime.getRuntime().availableProcessors()),
+			 ConfigUtils.getProperty(SWEEP_THREAD_MODE, "FIXED"),
+			 TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(SWEEP_CLIENT_TIMEOUT, 120)));
+	}
+	
+	public SubscriptionSweeper(int parallelism, String threadMode, long clientTimeoutMillis) {
+		this.parallelism = Math.max(1, parallelism);
+		this.threadMode = threadMode;
+		this.clientTimeoutMillis = clientTimeoutMillis;
+	}
+	
+	/**
+	 * Runs the check for every client and waits for all of them to complete
+	 * or time out
+	 * @param clientIds : Ids of the clients to check
+	 * @param check : checks of one client
+	 * @return report of the sweep
+	 */
+	public SweepReport sweep(Iterable<String> clientIds, ClientCheck check) throws InterruptedException {
+		long start = System.nanoTime();
+		SweepReport report = new SweepReport();
+		Semaphore permits = new Semaphore(parallelism);
+		ExecutorService executor = newExecutor();
+		ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(
+												newThreadFactory("sweep-watchdog"));
+		try {
+			for (String clientId : clientIds) {
+				if (clientId == null) {
+					continue;
+				}
+				permits.acquire();
+				executor.execute(new ClientTask(clientId, check, report, permits, watchdog));
+			}
+			// waits for the clients still in progress, timed out ones get one more timeout to return
+			if (permits.tryAcquire(parallelism, 2 * clientTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				permits.release(parallelism);
+			} else {
+				logger.error((parallelism - permits.availablePermits())
+							 + " sweep checks still running after their timeout, abandoning them");
+			}
+		} finally {
+			executor.shutdownNow();
+			watchdog.shutdownNow();
+		}
+		report.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		logger.info("Subscription sweep completed, " + report);
+		return report;
+	}
+	
+	private ExecutorService newExecutor() {
+		if (THREAD_MODE_VIRTUAL.equalsIgnoreCase(threadMode)) {
+			try {
+				return (ExecutorService) Executors.class
+								.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				logger.warn("Virtual threads are not supported by this JVM, using "
+							+ parallelism + " platform threads for the sweep");
+			}
+		}
+		return Executors.newFixedThreadPool(parallelism, newThreadFactory("sweep-worker"));
+	}
+	
+	private static ThreadFactory newThreadFactory(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	/**
+	 * Checks one client. The outcome is recorded once, by whichever of the
+	 * check and its timeout completes first.
+	 */
+	private class ClientTask implements Runnable {
+		private final String clientId;
+		private final ClientCheck check;
+		private final SweepReport report;
+		private final Semaphore permits;
+		private final ScheduledExecutorService watchdog;
+		private Thread worker;
+		private boolean settled = false;
+		
+		ClientTask(String clientId, ClientCheck check, SweepReport report, Semaphore permits,
+				   ScheduledExecutorService watchdog) {
+			this.clientId = clientId;
+			this.check = check;
+			this.report = report;
+			this.permits = permits;
+			this.watchdog = watchdog;
+		}
+		
+		@Override
+		public void run() {
+			synchronized (this) {
+				worker = Thread.currentThread();
+			}
+			ScheduledFuture<?> timeout = watchdog.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timeOut();
+				}
+			}, clientTimeoutMillis, TimeUnit.MILLISECONDS);
+			try {
+				boolean stopped = check.check(clientId);
+				if (settle()) {
+					report.checked(stopped);
+				}
+			} catch (Exception e) {
+				if (settle()) {
+					report.failed();
+					logger.error("Exception in sweep for clientId : " + clientId, e);
+				}
+			} finally {
+				timeout.cancel(false);
+				synchronized (this) {
+					worker = null;
+				}
+				// clears an interrupt raised by the timeout of this client
+				Thread.interrupted();
+				// only once the worker is done, also after a timeout
+				permits.release();
+			}
+		}
+		
+		private void timeOut() {
+			synchronized (this) {
+				if (!settle()) {
+					return;
+				}
+				// counted before the worker is interrupted, the sweep may return once it is
+				report.timedOut();
+				if (worker != null) {
+					worker.interrupt();
+				}
+			}
+			logger.error("Sweep for clientId : " + clientId + " timed out after "
+						 + clientTimeoutMillis + " ms");
+		}
+		
+		/**
+		 * @return true for the first caller only, which records the outcome
+		 */
+		private synchronized boolean settle() {
+			if (settled) {
+				return false;
+			}
+			settled = true;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,401 @@
+package com.veda.discovery.handler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.veda.discovery.commons.ClientLocks;
+import com.veda.discovery.commons.IndexProvisioner;
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Splits the sweep of {@link CheckSubscription#enquireSubscription()} between
+ * several controller instances. The clients are hashed into
+ * SWEEP_CLUSTER_PARTITIONS partitions, and an instance sweeps only the clients
+ * of the partitions it holds a lease on.
+ *
+ * The leases are documents of the sweep_partitions collection :
+ * {"_id" : partition, "owner" : instance-ID, "expires_at" : date, "token" : n}
+ * Every SWEEP_CLUSTER_HEARTBEAT seconds an instance renews its leases for
+ * SWEEP_CLUSTER_LEASE seconds and its entry in sweep_members. From the no.of
+ * live members it works out its fair share of the partitions, gives back the
+ * ones over it and claims expired or released ones up to it. So an instance
+ * which joins gets its share within two heartbeats, and the partitions of one
+ * which dies are taken over once their leases expire.
+ *
+ * A claim increments the token of the partition, which fences the previous
+ * owner : before it stops the poller of a client, an instance checks that it
+ * still holds the partition with the token it claimed it with, see {@link #fence}.
+ * The lease has to be longer than a heartbeat plus the clock skew between the
+ * instances, an instance stops using a partition one heartbeat before its
+ * lease runs out.
+ *
+ * Usage : java -cp SubscriptionController.jar com.veda.discovery.handler.SweepCluster
+ * runs an instance which sweeps every SWEEP_CLUSTER_SWEEP_INTERVAL seconds.
+ */
+public class SweepCluster {
+	
+	private static final String SWEEP_CLUSTER_ENABLED = "SWEEP_CLUSTER_ENABLED";
+	private static final String SWEEP_CLUSTER_INSTANCE_ID = "SWEEP_CLUSTER_INSTANCE_ID";
+	private static final String SWEEP_CLUSTER_PARTITIONS = "SWEEP_CLUSTER_PARTITIONS";
+	private static final String SWEEP_CLUSTER_LEASE = "SWEEP_CLUSTER_LEASE";
+	private static final String SWEEP_CLUSTER_HEARTBEAT = "SWEEP_CLUSTER_HEARTBEAT";
+	private static final String SWEEP_CLUSTER_SWEEP_INTERVAL = "SWEEP_CLUSTER_SWEEP_INTERVAL";
+	private static final String MONGO_SWEEP_PARTITIONS = "MONGO_SWEEP_PARTITIONS";
+	private static final String MONGO_SWEEP_MEMBERS = "MONGO_SWEEP_MEMBERS";
+	
+	private static Logger logger = Logger.getLogger(SweepCluster.class);
+	
+	private static final boolean ENABLED = ConfigUtils.getBooleanProperty(SWEEP_CLUSTER_ENABLED, false);
+	private static SweepCluster instance;
+	
+	private final String instanceId;
+	private final int partitions;
+	private final long leaseMillis;
+	private final long heartbeatMillis;
+	// partition -> lease this instance holds on it
+	private final ConcurrentMap<Integer, Ownership> owned = new ConcurrentHashMap<Integer, Ownership>();
+	private ScheduledExecutorService heartbeat;
+	
+	/**
+	 * @param instanceId : Id of this instance, unique in the cluster
+	 * @param partitions : no.of partitions, the same on every instance
+	 * @param leaseMillis : time a lease is held without a heartbeat
+	 * @param heartbeatMillis : time between the heartbeats
+	 */
+	public SweepCluster(String instanceId, int partitions, long leaseMillis, long heartbeatMillis) {
+		this.instanceId = instanceId;
+		this.partitions = Math.max(1, partitions);
+		this.leaseMillis = leaseMillis;
+		this.heartbeatMillis = heartbeatMillis;
+	}
+	
+	/**
+	 * Checks whether the sweep is split between several instances
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+	
+	/**
+	 * Gets the instance of this process, which joins the cluster on first use
+	 * and leaves it on shutdown. Only the sweep, see {@link #main}, joins : a
+	 * member takes its share of the partitions and has to sweep them
+	 */
+	public static synchronized SweepCluster getInstance() {
+		if (instance == null) {
+			final SweepCluster cluster = new SweepCluster(
+							ConfigUtils.getProperty(SWEEP_CLUSTER_INSTANCE_ID, ManagementFactory.getRuntimeMXBean().getName()),
+							ConfigUtils.getIntProperty(SWEEP_CLUSTER_PARTITIONS, 64),
+							TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(SWEEP_CLUSTER_LEASE, 30)),
+							TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(SWEEP_CLUSTER_HEARTBEAT, 10)));
+			cluster.start();
+			MongoDbUtils.addShutdownTask(new Runnable() {
+				@Override
+				public void run() {
+					cluster.stop();
+				}
+			});
+			Metrics.addSource(new MetricSource() {
+				@Override
+				public void collect(Map<String, Number> metrics) {
+					metrics.put("sweepCluster.partitions", cluster.owned.size());
+				}
+			});
+			instance = cluster;
+		}
+		return instance;
+	}
+	
+	/**
+	 * Gets the instance of this process if it joined the cluster, without joining it
+	 * @return null if this process does not sweep
+	 */
+	public static synchronized SweepCluster getJoined() {
+		return instance;
+	}
+	
+	/**
+	 * Creates the lease documents of the partitions, runs the first heartbeat
+	 * and schedules the next ones
+	 */
+	public synchronized void start() {
+		if (heartbeat != null) {
+			return;
+		}
+		DBCollection leases = getCollection(MONGO_SWEEP_PARTITIONS);
+		for (int partition = 0; partition < partitions; partition++) {
+			try {
+				leases.update(new BasicDBObject("_id", partition),
+							  new BasicDBObject("$setOnInsert", new BasicDBObject("owner", null)
+													.append("expires_at", new Date(0)).append("token", 0L)),
+							  true, false);
+			} catch (MongoException e) {
+				// another instance created it at the same time
+				logger.debug("Lease of partition " + partition + " already created", e);
+			}
+		}
+		heartbeat();
+		heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "sweep-cluster-heartbeat");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		heartbeat.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				heartbeat();
+			}
+		}, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+		logger.info("Sweep instance " + instanceId + " joined with " + owned.size() + " of "
+					+ partitions + " partitions");
+	}
+	
+	/**
+	 * Stops the heartbeats and gives the partitions back, so that the other
+	 * instances take them over without waiting for the leases to expire
+	 */
+	public synchronized void stop() {
+		if (heartbeat == null) {
+			return;
+		}
+		heartbeat.shutdownNow();
+		try {
+			// a heartbeat in progress could claim partitions after they are given back
+			heartbeat.awaitTermination(heartbeatMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		heartbeat = null;
+		try {
+			for (Integer partition : new ArrayList<Integer>(owned.keySet())) {
+				release(partition);
+			}
+			getCollection(MONGO_SWEEP_MEMBERS).remove(new BasicDBObject("_id", instanceId));
+			logger.info("Sweep instance " + instanceId + " left the cluster");
+		} catch (Exception e) {
+			logger.error("Exception : ", e);
+		}
+	}
+	
+	/**
+	 * Renews the leases of this instance and moves it towards its fair share
+	 * of the partitions
+	 */
+	public void heartbeat() {
+		try {
+			long now = System.currentTimeMillis();
+			Date expiresAt = new Date(now + leaseMillis);
+			DBCollection members = getCollection(MONGO_SWEEP_MEMBERS);
+			members.update(new BasicDBObject("_id", instanceId),
+						   new BasicDBObject("$set", new BasicDBObject("expires_at", expiresAt)), true, false);
+			renew(now, expiresAt);
+			long live = Math.max(1, members.count(new BasicDBObject("expires_at",
+											new BasicDBObject("$gt", new Date(now)))));
+			int share = (int) ((partitions + live - 1) / live);
+			if (owned.size() > share) {
+				List<Integer> extra = new ArrayList<Integer>(owned.keySet()).subList(share, owned.size());
+				for (Integer partition : new ArrayList<Integer>(extra)) {
+					release(partition);
+				}
+			} else if (owned.size() < share) {
+				claim(share - owned.size(), now, expiresAt);
+			}
+		} catch (Exception e) {
+			logger.error("Exception in heartbeat of sweep instance : " + instanceId, e);
+		}
+	}
+	
+	/**
+	 * Extends the leases this instance holds, a lease whose token changed
+	 * was taken over by another instance and is dropped
+	 */
+	private void renew(long now, Date expiresAt) {
+		DBCollection leases = getCollection(MONGO_SWEEP_PARTITIONS);
+		for (Map.Entry<Integer, Ownership> entry : owned.entrySet()) {
+			BasicDBObject query = new BasicDBObject("_id", entry.getKey()).append("owner", instanceId)
+											.append("token", entry.getValue().token);
+			if (leases.update(query, new BasicDBObject("$set", new BasicDBObject("expires_at", expiresAt))).getN() == 0) {
+				owned.remove(entry.getKey());
+				logger.warn("Sweep instance " + instanceId + " lost partition " + entry.getKey());
+			} else {
+				entry.getValue().expiresAt = now + leaseMillis;
+			}
+		}
+	}
+	
+	/**
+	 * Claims expired or released partitions, starting at a different one on
+	 * every instance so that they do not all race for the same
+	 */
+	private void claim(int count, long now, Date expiresAt) {
+		DBCollection leases = getCollection(MONGO_SWEEP_PARTITIONS);
+		Set<Integer> free = new HashSet<Integer>();
+		DBCursor cursor = leases.find(new BasicDBObject("expires_at", new BasicDBObject("$lt", new Date(now))),
+									  new BasicDBObject("_id", 1));
+		try {
+			while (cursor.hasNext()) {
+				free.add(((Number) cursor.next().get("_id")).intValue());
+			}
+		} finally {
+			cursor.close();
+		}
+		int first = ClientLocks.stripe(instanceId, partitions);
+		for (int i = 0; i < partitions && count > 0; i++) {
+			int partition = (first + i) % partitions;
+			if (!free.contains(partition) || owned.containsKey(partition)) {
+				continue;
+			}
+			BasicDBObject query = new BasicDBObject("_id", partition)
+											.append("expires_at", new BasicDBObject("$lt", new Date(now)));
+			BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("owner", instanceId)
+											.append("expires_at", expiresAt))
+											.append("$inc", new BasicDBObject("token", 1L));
+			DBObject claimed = leases.findAndModify(query, null, null, false, update, true, false);
+			if (claimed != null) {
+				owned.put(partition, new Ownership(((Number) claimed.get("token")).longValue(), now + leaseMillis));
+				count--;
+			}
+		}
+	}
+	
+	/**
+	 * Gives a partition back, it can be claimed at once
+	 */
+	private void release(Integer partition) {
+		Ownership ownership = owned.remove(partition);
+		if (ownership == null) {
+			return;
+		}
+		getCollection(MONGO_SWEEP_PARTITIONS).update(
+						new BasicDBObject("_id", partition).append("owner", instanceId).append("token", ownership.token),
+						new BasicDBObject("$set", new BasicDBObject("owner", null).append("expires_at", new Date(0))));
+	}
+	
+	/**
+	 * Maps a client to its partition, the same on every instance
+	 */
+	public int partitionOf(String clientId) {
+		return ClientLocks.stripe(clientId, partitions);
+	}
+	
+	/**
+	 * Checks whether this instance holds the partition of a client, with a
+	 * heartbeat to spare before the lease runs out
+	 * @param clientId : Id of the client
+	 */
+	public boolean owns(String clientId) {
+		Ownership ownership = owned.get(partitionOf(clientId));
+		return ownership != null && System.currentTimeMillis() < ownership.expiresAt - heartbeatMillis;
+	}
+	
+	/**
+	 * Keeps the clients of the partitions this instance holds
+	 * @param clientIds : Ids of all the clients
+	 */
+	public List<String> filterOwned(List<String> clientIds) {
+		List<String> ownedClientIds = new ArrayList<String>();
+		for (String clientId : clientIds) {
+			if (clientId != null && owns(clientId)) {
+				ownedClientIds.add(clientId);
+			}
+		}
+		return ownedClientIds;
+	}
+	
+	/**
+	 * Checks in Mongo that this instance still holds the partition of a
+	 * client with the token it claimed it with, before acting on the client
+	 * @param clientId : Id of the client
+	 * @return false if the partition was taken over, the client is left to its new owner
+	 */
+	public boolean fence(String clientId) {
+		int partition = partitionOf(clientId);
+		Ownership ownership = owned.get(partition);
+		if (ownership == null || !owns(clientId)) {
+			return false;
+		}
+		BasicDBObject query = new BasicDBObject("_id", partition).append("owner", instanceId)
+										.append("token", ownership.token)
+										.append("expires_at", new BasicDBObject("$gt", new Date()));
+		long started = Metrics.start();
+		try {
+			return getCollection(MONGO_SWEEP_PARTITIONS).findOne(query) != null;
+		} finally {
+			Metrics.stop(Metrics.MONGO_FIND_ONE, started);
+		}
+	}
+	
+	public String getInstanceId() {
+		return instanceId;
+	}
+	
+	public Set<Integer> getOwnedPartitions() {
+		return new HashSet<Integer>(owned.keySet());
+	}
+	
+	private static DBCollection getCollection(String collectionName) {
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		return mdbUtils.getMongoDbConnection().getCollection(mdbUtils.retrieveCollectionName(collectionName));
+	}
+	
+	/**
+	 * Lease held on a partition
+	 */
+	private static class Ownership {
+		private final long token;
+		private volatile long expiresAt;
+		
+		Ownership(long token, long expiresAt) {
+			this.token = token;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	public static void main(String[] args) {
+		if (!ENABLED) {
+			logger.error("Set SWEEP_CLUSTER_ENABLED = true to run a sweep instance");
+			return;
+		}
+		long intervalMillis = TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(SWEEP_CLUSTER_SWEEP_INTERVAL, 300));
+		IndexProvisioner.provisionAtStartup();
+		try {
+			getInstance();
+			while (true) {
+				try {
+					new CheckSubscription().enquireSubscription();
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					logger.error("Exception : ", e);
+				}
+				Thread.sleep(intervalMillis);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
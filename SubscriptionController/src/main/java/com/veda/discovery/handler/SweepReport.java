@@ -0,0 +1,78 @@
+package com.veda.discovery.handler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of one sweep over the clients
+ */
+public class SweepReport {
+	
+	private final AtomicInteger clientsChecked = new AtomicInteger();
+	private final AtomicInteger clientsStopped = new AtomicInteger();
+	private final AtomicInteger clientsFailed = new AtomicInteger();
+	private final AtomicInteger clientsTimedOut = new AtomicInteger();
+	private long elapsedMillis;
+	
+	void checked(boolean stopped) {
+		clientsChecked.incrementAndGet();
+		if (stopped) {
+			clientsStopped.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Counts clients which were checked without running a per-client check
+	 */
+	void checkedInBulk(int count) {
+		clientsChecked.addAndGet(count);
+	}
+	
+	void failed() {
+		clientsFailed.incrementAndGet();
+	}
+	
+	void timedOut() {
+		clientsFailed.incrementAndGet();
+		clientsTimedOut.incrementAndGet();
+	}
+	
+	void setElapsedMillis(long elapsedMillis) {
+		this.elapsedMillis = elapsedMillis;
+	}
+	
+	/**
+	 * @return no.of clients for which all the checks completed
+	 */
+	public int getClientsChecked() {
+		return clientsChecked.get();
+	}
+	
+	/**
+	 * @return no.of clients whose pollers were stopped
+	 */
+	public int getClientsStopped() {
+		return clientsStopped.get();
+	}
+	
+	/**
+	 * @return no.of clients whose checks failed or timed out
+	 */
+	public int getClientsFailed() {
+		return clientsFailed.get();
+	}
+	
+	public int getClientsTimedOut() {
+		return clientsTimedOut.get();
+	}
+	
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+	
+	@Override
+	public String toString() {
+		return "checked : " + getClientsChecked() + ", stopped : " + getClientsStopped()
+				+ ", failed : " + getClientsFailed() + " (timed out : " + getClientsTimedOut()
+				+ "), elapsed : " + elapsedMillis + " ms";
+	}
+}
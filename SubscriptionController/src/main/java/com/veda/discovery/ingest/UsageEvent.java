@@ -0,0 +1,117 @@
+package com.veda.discovery.ingest;
+
+/**
+ * Usage of a project reported by a poller, as accepted by the
+ * {@link UsageIngestionServer}. Null counts are not reported, a null event
+ * id is not de-duplicated.
+ */
+public class UsageEvent {
+	
+	private final String clientId;
+	private final String snetId;
+	private final Integer sentencesCount;
+	private final Integer messagesCount;
+	private final Double dpuCount;
+	private final String eventId;
+	// told once the event is analyzed, null if no request waits for it
+	private UsageIngestionServer.Acknowledgement acknowledgement;
+	
+	public UsageEvent(String clientId, String snetId, Integer sentencesCount, Integer messagesCount,
+					  Double dpuCount, String eventId) {
+		this.clientId = clientId;
+		this.snetId = snetId;
+		this.sentencesCount = sentencesCount;
+		this.messagesCount = messagesCount;
+		this.dpuCount = dpuCount;
+		this.eventId = eventId;
+	}
+	
+	/**
+	 * Parses an event line : client_id,snet_id,sentences,messages,dpu[,event_id]
+	 * where an empty count is not reported, i.e "52c7aa334c31b4e1ce6f93d9,Politics2014,120,40,"
+	 * @throws IllegalArgumentException if the line is malformed
+	 */
+	public static UsageEvent parse(String line) {
+		String[] fields = line.split(",", -1);
+		if (fields.length < 5 || fields.length > 6 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty()) {
+			throw new IllegalArgumentException("Expected client_id,snet_id,sentences,messages,dpu[,event_id] : " + line);
+		}
+		String eventId = fields.length == 6 && !fields[5].trim().isEmpty() ? fields[5].trim() : null;
+		try {
+			return new UsageEvent(fields[0].trim(), fields[1].trim(), parseInteger(fields[2]),
+								  parseInteger(fields[3]), parseDouble(fields[4]), eventId);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid count in : " + line, e);
+		}
+	}
+	
+	/**
+	 * Merges a later event of the same project into this one. Counts are
+	 * summed, the dpu of the later event replaces this one if reported. The
+	 * merged event has no id, the ids are checked before merging.
+	 */
+	UsageEvent merge(UsageEvent later) {
+		return new UsageEvent(clientId, snetId, sum(sentencesCount, later.sentencesCount),
+							  sum(messagesCount, later.messagesCount),
+							  later.dpuCount != null ? later.dpuCount : dpuCount, null);
+	}
+	
+	/**
+	 * Lets a request wait until the event is analyzed, to be set before it is queued
+	 */
+	void awaitedBy(UsageIngestionServer.Acknowledgement acknowledgement) {
+		this.acknowledgement = acknowledgement;
+	}
+	
+	/**
+	 * Marks the event analyzed, i.e written, journaled or dead-lettered
+	 */
+	void markAnalyzed() {
+		if (acknowledgement != null) {
+			acknowledgement.analyzed();
+		}
+	}
+	
+	String projectKey() {
+		return clientId + "|" + snetId;
+	}
+	
+	private static Integer sum(Integer count, Integer later) {
+		if (count == null) {
+			return later;
+		}
+		return later == null ? count : count + later;
+	}
+	
+	private static Integer parseInteger(String value) {
+		return value.trim().isEmpty() ? null : Integer.valueOf(value.trim());
+	}
+	
+	private static Double parseDouble(String value) {
+		return value.trim().isEmpty() ? null : Double.valueOf(value.trim());
+	}
+	
+	public String getClientId() {
+		return clientId;
+	}
+	
+	public String getSnetId() {
+		return snetId;
+	}
+	
+	public Integer getSentencesCount() {
+		return sentencesCount;
+	}
+	
+	public Integer getMessagesCount() {
+		return messagesCount;
+	}
+	
+	public Double getDpuCount() {
+		return dpuCount;
+	}
+	
+	public String getEventId() {
+		return eventId;
+	}
+}
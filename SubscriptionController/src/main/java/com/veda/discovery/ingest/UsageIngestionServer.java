@@ -0,0 +1,379 @@
+package com.veda.discovery.ingest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.veda.discovery.commons.IndexProvisioner;
+import com.veda.discovery.usageStats.QuotaLeaseAllocator;
+import com.veda.discovery.usageStats.UsageStatsBuffer;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Long running endpoint for the pollers, so that reporting usage no longer
+ * waits for the Mongo round trips of {@link com.veda.discovery.usageStats.UsageStats}.
+ *
+ * POST /usage takes one event per line, see {@link UsageEvent#parse}. Events
+ * with an event id are de-duplicated, so a retried request does not count twice. It
+ * answers once the queued events are analyzed, i.e written, journaled or
+ * dead-lettered, or after INGEST_ACK_TIMEOUT seconds :
+ * 200 {"accepted" : n} all events are analyzed. They survive a restart, unless
+ *     the write-behind buffer runs without USAGE_JOURNAL_ENABLED
+ * 202 {"accepted" : n} all events are queued, not all of them analyzed in time.
+ *     They are lost if the process dies, so the poller keeps them and sends them
+ *     again with the same event ids until it gets a 200
+ * 503 {"accepted" : n, "rejected" : m, "analyzed" : true|false} the queue is full,
+ *     the first n events are queued and the last m have to be sent again after
+ *     Retry-After seconds
+ * 400 a line is malformed, none of the events are queued
+ *
+ * A request does not hold an HTTP thread while its events are analyzed, the
+ * HTTP threads only read the requests and write the answers, so a few threads
+ * serve many pollers waiting at once.
+ *
+ * GET /health answers 200 while the server accepts events.
+ *
+ * With QUOTA_LEASE_ENABLED, POST /lease?clientId=..&holderId=.. grants a poller
+ * its quota lease, see {@link QuotaLeaseAllocator}. To renew it the poller adds
+ * &leaseId=..&usedSentences=..&usedCredits=.., and &release=true to give it back.
+ * 200 {"leaseId" : .., "sentences" : n, "credits" : x, "expiresAt" : millis}
+ *     a null leaseId is an empty lease, the poller has to stop
+ * 503 the subscription could not be read, the current lease stays valid
+ * 400 the clientId is missing or the query is malformed
+ *
+ * Usage : java -cp SubscriptionController.jar com.veda.discovery.ingest.UsageIngestionServer
+ */
+public class UsageIngestionServer {
+	
+	private static final String INGEST_BIND_ADDRESS = "INGEST_BIND_ADDRESS";
+	private static final String INGEST_PORT = "INGEST_PORT";
+	private static final String INGEST_HTTP_THREADS = "INGEST_HTTP_THREADS";
+	private static final String INGEST_QUEUE_CAPACITY = "INGEST_QUEUE_CAPACITY";
+	private static final String INGEST_WORKERS = "INGEST_WORKERS";
+	private static final String INGEST_BATCH_SIZE = "INGEST_BATCH_SIZE";
+	private static final String INGEST_DRAIN_TIMEOUT = "INGEST_DRAIN_TIMEOUT";
+	private static final String INGEST_ACK_TIMEOUT = "INGEST_ACK_TIMEOUT";
+	private static final String RETRY_AFTER_SECONDS = "1";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static Logger logger = Logger.getLogger(UsageIngestionServer.class);
+	
+	private final UsagePipeline pipeline;
+	private final HttpServer server;
+	private final ExecutorService httpExecutor;
+	// answers the requests whose events are not all analyzed in time
+	private final ScheduledExecutorService ackTimer;
+	private final long ackTimeoutMillis;
+	
+	/**
+	 * @param address : address and port to listen on
+	 * @param httpThreads : no.of threads reading the requests
+	 * @param ackTimeoutMillis : longest time a request waits for its events to be analyzed
+	 */
+	public UsageIngestionServer(InetSocketAddress address, int httpThreads, long ackTimeoutMillis,
+								UsagePipeline pipeline) throws IOException {
+		this.pipeline = pipeline;
+		this.ackTimeoutMillis = ackTimeoutMillis;
+		this.server = HttpServer.create(address, 0);
+		this.httpExecutor = Executors.newFixedThreadPool(httpThreads);
+		this.ackTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "usage-ack-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(httpExecutor);
+		server.createContext("/usage", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleUsage(exchange);
+			}
+		});
+		if (QuotaLeaseAllocator.isEnabled()) {
+			server.createContext("/lease", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					handleLease(exchange);
+				}
+			});
+		}
+		server.createContext("/health", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, "{\"queued\" : " + UsageIngestionServer.this.pipeline.getQueuedCount() + "}");
+			}
+		});
+	}
+	
+	public void start() {
+		pipeline.start();
+		server.start();
+		logger.info("Usage ingestion listening on " + server.getAddress());
+	}
+	
+	/**
+	 * Stops taking requests, then analyzes the queued events
+	 * @param drainTimeoutMillis : longest time to wait for the queued events
+	 */
+	public void stop(long drainTimeoutMillis) {
+		server.stop(0);
+		httpExecutor.shutdown();
+		ackTimer.shutdownNow();
+		int unprocessed = pipeline.drain(drainTimeoutMillis);
+		if (unprocessed > 0) {
+			logger.error("Usage ingestion stopped with " + unprocessed + " events not analyzed");
+		} else {
+			logger.info("Usage ingestion stopped, all queued events analyzed");
+		}
+	}
+	
+	private void handleUsage(HttpExchange exchange) throws IOException {
+		if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			respond(exchange, 405, "{\"error\" : \"POST expected\"}");
+			return;
+		}
+		List<UsageEvent> events = new ArrayList<UsageEvent>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), UTF_8));
+		try {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				try {
+					events.add(UsageEvent.parse(line));
+				} catch (IllegalArgumentException e) {
+					respond(exchange, 400, "{\"error\" : \"malformed line " + lineNumber + "\"}");
+					return;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		Acknowledgement acknowledgement = new Acknowledgement(exchange, events.size());
+		int accepted = 0;
+		for (UsageEvent event : events) {
+			event.awaitedBy(acknowledgement);
+			if (!pipeline.offer(event)) {
+				break;
+			}
+			accepted++;
+		}
+		// answered later, from the worker analyzing the last event or from the timer
+		acknowledgement.queued(accepted);
+	}
+	
+	/**
+	 * Answer of a POST /usage, sent once its queued events are analyzed or
+	 * INGEST_ACK_TIMEOUT after they were queued, whichever comes first. The
+	 * answer is written on an HTTP thread, not on the thread which triggers it.
+	 */
+	final class Acknowledgement {
+		
+		private final HttpExchange exchange;
+		private final int eventCount;
+		// events not analyzed yet, plus one released once all the events are offered
+		private final AtomicInteger remaining;
+		private final AtomicBoolean answered = new AtomicBoolean();
+		private volatile int accepted;
+		private volatile ScheduledFuture<?> timeout;
+		
+		Acknowledgement(HttpExchange exchange, int eventCount) {
+			this.exchange = exchange;
+			this.eventCount = eventCount;
+			this.remaining = new AtomicInteger(eventCount + 1);
+		}
+		
+		/**
+		 * Called once the events are offered, the first ones accepted
+		 */
+		void queued(int accepted) {
+			this.accepted = accepted;
+			for (int i = accepted; i < eventCount; i++) {
+				// only the queued events are waited for
+				analyzed();
+			}
+			timeout = ackTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					answer(false);
+				}
+			}, ackTimeoutMillis, TimeUnit.MILLISECONDS);
+			analyzed();
+		}
+		
+		/**
+		 * Called once for each event, answers after the last one
+		 */
+		void analyzed() {
+			if (remaining.decrementAndGet() == 0) {
+				answer(true);
+			}
+		}
+		
+		private void answer(final boolean allAnalyzed) {
+			if (!answered.compareAndSet(false, true)) {
+				return;
+			}
+			ScheduledFuture<?> pending = timeout;
+			if (pending != null) {
+				pending.cancel(false);
+			}
+			try {
+				httpExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						write(allAnalyzed);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the server is stopping
+				exchange.close();
+			}
+		}
+		
+		private void write(boolean allAnalyzed) {
+			try {
+				if (accepted < eventCount) {
+					// the events are offered in order, so the rejected ones are the last lines
+					exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+					respond(exchange, 503, "{\"accepted\" : " + accepted + ", \"rejected\" : " + (eventCount - accepted)
+										   + ", \"analyzed\" : " + allAnalyzed + "}");
+				} else {
+					respond(exchange, allAnalyzed ? 200 : 202, "{\"accepted\" : " + accepted + "}");
+				}
+			} catch (IOException e) {
+				logger.error("Exception in answering usage request : ", e);
+				exchange.close();
+			}
+		}
+	}
+	
+	private void handleLease(HttpExchange exchange) throws IOException {
+		if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			respond(exchange, 405, "{\"error\" : \"POST expected\"}");
+			return;
+		}
+		Map<String, String> params;
+		long usedSentences;
+		double usedCredits;
+		try {
+			params = parseQuery(exchange.getRequestURI().getRawQuery());
+			usedSentences = params.containsKey("usedSentences") ? Long.parseLong(params.get("usedSentences")) : 0;
+			usedCredits = params.containsKey("usedCredits") ? Double.parseDouble(params.get("usedCredits")) : 0.0;
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, "{\"error\" : \"malformed query\"}");
+			return;
+		}
+		String clientId = params.get("clientId");
+		String leaseId = params.get("leaseId");
+		if (clientId == null) {
+			respond(exchange, 400, "{\"error\" : \"clientId expected\"}");
+			return;
+		}
+		QuotaLeaseAllocator allocator = QuotaLeaseAllocator.getInstance();
+		if (Boolean.parseBoolean(params.get("release"))) {
+			allocator.release(clientId, leaseId, usedSentences, usedCredits);
+			respond(exchange, 200, "{\"released\" : true}");
+			return;
+		}
+		QuotaLeaseAllocator.Lease lease = allocator.renew(clientId, params.get("holderId"), leaseId,
+														  usedSentences, usedCredits);
+		if (lease == null) {
+			exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+			respond(exchange, 503, "{\"error\" : \"subscription unavailable\"}");
+			return;
+		}
+		respond(exchange, 200, "{\"leaseId\" : " + (lease.isEmpty() ? "null" : "\"" + lease.getLeaseId() + "\"")
+							   + ", \"sentences\" : " + (lease.isEmpty() ? 0 : lease.getSentences())
+							   + ", \"credits\" : " + (lease.isEmpty() ? 0.0 : lease.getCredits())
+							   + ", \"expiresAt\" : " + lease.getExpiresAt() + "}");
+	}
+	
+	private static Map<String, String> parseQuery(String query) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			int separator = pair.indexOf('=');
+			if (separator > 0) {
+				params.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+						   URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+			}
+		}
+		return params;
+	}
+	
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+	
+	public static void main(String[] args) {
+		// before the first event can arrive
+		IndexProvisioner.provisionAtStartup();
+		try {
+			UsagePipeline pipeline = new UsagePipeline(ConfigUtils.getIntProperty(INGEST_QUEUE_CAPACITY, 100000),
+													   ConfigUtils.getIntProperty(INGEST_WORKERS, 8),
+													   ConfigUtils.getIntProperty(INGEST_BATCH_SIZE, 500));
+			final UsageIngestionServer ingestionServer = new UsageIngestionServer(
+							new InetSocketAddress(ConfigUtils.getProperty(INGEST_BIND_ADDRESS, "127.0.0.1"),
+												  ConfigUtils.getIntProperty(INGEST_PORT, 8095)),
+							ConfigUtils.getIntProperty(INGEST_HTTP_THREADS, 4),
+							TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(INGEST_ACK_TIMEOUT, 5)), pipeline);
+			if (UsageStatsBuffer.isEnabled()) {
+				// registers the buffer flush first, shutdown tasks run in reverse order so the
+				// queued events reach the buffer before it is flushed
+				UsageStatsBuffer.getInstance();
+			}
+			final long drainTimeoutMillis = TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(INGEST_DRAIN_TIMEOUT, 30));
+			MongoDbUtils.addShutdownTask(new Runnable() {
+				@Override
+				public void run() {
+					ingestionServer.stop(drainTimeoutMillis);
+				}
+			});
+			ingestionServer.start();
+		} catch (Exception e) {
+			logger.error("Exception in starting usage ingestion : ", e);
+			MongoDbUtils.shutdown();
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package com.veda.discovery.ingest;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.BasicDBObject;
+import com.veda.discovery.commons.ClientLocks;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.usageStats.UsageDocuments;
+import com.veda.discovery.usageStats.UsageEventDeduplicator;
+import com.veda.discovery.usageStats.UsageStats;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Bounded lanes of accepted usage events, each processed by its own worker
+ * thread. All events of a client go to the same lane, so they are analyzed
+ * one after another in the order they were accepted, while the clients of
+ * different lanes run in parallel. A worker takes up to a batch of events
+ * of its lane at a time and merges the events of the same project before
+ * handing them to {@link UsageStats#analyzeSubscription}, so a busy project
+ * costs one subscription check and one upsert per batch instead of one per event.
+ *
+ * A full lane rejects events instead of blocking the caller, which is
+ * the backpressure signal passed on to the pollers. The capacity is split
+ * evenly between the lanes, so a single busy client cannot take the room
+ * of the others.
+ *
+ * The usage of a project which cannot be analyzed is retried up to
+ * INGEST_MAX_ATTEMPTS times, the later events of the lane waiting meanwhile,
+ * and is then kept in the usage dead letters to be checked and written by hand.
+ * All the attempts write under the same id, so an attempt which failed after
+ * its write went through is not counted again by the next one, and the dead
+ * letter keeps the id for the write by hand.
+ */
+public class UsagePipeline {
+	
+	private static final long POLL_MILLIS = 100;
+	private static final String INGEST_MAX_ATTEMPTS = "INGEST_MAX_ATTEMPTS";
+	private static final String INGEST_RETRY_DELAY = "INGEST_RETRY_DELAY";
+	
+	private static AsyncLog logger = AsyncLog.getLog(UsagePipeline.class);
+	
+	private final List<BlockingQueue<UsageEvent>> lanes = new ArrayList<BlockingQueue<UsageEvent>>();
+	private final int batchSize;
+	private final int maxAttempts = Math.max(1, ConfigUtils.getIntProperty(INGEST_MAX_ATTEMPTS, 3));
+	private final long retryDelayMillis = ConfigUtils.getLongProperty(INGEST_RETRY_DELAY, 500);
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private volatile boolean accepting = true;
+	private volatile boolean running = true;
+	
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong processedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong deadLetterCount = new AtomicLong();
+	
+	/**
+	 * @param capacity : no.of events which can wait to be processed, over all lanes
+	 * @param workerCount : no.of lanes, each with one worker thread
+	 * @param batchSize : most events a worker takes at a time
+	 */
+	public UsagePipeline(int capacity, int workerCount, int batchSize) {
+		this.batchSize = batchSize;
+		int laneCapacity = Math.max(1, capacity / workerCount);
+		for (int i = 0; i < workerCount; i++) {
+			final BlockingQueue<UsageEvent> lane = new ArrayBlockingQueue<UsageEvent>(laneCapacity);
+			lanes.add(lane);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runWorker(lane);
+				}
+			}, "usage-ingest-worker-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+		}
+		Metrics.addSource(new MetricSource() {
+			@Override
+			public void collect(Map<String, Number> metrics) {
+				metrics.put("ingest.accepted", acceptedCount.get());
+				metrics.put("ingest.rejected", rejectedCount.get());
+				metrics.put("ingest.processed", processedCount.get());
+				metrics.put("ingest.failed", failedCount.get());
+				metrics.put("ingest.duplicates", duplicateCount.get());
+				metrics.put("ingest.deadLettered", deadLetterCount.get());
+				metrics.put("ingest.queued", getQueuedCount());
+			}
+		});
+	}
+	
+	public void start() {
+		for (Thread worker : workers) {
+			worker.start();
+		}
+	}
+	
+	/**
+	 * Queues an event in the lane of its client without waiting
+	 * @return false if the lane is full or the pipeline is draining
+	 */
+	public boolean offer(UsageEvent event) {
+		BlockingQueue<UsageEvent> lane = lanes.get(ClientLocks.stripe(event.getClientId(), lanes.size()));
+		if (accepting && lane.offer(event)) {
+			acceptedCount.incrementAndGet();
+			return true;
+		}
+		rejectedCount.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Stops accepting events and waits for the queued ones to be processed
+	 * @param timeoutMillis : longest time to wait
+	 * @return no.of events left unprocessed
+	 */
+	public int drain(long timeoutMillis) {
+		accepting = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			while (getUnprocessedCount() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(POLL_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		running = false;
+		return (int) getUnprocessedCount();
+	}
+	
+	/**
+	 * Gets the no.of accepted events which are queued or being processed
+	 */
+	public long getUnprocessedCount() {
+		return acceptedCount.get() - processedCount.get();
+	}
+	
+	public int getQueuedCount() {
+		int queued = 0;
+		for (BlockingQueue<UsageEvent> lane : lanes) {
+			queued += lane.size();
+		}
+		return queued;
+	}
+	
+	public int getRemainingCapacity() {
+		int remaining = 0;
+		for (BlockingQueue<UsageEvent> lane : lanes) {
+			remaining += lane.remainingCapacity();
+		}
+		return remaining;
+	}
+	
+	private void runWorker(BlockingQueue<UsageEvent> queue) {
+		List<UsageEvent> batch = new ArrayList<UsageEvent>(batchSize);
+		while (running) {
+			try {
+				UsageEvent first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				queue.drainTo(batch, batchSize - 1);
+				Set<String> lost = null;
+				try {
+					lost = process(batch);
+				} finally {
+					processedCount.addAndGet(batch.size());
+					if (lost != null) {
+						for (UsageEvent event : batch) {
+							if (!lost.contains(event.projectKey())) {
+								event.markAnalyzed();
+							}
+						}
+					}
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Drops the duplicate events of a batch, merges the events of each project
+	 * and analyzes them in the order the projects were first seen
+	 * @return keys of the projects whose usage could neither be analyzed nor dead-lettered
+	 */
+	private Set<String> process(List<UsageEvent> batch) {
+		Set<String> lost = new HashSet<String>();
+		boolean deduplicate = UsageEventDeduplicator.isEnabled();
+		Map<String, UsageEvent> byProject = new LinkedHashMap<String, UsageEvent>();
+		// project key -> ids of the events merged into it
+		Map<String, List<String>> eventIds = new HashMap<String, List<String>>();
+		for (UsageEvent event : batch) {
+			String key = event.projectKey();
+			if (deduplicate && event.getEventId() != null) {
+				// checked one by one, a merged event has no id
+				if (!UsageEventDeduplicator.getInstance().accept(event.getClientId(), event.getEventId())) {
+					duplicateCount.incrementAndGet();
+					continue;
+				}
+				List<String> ids = eventIds.get(key);
+				if (ids == null) {
+					ids = new ArrayList<String>();
+					eventIds.put(key, ids);
+				}
+				ids.add(event.getEventId());
+			}
+			UsageEvent earlier = byProject.get(key);
+			byProject.put(key, earlier == null ? event : earlier.merge(event));
+		}
+		UsageStats usageStats = new UsageStats();
+		for (Map.Entry<String, UsageEvent> project : byProject.entrySet()) {
+			UsageEvent event = project.getValue();
+			String opId = UsageDocuments.newOpId();
+			Exception error = analyze(usageStats, event, opId);
+			if (error != null) {
+				failedCount.incrementAndGet();
+				List<String> ids = eventIds.get(project.getKey());
+				if (!deadLetter(event, ids, opId, error)) {
+					releaseEventIds(event.getClientId(), ids);
+					lost.add(project.getKey());
+				}
+			}
+		}
+		return lost;
+	}
+	
+	/**
+	 * Analyzes the usage of a project, retrying with a doubling delay
+	 * @param opId : Id of the write, shared by all the attempts
+	 * @return exception of the last attempt, null if the usage was analyzed
+	 */
+	private Exception analyze(UsageStats usageStats, UsageEvent event, String opId) {
+		long delayMillis = retryDelayMillis;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				usageStats.analyzeSubscription(event.getClientId(), event.getSnetId(),
+								event.getSentencesCount(), event.getMessagesCount(), event.getDpuCount(),
+								null, opId);
+				return null;
+			} catch (Exception e) {
+				logger.errorSampled("Exception in analyzing usage of snetId : {}", event.getSnetId(), e);
+				if (attempt >= maxAttempts) {
+					return e;
+				}
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException interrupted) {
+					// the worker stops after this batch
+					Thread.currentThread().interrupt();
+					return e;
+				}
+				delayMillis *= 2;
+			}
+		}
+	}
+	
+	/**
+	 * Keeps the usage of a project which could not be analyzed in the usage
+	 * dead letters, with the ids of its events and of its write
+	 * @return false if it could not be kept either
+	 */
+	private boolean deadLetter(UsageEvent event, List<String> ids, String opId, Exception error) {
+		BasicDBObject deadLetter = new BasicDBObject("client_id", event.getClientId())
+						.append("snet_id", event.getSnetId())
+						.append("sentences_count", event.getSentencesCount())
+						.append("messages_count", event.getMessagesCount()).append("dpu", event.getDpuCount())
+						.append("event_ids", ids).append("op_id", opId).append("attempts", maxAttempts)
+						.append("error", String.valueOf(error)).append("failed_at", new Date());
+		long started = Metrics.start();
+		try {
+			UsageDocuments.getDeadLettersCollection(new MongoDbUtils()).insert(deadLetter);
+			deadLetterCount.incrementAndGet();
+			logger.error("Usage of snetId : {} not analyzed, moved to the dead letters", event.getSnetId());
+			return true;
+		} catch (Exception e) {
+			logger.error("Exception in dead-lettering usage, usage is lost : {}", deadLetter, e);
+			return false;
+		} finally {
+			Metrics.stop(Metrics.MONGO_INSERT, started);
+		}
+	}
+	
+	/**
+	 * Lets the retries of events which could not be analyzed through
+	 */
+	private void releaseEventIds(String clientId, List<String> ids) {
+		if (ids != null) {
+			for (String id : ids) {
+				UsageEventDeduplicator.getInstance().release(clientId, id);
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package com.veda.discovery.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Logger for the hot paths. The level is checked before anything is built,
+ * messages are formatted from their {} placeholders on the writer thread of
+ * a {@link LogRingBuffer}, and the log4j event keeps the time and thread of
+ * the caller. Callers never wait for the appenders; when the ring is full
+ * the event is dropped and counted.
+ *
+ * Arguments are converted with toString() on the writer thread and must not
+ * be changed after they are logged. Repetitive events can be logged with the
+ * Sampled methods, which write the first and then every LOG_SAMPLE_RATE-th
+ * occurrence of a format.
+ *
+ * With LOG_ASYNC_ENABLED = false the events are written on the calling thread.
+ */
+public final class AsyncLog {
+	
+	private static final String LOG_ASYNC_ENABLED = "LOG_ASYNC_ENABLED";
+	private static final String LOG_RING_BUFFER_SIZE = "LOG_RING_BUFFER_SIZE";
+	private static final String LOG_SAMPLE_RATE = "LOG_SAMPLE_RATE";
+	private static final String LOG_DRAIN_TIMEOUT = "LOG_DRAIN_TIMEOUT";
+	
+	private static final LogRingBuffer ring;
+	private static final long sampleRate = Math.max(1, ConfigUtils.getLongProperty(LOG_SAMPLE_RATE, 100));
+	// format -> no.of occurrences of a sampled event
+	private static final ConcurrentMap<String, AtomicLong> occurrences =
+								new ConcurrentHashMap<String, AtomicLong>();
+	
+	static {
+		if (ConfigUtils.getBooleanProperty(LOG_ASYNC_ENABLED, true)) {
+			ring = new LogRingBuffer(ConfigUtils.getIntProperty(LOG_RING_BUFFER_SIZE, 8192));
+			final long drainTimeout = ConfigUtils.getLongProperty(LOG_DRAIN_TIMEOUT, 2000);
+			Runtime.getRuntime().addShutdownHook(new Thread("async-log-shutdown") {
+				@Override
+				public void run() {
+					ring.drain(drainTimeout);
+					ring.stop();
+				}
+			});
+			Metrics.addSource(new MetricSource() {
+				@Override
+				public void collect(Map<String, Number> metrics) {
+					metrics.put("log.dropped", ring.getDroppedCount());
+					metrics.put("log.pending", ring.getPendingCount());
+				}
+			});
+		} else {
+			ring = null;
+		}
+	}
+	
+	private final Logger logger;
+	
+	private AsyncLog(Logger logger) {
+		this.logger = logger;
+	}
+	
+	public static AsyncLog getLog(Class<?> clazz) {
+		return new AsyncLog(Logger.getLogger(clazz));
+	}
+	
+	public boolean isDebugEnabled() {
+		return logger.isDebugEnabled();
+	}
+	
+	public void debug(String format) {
+		log(Level.DEBUG, format, 0, null, null, null, null, 0);
+	}
+	
+	public void debug(String format, Object arg0) {
+		log(Level.DEBUG, format, 1, arg0, null, null, null, 0);
+	}
+	
+	public void debug(String format, Object arg0, Object arg1) {
+		log(Level.DEBUG, format, 2, arg0, arg1, null, null, 0);
+	}
+	
+	public void info(String format) {
+		log(Level.INFO, format, 0, null, null, null, null, 0);
+	}
+	
+	public void info(String format, Object arg0) {
+		log(Level.INFO, format, 1, arg0, null, null, null, 0);
+	}
+	
+	public void info(String format, Object arg0, Object arg1) {
+		log(Level.INFO, format, 2, arg0, arg1, null, null, 0);
+	}
+	
+	public void info(String format, Object arg0, Object arg1, Object arg2) {
+		log(Level.INFO, format, 3, arg0, arg1, arg2, null, 0);
+	}
+	
+	public void warn(String format) {
+		log(Level.WARN, format, 0, null, null, null, null, 0);
+	}
+	
+	public void warn(String format, Object arg0) {
+		log(Level.WARN, format, 1, arg0, null, null, null, 0);
+	}
+	
+	public void warn(String format, Object arg0, Object arg1) {
+		log(Level.WARN, format, 2, arg0, arg1, null, null, 0);
+	}
+	
+	public void error(String format) {
+		log(Level.ERROR, format, 0, null, null, null, null, 0);
+	}
+	
+	public void error(String format, Throwable throwable) {
+		log(Level.ERROR, format, 0, null, null, null, throwable, 0);
+	}
+	
+	public void error(String format, Object arg0) {
+		log(Level.ERROR, format, 1, arg0, null, null, null, 0);
+	}
+	
+	public void error(String format, Object arg0, Object arg1) {
+		log(Level.ERROR, format, 2, arg0, arg1, null, null, 0);
+	}
+	
+	public void error(String format, Object arg0, Object arg1, Object arg2) {
+		log(Level.ERROR, format, 3, arg0, arg1, arg2, null, 0);
+	}
+	
+	public void error(String format, Object arg0, Throwable throwable) {
+		log(Level.ERROR, format, 1, arg0, null, null, throwable, 0);
+	}
+	
+	public void error(String format, Object arg0, Object arg1, Throwable throwable) {
+		log(Level.ERROR, format, 2, arg0, arg1, null, throwable, 0);
+	}
+	
+	/**
+	 * Logs the first and every LOG_SAMPLE_RATE-th occurrence of the format
+	 */
+	public void infoSampled(String format, Object arg0) {
+		if (logger.isEnabledFor(Level.INFO)) {
+			long suppressed = sample(format);
+			if (suppressed >= 0) {
+				log(Level.INFO, format, 1, arg0, null, null, null, suppressed);
+			}
+		}
+	}
+	
+	/**
+	 * Logs the first and every LOG_SAMPLE_RATE-th occurrence of the format
+	 */
+	public void errorSampled(String format, Object arg0, Throwable throwable) {
+		if (logger.isEnabledFor(Level.ERROR)) {
+			long suppressed = sample(format);
+			if (suppressed >= 0) {
+				log(Level.ERROR, format, 1, arg0, null, null, throwable, suppressed);
+			}
+		}
+	}
+	
+	/**
+	 * Counts an occurrence of a sampled format
+	 * @return no.of occurrences suppressed since the last one logged,
+	 * or -1 if this one is suppressed
+	 */
+	private static long sample(String format) {
+		AtomicLong count = occurrences.get(format);
+		if (count == null) {
+			occurrences.putIfAbsent(format, new AtomicLong());
+			count = occurrences.get(format);
+		}
+		long occurrence = count.getAndIncrement();
+		if (occurrence % sampleRate != 0) {
+			return -1;
+		}
+		return occurrence == 0 ? 0 : sampleRate - 1;
+	}
+	
+	private void log(Level level, String format, int argCount, Object arg0, Object arg1, Object arg2,
+					 Throwable throwable, long suppressed) {
+		if (!logger.isEnabledFor(level)) {
+			return;
+		}
+		if (ring == null) {
+			LogEvent event = new LogEvent();
+			event.set(logger, level, format, argCount, arg0, arg1, arg2, throwable, suppressed);
+			logger.log(level, event.formatMessage(), throwable);
+			return;
+		}
+		long sequence = ring.claim();
+		if (sequence < 0) {
+			return;
+		}
+		ring.slot(sequence).set(logger, level, format, argCount, arg0, arg1, arg2, throwable, suppressed);
+		ring.publish(sequence);
+	}
+}
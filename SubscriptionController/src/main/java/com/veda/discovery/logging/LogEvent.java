@@ -0,0 +1,76 @@
+package com.veda.discovery.logging;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Slot of the {@link LogRingBuffer}. Slots are allocated once and reused,
+ * the message is only formatted when the event is written.
+ */
+final class LogEvent {
+	
+	// sequence the slot is published for, read by the writer thread
+	volatile long publishedSequence = -1;
+	
+	Logger logger;
+	Level level;
+	long timestamp;
+	String threadName;
+	String format;
+	int argCount;
+	Object arg0;
+	Object arg1;
+	Object arg2;
+	Throwable throwable;
+	long suppressed;
+	
+	void set(Logger logger, Level level, String format, int argCount, Object arg0, Object arg1,
+			 Object arg2, Throwable throwable, long suppressed) {
+		this.logger = logger;
+		this.level = level;
+		this.timestamp = System.currentTimeMillis();
+		this.threadName = Thread.currentThread().getName();
+		this.format = format;
+		this.argCount = argCount;
+		this.arg0 = arg0;
+		this.arg1 = arg1;
+		this.arg2 = arg2;
+		this.throwable = throwable;
+		this.suppressed = suppressed;
+	}
+	
+	/**
+	 * Drops the references so that logged objects can be collected
+	 */
+	void clear() {
+		logger = null;
+		level = null;
+		threadName = null;
+		format = null;
+		arg0 = null;
+		arg1 = null;
+		arg2 = null;
+		throwable = null;
+	}
+	
+	/**
+	 * Replaces each {} of the format with the next argument
+	 */
+	String formatMessage() {
+		StringBuilder message = new StringBuilder(format.length() + 32);
+		int start = 0;
+		int arg = 0;
+		int index;
+		while (arg < argCount && (index = format.indexOf("{}", start)) >= 0) {
+			message.append(format, start, index);
+			message.append(String.valueOf(arg == 0 ? arg0 : (arg == 1 ? arg1 : arg2)));
+			start = index + 2;
+			arg++;
+		}
+		message.append(format, start, format.length());
+		if (suppressed > 0) {
+			message.append(" (").append(suppressed).append(" similar suppressed)");
+		}
+		return message.toString();
+	}
+}
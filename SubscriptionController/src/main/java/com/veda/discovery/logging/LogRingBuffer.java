@@ -0,0 +1,130 @@
+package com.veda.discovery.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Bounded ring of preallocated {@link LogEvent} slots, filled by any number
+ * of threads and written to log4j by a single daemon thread.
+ *
+ * A thread claims the next sequence with one CAS, fills the slot and
+ * publishes it. When the writer is a whole ring behind, the event is dropped
+ * and counted instead of blocking the caller.
+ */
+final class LogRingBuffer {
+	
+	private static final String FQCN = AsyncLog.class.getName();
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	
+	private final LogEvent[] slots;
+	private final int mask;
+	// next sequence to claim
+	private final AtomicLong claimed = new AtomicLong();
+	// next sequence to write, only advanced by the writer thread
+	private volatile long written = 0;
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final Thread writer;
+	private volatile boolean running = true;
+	
+	/**
+	 * @param capacity : no.of slots, rounded up to a power of two
+	 */
+	LogRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		slots = new LogEvent[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new LogEvent();
+		}
+		mask = size - 1;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "async-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Claims the next sequence
+	 * @return the sequence whose slot to fill and publish, or -1 if the ring is full
+	 */
+	long claim() {
+		while (true) {
+			long sequence = claimed.get();
+			if (sequence - written >= slots.length) {
+				droppedCount.incrementAndGet();
+				return -1;
+			}
+			if (claimed.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+	
+	LogEvent slot(long sequence) {
+		return slots[(int) (sequence & mask)];
+	}
+	
+	/**
+	 * Hands a filled slot to the writer thread
+	 * @param sequence : sequence returned by {@link #claim}
+	 */
+	void publish(long sequence) {
+		slot(sequence).publishedSequence = sequence;
+	}
+	
+	long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	long getPendingCount() {
+		return claimed.get() - written;
+	}
+	
+	/**
+	 * Waits for the events claimed so far to be written
+	 * @param timeoutMillis : longest time to wait
+	 */
+	void drain(long timeoutMillis) {
+		long target = claimed.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (written < target && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+	
+	void stop() {
+		running = false;
+	}
+	
+	private void write() {
+		while (running || written < claimed.get()) {
+			long sequence = written;
+			LogEvent event = slot(sequence);
+			if (event.publishedSequence != sequence) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+			try {
+				event.logger.callAppenders(new LoggingEvent(FQCN, event.logger, event.timestamp,
+								event.level, event.formatMessage(), event.threadName,
+								event.throwable == null ? null : new ThrowableInformation(event.throwable),
+								null, LocationInfo.NA_LOCATION_INFO, null));
+			} catch (Throwable t) {
+				// the appenders failed, reported on log4j's internal log
+				LogLog.error("Exception in writing log event of " + event.logger.getName(), t);
+			} finally {
+				event.clear();
+				written = sequence + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.veda.discovery.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets of microseconds.
+ * Each power of two is split into SUB_BUCKETS linear buckets, which keeps
+ * the percentiles within 1/SUB_BUCKETS of the recorded values while a
+ * record costs a few atomic increments.
+ */
+public class LatencyHistogram {
+	
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// covers up to 2^40 microseconds, longer latencies go into the last bucket
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+	
+	/**
+	 * Records one latency
+	 * @param nanos : elapsed time in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		counts.incrementAndGet(bucketOf(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+	
+	public long getCount() {
+		return count.get();
+	}
+	
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+	
+	public double getMeanMicros() {
+		long n = count.get();
+		return n == 0 ? 0.0 : (double) totalMicros.get() / n;
+	}
+	
+	/**
+	 * Gets the latency below which the given fraction of the records fall
+	 * @param quantile : between 0 and 1, i.e 0.99
+	 * @return upper bound of the bucket holding the quantile, in microseconds
+	 */
+	public long getPercentileMicros(double quantile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+	
+	/**
+	 * Adds count, mean, p50, p99 and max under the name of the operation
+	 */
+	void collect(String name, Map<String, Number> metrics) {
+		metrics.put(name + ".count", getCount());
+		metrics.put(name + ".mean_us", getMeanMicros());
+		metrics.put(name + ".p50_us", getPercentileMicros(0.50));
+		metrics.put(name + ".p99_us", getPercentileMicros(0.99));
+		metrics.put(name + ".max_us", getMaxMicros());
+	}
+	
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		if (bucket == BUCKETS - 1) {
+			// open ended, the percentile is capped by the max
+			return Long.MAX_VALUE;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int subBucket = bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,18 @@
+package com.veda.discovery.metrics;
+
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes the metrics to the log, one line per report
+ */
+public class Log4jMetricsReporter implements MetricsReporter {
+	
+	private static Logger logger = Logger.getLogger(Log4jMetricsReporter.class);
+	
+	@Override
+	public void report(Map<String, Number> metrics) {
+		logger.info("Metrics : " + metrics);
+	}
+}
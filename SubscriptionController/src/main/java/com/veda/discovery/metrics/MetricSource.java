@@ -0,0 +1,16 @@
+package com.veda.discovery.metrics;
+
+import java.util.Map;
+
+/**
+ * Component which reports its own values, i.e counters and sizes it
+ * already keeps, when the metrics are read
+ */
+public interface MetricSource {
+	
+	/**
+	 * Adds the current values of the component
+	 * @param metrics : metric name -> value
+	 */
+	void collect(Map<String, Number> metrics);
+}
@@ -0,0 +1,206 @@
+package com.veda.discovery.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Process-wide latency histograms, counters and gauges.
+ *
+ * Mongo and pooler calls are timed with {@link #start()} and
+ * {@link #stop(String, long)}, events with {@link #increment(String)}, and
+ * components add their own values as a {@link MetricSource}. All of it is
+ * exposed over JMX as com.veda.discovery:type=Metrics and handed to the
+ * reporters of METRICS_REPORTERS every METRICS_REPORT_INTERVAL seconds.
+ * Recording is a few atomic increments, cheap enough to stay on.
+ */
+public final class Metrics {
+	
+	// latencies
+	public static final String MONGO_AGGREGATE = "mongo.aggregate";
+	public static final String MONGO_FIND_ONE = "mongo.findOne";
+	public static final String MONGO_FIND = "mongo.find";
+	public static final String MONGO_UPDATE = "mongo.update";
+	public static final String MONGO_INSERT = "mongo.insert";
+	public static final String MONGO_FIND_AND_MODIFY = "mongo.findAndModify";
+	public static final String MONGO_BULK_WRITE = "mongo.bulkWrite";
+	public static final String POOLER_STOP = "pooler.stop";
+	// counters
+	public static final String USAGE_EVENTS = "usage.events";
+	public static final String USAGE_DUPLICATES = "usage.duplicates";
+	public static final String SUBSCRIPTION_CHECKS = "subscription.checks";
+	public static final String POLLERS_STOPPED = "pollers.stopped";
+	public static final String POLLER_STOP_FAILURES = "pollers.stopFailures";
+	
+	private static final String METRICS_JMX_ENABLED = "METRICS_JMX_ENABLED";
+	private static final String METRICS_REPORT_INTERVAL = "METRICS_REPORT_INTERVAL";
+	private static final String METRICS_REPORTERS = "METRICS_REPORTERS";
+	private static final String OBJECT_NAME = "com.veda.discovery:type=Metrics";
+	
+	private static Logger logger = Logger.getLogger(Metrics.class);
+	
+	private static final ConcurrentMap<String, LatencyHistogram> histograms =
+								new ConcurrentHashMap<String, LatencyHistogram>();
+	private static final ConcurrentMap<String, AtomicLong> counters =
+								new ConcurrentHashMap<String, AtomicLong>();
+	private static final List<MetricSource> sources = new CopyOnWriteArrayList<MetricSource>();
+	private static final List<MetricsReporter> reporters = new CopyOnWriteArrayList<MetricsReporter>();
+	// timed calls which have started and not yet stopped
+	private static final AtomicLong inFlight = new AtomicLong();
+	
+	static {
+		addSource(new MongoPoolMetrics());
+		if (ConfigUtils.getBooleanProperty(METRICS_JMX_ENABLED, true)) {
+			registerMBean();
+		}
+		startReporting();
+	}
+	
+	private Metrics() {
+	}
+	
+	/**
+	 * Marks the start of a timed call
+	 * @return start time to pass to {@link #stop(String, long)}
+	 */
+	public static long start() {
+		inFlight.incrementAndGet();
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Records the latency of a timed call, to be called in a finally block
+	 * @param operation : name of the operation, i.e {@link #MONGO_FIND_ONE}
+	 * @param start : value returned by {@link #start()}
+	 */
+	public static void stop(String operation, long start) {
+		histogram(operation).record(System.nanoTime() - start);
+		inFlight.decrementAndGet();
+	}
+	
+	public static void increment(String counter) {
+		add(counter, 1);
+	}
+	
+	public static void add(String counter, long delta) {
+		AtomicLong value = counters.get(counter);
+		if (value == null) {
+			counters.putIfAbsent(counter, new AtomicLong());
+			value = counters.get(counter);
+		}
+		value.addAndGet(delta);
+	}
+	
+	public static LatencyHistogram histogram(String operation) {
+		LatencyHistogram histogram = histograms.get(operation);
+		if (histogram == null) {
+			histograms.putIfAbsent(operation, new LatencyHistogram());
+			histogram = histograms.get(operation);
+		}
+		return histogram;
+	}
+	
+	public static void addSource(MetricSource source) {
+		sources.add(source);
+	}
+	
+	public static void addReporter(MetricsReporter reporter) {
+		reporters.add(reporter);
+	}
+	
+	/**
+	 * Reads all the metrics
+	 * @return metric name -> value, sorted by name
+	 */
+	public static Map<String, Number> snapshot() {
+		Map<String, Number> metrics = new TreeMap<String, Number>();
+		for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+			histogram.getValue().collect(histogram.getKey(), metrics);
+		}
+		for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+			metrics.put(counter.getKey(), counter.getValue().get());
+		}
+		metrics.put("operations.inFlight", inFlight.get());
+		for (MetricSource source : sources) {
+			try {
+				source.collect(metrics);
+			} catch (Exception e) {
+				logger.error("Exception in collecting metrics from " + source.getClass().getName(), e);
+			}
+		}
+		return metrics;
+	}
+	
+	private static void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsDynamicMBean(),
+																	new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			logger.error("Exception in registering " + OBJECT_NAME, e);
+		}
+	}
+	
+	/**
+	 * Creates the reporters named in METRICS_REPORTERS and schedules the reports
+	 */
+	private static void startReporting() {
+		long interval = ConfigUtils.getLongProperty(METRICS_REPORT_INTERVAL, 60);
+		if (interval <= 0) {
+			return;
+		}
+		String names = ConfigUtils.getProperty(METRICS_REPORTERS, Log4jMetricsReporter.class.getName());
+		for (String name : names.split(",")) {
+			if (name.trim().isEmpty()) {
+				continue;
+			}
+			try {
+				reporters.add((MetricsReporter) Class.forName(name.trim()).newInstance());
+			} catch (Exception e) {
+				logger.error("Exception in creating metrics reporter " + name, e);
+			}
+		}
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-reporter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				report();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+	
+	private static void report() {
+		if (reporters.isEmpty()) {
+			return;
+		}
+		Map<String, Number> metrics = snapshot();
+		for (MetricsReporter reporter : reporters) {
+			try {
+				reporter.report(metrics);
+			} catch (Exception e) {
+				logger.error("Exception in metrics reporter " + reporter.getClass().getName(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.veda.discovery.metrics;
+
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes every metric as a read-only JMX attribute of
+ * com.veda.discovery:type=Metrics
+ */
+class MetricsDynamicMBean implements DynamicMBean {
+	
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = Metrics.snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+	
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> metrics = Metrics.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Number value = metrics.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Number> metrics = Metrics.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+		int i = 0;
+		for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+											metric.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "SubscriptionController metrics", attributes,
+							 null, new MBeanOperationInfo[0], null);
+	}
+	
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only : " + attribute.getName());
+	}
+	
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+	
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		// no operations are exposed
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+}
@@ -0,0 +1,15 @@
+package com.veda.discovery.metrics;
+
+import java.util.Map;
+
+/**
+ * Receives the metrics every METRICS_REPORT_INTERVAL seconds. Implementations
+ * named in METRICS_REPORTERS need a public no-argument constructor.
+ */
+public interface MetricsReporter {
+	
+	/**
+	 * @param metrics : metric name -> value, sorted by name
+	 */
+	void report(Map<String, Number> metrics);
+}
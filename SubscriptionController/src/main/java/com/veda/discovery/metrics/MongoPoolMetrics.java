@@ -0,0 +1,42 @@
+package com.veda.discovery.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Connection pool gauges read from the connection pool MBeans which the
+ * Mongo driver registers. Without them only the operations in flight,
+ * counted by {@link Metrics}, are available.
+ */
+class MongoPoolMetrics implements MetricSource {
+	
+	private static final String POOL_MBEANS = "org.mongodb.driver:type=ConnectionPool,*";
+	
+	@Override
+	public void collect(Map<String, Number> metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			Set<ObjectName> pools = server.queryNames(new ObjectName(POOL_MBEANS), null);
+			if (pools.isEmpty()) {
+				return;
+			}
+			long size = 0;
+			long checkedOut = 0;
+			long maxSize = 0;
+			for (ObjectName pool : pools) {
+				size += ((Number) server.getAttribute(pool, "Size")).longValue();
+				checkedOut += ((Number) server.getAttribute(pool, "CheckedOutCount")).longValue();
+				maxSize += ((Number) server.getAttribute(pool, "MaxSize")).longValue();
+			}
+			metrics.put("mongo.pool.size", size);
+			metrics.put("mongo.pool.checkedOut", checkedOut);
+			metrics.put("mongo.pool.maxSize", maxSize);
+		} catch (Exception e) {
+			// the driver does not expose the pool, the in-flight count remains
+		}
+	}
+}
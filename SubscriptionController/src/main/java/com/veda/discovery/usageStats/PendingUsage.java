@@ -0,0 +1,229 @@
+package com.veda.discovery.usageStats;
+
+import java.util.Date;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+/**
+ * Usage of one project of a subscription which is accepted but not yet
+ * written to the usage collections. Sentence and message counts are summed,
+ * the dpu keeps the latest value.
+ */
+class PendingUsage {
+	
+	private final String clientId;
+	private final String subscriptionId;
+	private final String planRefId;
+	private final String snetId;
+	// id of the write of this usage, recorded with its project and totals increments
+	private final String opId;
+	private long sentencesCount;
+	private long messagesCount;
+	private Double dpuCount;
+	// journal sequences of the oldest and the newest event included, 0 if none is journaled
+	private long firstSequence;
+	private long lastSequence;
+	// no.of flushes in which the write of this usage was rejected
+	private int failedAttempts;
+	
+	PendingUsage(String clientId, String subscriptionId, String planRefId, String snetId) {
+		this(clientId, subscriptionId, planRefId, snetId, UsageDocuments.newOpId());
+	}
+	
+	private PendingUsage(String clientId, String subscriptionId, String planRefId, String snetId, String opId) {
+		this.clientId = clientId;
+		this.subscriptionId = subscriptionId;
+		this.planRefId = planRefId;
+		this.snetId = snetId;
+		this.opId = opId;
+	}
+	
+	static String key(String subscriptionId, String snetId) {
+		return subscriptionId + "|" + snetId;
+	}
+	
+	/**
+	 * Coalesces an incoming usage event into this entry
+	 * @param sequence : journal sequence of the event, 0 if it is not journaled
+	 */
+	void add(Integer sentences, Integer messages, Double dpu, long sequence) {
+		firstSequence = oldest(firstSequence, sequence);
+		lastSequence = Math.max(lastSequence, sequence);
+		if (sentences != null) {
+			sentencesCount += sentences;
+		}
+		if (messages != null) {
+			messagesCount += messages;
+		}
+		if (dpu != null) {
+			dpuCount = dpu;
+		}
+	}
+	
+	/**
+	 * Merges an older entry into this one. The dpu of this entry is newer
+	 * and is kept if present.
+	 */
+	void mergeOlder(PendingUsage older) {
+		sentencesCount += older.sentencesCount;
+		messagesCount += older.messagesCount;
+		if (dpuCount == null) {
+			dpuCount = older.dpuCount;
+		}
+		firstSequence = oldest(firstSequence, older.firstSequence);
+		lastSequence = Math.max(lastSequence, older.lastSequence);
+		failedAttempts = Math.max(failedAttempts, older.failedAttempts);
+	}
+	
+	/**
+	 * Counts a rejected write of this usage
+	 * @return no.of rejected writes so far
+	 */
+	int recordFailure() {
+		return ++failedAttempts;
+	}
+	
+	private static long oldest(long sequence, long other) {
+		if (sequence == 0) {
+			return other;
+		}
+		return other == 0 ? sequence : Math.min(sequence, other);
+	}
+	
+	/**
+	 * Copy of this usage which keeps its op id, so that the write of the usage can be recognized
+	 */
+	PendingUsage copy() {
+		PendingUsage copy = new PendingUsage(clientId, subscriptionId, planRefId, snetId, opId);
+		copy.mergeOlder(this);
+		return copy;
+	}
+	
+	/**
+	 * Writes the usage to the document of the project, once however often it
+	 * is retried, see {@link UsageStats#writeProject}
+	 * @param journalId : id of the journal of the events, null if they are not journaled
+	 * @return difference between the new and the previous dpu of the project
+	 */
+	double writeProject(UsageStats usageStats, DBCollection projectUsage, String journalId) {
+		return usageStats.writeProject(projectUsage, clientId, planRefId, subscriptionId, snetId, null,
+									   toCount(sentencesCount), toCount(messagesCount), dpuCount, opId,
+									   journalMark(journalId));
+	}
+	
+	/**
+	 * Query matching the usage document of the project
+	 */
+	BasicDBObject projectQuery() {
+		return UsageDocuments.projectQuery(subscriptionId, snetId);
+	}
+	
+	/**
+	 * Query matching the usage document of the project while it is as it was
+	 * read and does not hold this write
+	 * @param previousDpu : dpu read from the document, null if it had none
+	 */
+	BasicDBObject projectQuery(Object previousDpu) {
+		return UsageDocuments.projectQuery(subscriptionId, snetId, previousDpu, opId);
+	}
+	
+	/**
+	 * Upsert of the usage document of the project recording this write
+	 * @param projectName : name of the project, only needed when the document is created
+	 * @param dpuDelta : difference between the new and the previous dpu of the project
+	 * @param journalId : id of the journal of the events, null if they are not journaled
+	 */
+	BasicDBObject projectUpdate(String projectName, double dpuDelta, String journalId) {
+		return UsageDocuments.projectUpdate(clientId, planRefId, projectName, toCount(sentencesCount),
+											toCount(messagesCount), dpuCount, opId, dpuDelta,
+											journalMark(journalId));
+	}
+	
+	private BasicDBObject journalMark(String journalId) {
+		return journalId == null || lastSequence == 0 ? null : UsageDocuments.journalMark(journalId, lastSequence);
+	}
+	
+	/**
+	 * Query matching the totals document of the subscription unless it holds
+	 * the increment of this usage
+	 */
+	BasicDBObject totalsQuery() {
+		return UsageDocuments.totalsQuery(subscriptionId, opId);
+	}
+	
+	/**
+	 * Upsert of the totals document of the subscription
+	 * @param dpuDelta : difference the write made to the dpu of the project
+	 */
+	BasicDBObject totalsUpdate(double dpuDelta) {
+		return UsageDocuments.totalsUpdate(clientId, planRefId, toCount(sentencesCount), toCount(messagesCount),
+										   dpuDelta, opId);
+	}
+	
+	/**
+	 * Dead letter of this usage, kept once its writes were rejected too often
+	 * @param error : message of the last rejection
+	 */
+	BasicDBObject deadLetter(String error) {
+		return new BasicDBObject("client_id", clientId).append("subscription_id", subscriptionId)
+						.append("plan_ref_id", planRefId).append("snet_id", snetId)
+						.append("sentences_count", toCount(sentencesCount))
+						.append("messages_count", toCount(messagesCount)).append("dpu", dpuCount)
+						.append("attempts", failedAttempts).append("error", error).append("failed_at", new Date());
+	}
+	
+	/**
+	 * Dead letter of the totals increment of this usage, whose project is
+	 * written but whose increment was rejected too often
+	 * @param dpuDelta : difference the write made to the dpu of the project
+	 * @param attempts : no.of rejected increments
+	 */
+	BasicDBObject totalsDeadLetter(double dpuDelta, int attempts, String error) {
+		return deadLetter(error).append("kind", "totals").append("op_id", opId).append("dpu_delta", dpuDelta)
+						.append("attempts", attempts);
+	}
+	
+	/**
+	 * Counts are stored as int like the synchronous writes do, unless
+	 * the coalesced value does not fit
+	 */
+	private static Number toCount(long count) {
+		if (count >= Integer.MIN_VALUE && count <= Integer.MAX_VALUE) {
+			return Integer.valueOf((int) count);
+		}
+		return Long.valueOf(count);
+	}
+	
+	String getClientId() {
+		return clientId;
+	}
+	
+	String getSubscriptionId() {
+		return subscriptionId;
+	}
+	
+	String getSnetId() {
+		return snetId;
+	}
+	
+	String getOpId() {
+		return opId;
+	}
+	
+	long getSentencesCount() {
+		return sentencesCount;
+	}
+	
+	Double getDpuCount() {
+		return dpuCount;
+	}
+	
+	long getFirstSequence() {
+		return firstSequence;
+	}
+	
+	long getLastSequence() {
+		return lastSequence;
+	}
+}
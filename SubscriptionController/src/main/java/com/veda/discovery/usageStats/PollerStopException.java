@@ -0,0 +1,31 @@
+package com.veda.discovery.usageStats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thrown when the pollers of some projects of a client could not be stopped,
+ * because the stop failed or timed out. The projects which were stopped are
+ * marked inactive; the caller is expected to stop the client again later.
+ */
+public class PollerStopException extends Exception {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final String clientId;
+	private final List<String> failedSnetIds;
+	
+	public PollerStopException(String clientId, List<String> failedSnetIds) {
+		super("Pollers of clientId : " + clientId + " not stopped for projects : " + failedSnetIds);
+		this.clientId = clientId;
+		this.failedSnetIds = new ArrayList<String>(failedSnetIds);
+	}
+	
+	public String getClientId() {
+		return clientId;
+	}
+	
+	public List<String> getFailedSnetIds() {
+		return failedSnetIds;
+	}
+}
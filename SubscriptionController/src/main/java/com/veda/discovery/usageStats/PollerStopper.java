@@ -2,11 +2,23 @@ package com.veda.discovery.usageStats;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
-import org.apache.log4j.Logger;
 import org.bson.types.ObjectId;
 import org.datasift.examples.PoolerClient;
 import org.json.JSONException;
@@ -21,6 +33,10 @@ import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
 import com.veda.discovery.commons.ProjectsCollection;
 import com.veda.discovery.commons.SubscriptionCollection;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.IoExecutor;
 import com.veda.discovery.utils.MongoDbUtils;
 
 public class PollerStopper {
@@ -42,68 +58,293 @@ public class PollerStopper {
 		port = Integer.parseInt(configProperties.getProperty("DATASIFT_POOLER_PORT"));
 	}
 	
-	private static Logger logger = Logger.getLogger(PollerStopper.class);
+	private static AsyncLog logger = AsyncLog.getLog(PollerStopper.class);
+	
+	private static final String POLLER_STOP_PARALLELISM = "POLLER_STOP_PARALLELISM";
+	private static final String POLLER_STOP_TIMEOUT = "POLLER_STOP_TIMEOUT";
+	private static final String POLLER_STOP_QUEUE_TIMEOUT = "POLLER_STOP_QUEUE_TIMEOUT";
+	
+	// shared by all clients, so the pooler sees at most POLLER_STOP_PARALLELISM connections
+	private static final ExecutorService stopExecutor = Executors.newFixedThreadPool(
+					ConfigUtils.getIntProperty(POLLER_STOP_PARALLELISM, 16), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "poller-stopper-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	// times out the stop commands, and the stops waiting for a stop thread
+	private static final ScheduledThreadPoolExecutor stopTimer = createStopTimer();
+	// pooler connection of each stop thread, reused across projects and clients
+	private static final ThreadLocal<PoolerClient> poolerClients = new ThreadLocal<PoolerClient>();
+	private static final long stopTimeoutNanos = TimeUnit.SECONDS.toNanos(
+					ConfigUtils.getLongProperty(POLLER_STOP_TIMEOUT, 30));
+	private static final long queueTimeoutNanos = TimeUnit.SECONDS.toNanos(
+					ConfigUtils.getLongProperty(POLLER_STOP_QUEUE_TIMEOUT, 60));
 	
 	/**
 	 * Stops the poller for all the active projects 
-	 * of a client based on client-Id
+	 * of a client based on client-Id. The stop commands are sent concurrently,
+	 * the project statuses are updated once all of them completed
 	 * @param clientId :ID of the client
+	 * @throws PollerStopException : if the pooler server is not reachable, or if the stop
+	 * of a project failed or timed out, after the statuses of the stopped projects are updated
 	 */
 	public void stopPollerForClient(String clientId) throws Exception{
 		List<String> snetIdList = getAllStreamingProjects(clientId);
-		System.out.println("------------------------------");
-		System.out.println("DataStreaming is stopping for Client : " + clientId);
-		System.out.println("** Active projects for Client : " + snetIdList);
-		logger.info("------------------------------");
-		logger.info("DataStreaming is stopped for Client : " + clientId);
-		logger.info("** Active projects for Client : " + snetIdList);
+		logger.info("DataStreaming is stopping for Client : {}, active projects : {}", clientId, snetIdList);
+		if (snetIdList.isEmpty()) {
+			return;
+		}
+		// checks the pooler once for all the projects
+		if (!new PoolerClient().isServerInitialised(server, port)) {
+			logger.error("Pooler server {}:{} is not reachable, DataStreaming is not stopped for Client : {}",
+						 server, port, clientId);
+			throw new PollerStopException(clientId, snetIdList);
+		}
+		List<String> stoppedSnetIds = stopPoolers(snetIdList);
+		if (!stoppedSnetIds.isEmpty()) {
+			// updates the project status to inactive
+			logger.debug("Updating Project Status after Stopping pooler");
+			updateProjectStatus(clientId, stoppedSnetIds);
+			// updates the project Stream status in stream_dpu_usage collection
+			logger.debug("Updating Project Status in Stream Usage after Stopping pooler");
+			updateProjectStreamStatus(clientId, stoppedSnetIds);
+			// updates the Stream History status in stream_dpu_history collection
+			logger.debug("Updating Project Status in Stream History after Stopping pooler");
+			updateStreamHistoryStatus(clientId, stoppedSnetIds);
+		}
+		if (stoppedSnetIds.size() < snetIdList.size()) {
+			throw new PollerStopException(clientId, notStopped(snetIdList, stoppedSnetIds));
+		}
+	}
+	
+	/**
+	 * Asynchronous form of {@link #stopPollerForClient}. The stop commands
+	 * run on the stop threads, the reads and the status updates on the
+	 * {@link IoExecutor}, and the three status updates, which touch different
+	 * collections, run concurrently.
+	 * @param clientId :ID of the client
+	 * @return future completed once the statuses of the stopped projects are updated, completed
+	 * with a {@link PollerStopException} if the pooler server is not reachable or the stop of
+	 * a project failed or timed out
+	 */
+	public CompletableFuture<Void> stopPollerForClientAsync(final String clientId) {
+		final CompletableFuture<List<String>> streamingProjects = IoExecutor.supply(() ->
+						getAllStreamingProjects(clientId));
+		return streamingProjects.thenComposeAsync(snetIdList -> {
+			logger.info("DataStreaming is stopping for Client : {}, active projects : {}", clientId, snetIdList);
+			if (snetIdList.isEmpty()) {
+				return CompletableFuture.completedFuture(Collections.<String>emptyList());
+			}
+			// checks the pooler once for all the projects
+			if (!new PoolerClient().isServerInitialised(server, port)) {
+				logger.error("Pooler server {}:{} is not reachable, DataStreaming is not stopped for Client : {}",
+							 server, port, clientId);
+				// fails below with all the projects not stopped
+				return CompletableFuture.completedFuture(Collections.<String>emptyList());
+			}
+			return stopPoolersAsync(snetIdList);
+		}, IoExecutor.get()).thenCompose(stoppedSnetIds -> {
+			List<String> snetIdList = streamingProjects.join();
+			CompletableFuture<Void> updated = stoppedSnetIds.isEmpty() ? CompletableFuture.completedFuture(null)
+							: updateStatusesAsync(clientId, stoppedSnetIds);
+			if (stoppedSnetIds.size() == snetIdList.size()) {
+				return updated;
+			}
+			return updated.thenCompose(ignored -> {
+				CompletableFuture<Void> failed = new CompletableFuture<Void>();
+				failed.completeExceptionally(new PollerStopException(clientId,
+								notStopped(snetIdList, stoppedSnetIds)));
+				return failed;
+			});
+		});
+	}
+	
+	/**
+	 * Runs the three status updates of the stopped projects, which touch
+	 * different collections, concurrently
+	 */
+	private CompletableFuture<Void> updateStatusesAsync(final String clientId, final List<String> stoppedSnetIds) {
+		return CompletableFuture.allOf(
+							IoExecutor.supply(() -> {
+								updateProjectStatus(clientId, stoppedSnetIds);
+								return null;
+							}),
+							IoExecutor.supply(() -> {
+								updateProjectStreamStatus(clientId, stoppedSnetIds);
+								return null;
+							}),
+							IoExecutor.supply(() -> {
+								updateStreamHistoryStatus(clientId, stoppedSnetIds);
+								return null;
+							}));
+	}
+	
+	private static List<String> notStopped(List<String> snetIdList, List<String> stoppedSnetIds) {
+		List<String> failedSnetIds = new ArrayList<String>(snetIdList);
+		failedSnetIds.removeAll(stoppedSnetIds);
+		return failedSnetIds;
+	}
+	
+	/**
+	 * Sends the stop command of every project to the pooler concurrently,
+	 * without waiting for them
+	 * @param snetIdList : unique Ids of the projects
+	 * @return future of the projects whose poller is stopped within POLLER_STOP_TIMEOUT seconds
+	 */
+	private CompletableFuture<List<String>> stopPoolersAsync(List<String> snetIdList) {
+		final List<CompletableFuture<String>> stops = new ArrayList<CompletableFuture<String>>();
 		for (String snetId : snetIdList) {
-			PoolerClient poolerClient = new PoolerClient();
-			if (poolerClient.isServerInitialised(server, port)) {
-				try {
-					poolerClient.stopPooler(snetId);
-					logger.info("DataStreaming is stopped for this project : " + snetId);
-					System.out.println("DataStreaming is stopped for this project : "+ snetId);
-					// updates the project status to inactive
-					System.out.println("Updating Project Status after Stopping pooler ");
-					logger.info("Updating Project Status after Stopping pooler ");
-					updateProjectStatus(clientId,snetId);
-					// updates the project Stream status in stream_dpu_usage collection
-					System.out.println("Updating Project Status in Stream Usage after Stopping pooler ");
-					logger.info("Updating Project Status in Stream Usage after Stopping pooler ");
-					updateProjectStreamStatus(clientId,snetId);
-					// updates the Stream History status in stream_dpu_history collection
-					System.out.println("Updating Project Status in Stream History after Stopping pooler ");
-					logger.info("Updating Project Status in Stream History after Stopping pooler ");
-					updateStreamHistoryStatus(clientId,snetId);
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (JSONException e) {
-					e.printStackTrace();
+			stops.add(stopPoolerAsync(snetId));
+		}
+		return CompletableFuture.allOf(stops.toArray(new CompletableFuture<?>[stops.size()])).thenApply(ignored -> {
+			List<String> stoppedSnetIds = new ArrayList<String>();
+			for (CompletableFuture<String> stop : stops) {
+				if (stop.join() != null) {
+					stoppedSnetIds.add(stop.join());
+				}
+			}
+			return stoppedSnetIds;
+		});
+	}
+	
+	/**
+	 * Stops the poller of a project on a stop thread. The POLLER_STOP_TIMEOUT
+	 * starts once a stop thread runs the stop; a stop which waits more than
+	 * POLLER_STOP_QUEUE_TIMEOUT for a stop thread fails without running.
+	 * The connection of a stop which failed or timed out is dropped, as the
+	 * reply to its command may still be unread.
+	 * @param snetId : unique Id of the project
+	 * @return future of the snetId once stopped, or null if the stop failed or timed out
+	 */
+	private static CompletableFuture<String> stopPoolerAsync(final String snetId) {
+		final CompletableFuture<String> result = new CompletableFuture<String>();
+		final AtomicReference<Future<?>> stop = new AtomicReference<Future<?>>();
+		final ScheduledFuture<?> queueTimeout = stopTimer.schedule(() -> {
+			if (result.complete(null)) {
+				Metrics.increment(Metrics.POLLER_STOP_FAILURES);
+				Future<?> queued = stop.get();
+				if (queued != null) {
+					queued.cancel(false);
 				}
-				
-			} 
+				logger.error("Timed out waiting for a stop thread for snetId : {}", snetId);
+			}
+		}, queueTimeoutNanos, TimeUnit.NANOSECONDS);
+		stop.set(stopExecutor.submit(() -> {
+			queueTimeout.cancel(false);
+			if (result.isDone()) {
+				return;
+			}
+			final ScheduledFuture<?> timeout = stopTimer.schedule(() -> {
+				if (result.complete(null)) {
+					Metrics.increment(Metrics.POLLER_STOP_FAILURES);
+					Future<?> running = stop.get();
+					if (running != null) {
+						running.cancel(true);
+					}
+					logger.error("Timed out in stopping pooler for snetId : {}", snetId);
+				}
+			}, stopTimeoutNanos, TimeUnit.NANOSECONDS);
+			try {
+				stopPooler(snetId);
+				if (result.complete(snetId)) {
+					Metrics.increment(Metrics.POLLERS_STOPPED);
+					logger.info("DataStreaming is stopped for this project : {}", snetId);
+				} else {
+					// timed out and cancelled while the command ran
+					poolerClients.remove();
+				}
+			} catch (Exception e) {
+				if (result.complete(null)) {
+					Metrics.increment(Metrics.POLLER_STOP_FAILURES);
+					logger.error("Exception in stopping pooler for snetId : {}", snetId, e);
+				}
+			} finally {
+				timeout.cancel(false);
+			}
+		}));
+		return result;
+	}
+	
+	private static ScheduledThreadPoolExecutor createStopTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "poller-stop-timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// the timeouts of completed stops do not pile up in the queue
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+	
+	/**
+	 * Sends the stop command of every project to the pooler concurrently and
+	 * waits for all of them, each stop times out POLLER_STOP_TIMEOUT seconds
+	 * after it started or POLLER_STOP_QUEUE_TIMEOUT seconds after it was queued
+	 * @param snetIdList : unique Ids of the projects
+	 * @return projects whose poller is stopped
+	 */
+	private List<String> stopPoolers(List<String> snetIdList) throws InterruptedException {
+		try {
+			return stopPoolersAsync(snetIdList).get();
+		} catch (ExecutionException e) {
+			// the stops complete with null instead of failing
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Stops the poller of a project on the connection of the current thread,
+	 * opening it on first use and dropping it after any failure
+	 * @param snetId : unique Id of the project
+	 */
+	private static void stopPooler(String snetId) throws IOException, JSONException {
+		PoolerClient poolerClient = poolerClients.get();
+		if (poolerClient == null) {
+			poolerClient = new PoolerClient();
+			if (!poolerClient.isServerInitialised(server, port)) {
+				throw new IOException("Pooler server " + server + ":" + port + " is not reachable");
+			}
+			poolerClients.set(poolerClient);
+		}
+		long started = Metrics.start();
+		boolean stopped = false;
+		try {
+			poolerClient.stopPooler(snetId);
+			stopped = true;
+		} finally {
+			if (!stopped) {
+				// the reply may be half read
+				poolerClients.remove();
+			}
+			Metrics.stop(Metrics.POOLER_STOP, started);
 		}
 	}
 	
 	/**
 	 * Updates the project status to suspend for Active Off-line Projects
 	 * @param clientId : Id of the client
-	 * @param snetId : Id of the project
 	 */
 	public void updateOfflineProjectStatus( String clientId) throws Exception {
 		List<String> snetIdList = getActiveOfflineProjects(clientId);
-		for (String snetId : snetIdList) {
-				updateProjectStatus(clientId, snetId);
-			} 
+		if (!snetIdList.isEmpty()) {
+			updateProjectStatus(clientId, snetIdList);
+		}
 	}
 	
 	/**
 	 * Updates the project status to suspended when the poller stops polling
 	 * @param clientId : Id of the client
-	 * @param snetId : Id of the project
+	 * @param snetIdList : Ids of the projects
 	 */
-	private void updateProjectStatus(String clientId, String snetId) throws Exception {
+	private void updateProjectStatus(String clientId, List<String> snetIdList) throws Exception {
 		MongoDbUtils mdbUtils = new MongoDbUtils();
 		try {
 			DB mDb = mdbUtils.getMongoDbConnection();
@@ -111,16 +352,18 @@ public class PollerStopper {
 			DBCollection mongoCollection = mDb.getCollection(projects);
 			BasicDBObject query = new BasicDBObject();
 			query.append("client_id", new ObjectId(clientId));
-			query.append("snet_id", snetId);
+			query.append("snet_id", new BasicDBObject("$in", snetIdList));
 			BasicDBObject updateQuery = new BasicDBObject();
 			updateQuery.append("is_active", 0);
-			mongoCollection.update(query,new BasicDBObject("$set",updateQuery));
-				
+			long started = Metrics.start();
+			try {
+				mongoCollection.update(query, new BasicDBObject("$set", updateQuery), false, true);
+			} finally {
+				Metrics.stop(Metrics.MONGO_UPDATE, started);
+			}
+			
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 	}
 	
@@ -144,18 +387,19 @@ public class PollerStopper {
 			
 			query.append("realtime_or_offline_status", new BasicDBObject()
 														.append("$nin",projectStatus));
-			DBCursor dbCursor = mongoCollection.find(query);
-			while (dbCursor.hasNext()) {
-				DBObject dbObject = dbCursor.next();
-				String snetId = (String) dbObject.get("snet_id");
-				snetIdList.add(snetId);
-				System.out.println(snetId);
+			long started = Metrics.start();
+			try {
+				DBCursor dbCursor = mongoCollection.find(query);
+				while (dbCursor.hasNext()) {
+					DBObject dbObject = dbCursor.next();
+					String snetId = (String) dbObject.get("snet_id");
+					snetIdList.add(snetId);
+				}
+			} finally {
+				Metrics.stop(Metrics.MONGO_FIND, started);
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return snetIdList;
 	}
@@ -180,18 +424,19 @@ public class PollerStopper {
 			
 			query.append("realtime_or_offline_status", new BasicDBObject()
 														.append("$nin",projectStatus));
-			DBCursor dbCursor = mongoCollection.find(query);
-			while (dbCursor.hasNext()) {
-				DBObject dbObject = dbCursor.next();
-				String snetId = (String) dbObject.get("snet_id");
-				snetIdList.add(snetId);
-				System.out.println(snetId);
+			long started = Metrics.start();
+			try {
+				DBCursor dbCursor = mongoCollection.find(query);
+				while (dbCursor.hasNext()) {
+					DBObject dbObject = dbCursor.next();
+					String snetId = (String) dbObject.get("snet_id");
+					snetIdList.add(snetId);
+				}
+			} finally {
+				Metrics.stop(Metrics.MONGO_FIND, started);
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return snetIdList;
 	}
@@ -215,18 +460,19 @@ public class PollerStopper {
 			query.append("is_active", 1);
 			query.append("realtime_or_offline_status", new BasicDBObject()
 														.append("$in",projectStatus));
-			DBCursor dbCursor = mongoCollection.find(query);
-			while (dbCursor.hasNext()) {
-				DBObject dbObject = dbCursor.next();
-				String snetId = (String) dbObject.get("snet_id");
-				snetIdList.add(snetId);
-				System.out.println(snetId);
+			long started = Metrics.start();
+			try {
+				DBCursor dbCursor = mongoCollection.find(query);
+				while (dbCursor.hasNext()) {
+					DBObject dbObject = dbCursor.next();
+					String snetId = (String) dbObject.get("snet_id");
+					snetIdList.add(snetId);
+				}
+			} finally {
+				Metrics.stop(Metrics.MONGO_FIND, started);
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
 			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
 		}
 		return snetIdList;
 	}
@@ -237,6 +483,15 @@ public class PollerStopper {
 	 * @param snetId : Unique Id of the project
 	 */
 	public void updateProjectStreamStatus(String clientId, String snetId) {
+		updateProjectStreamStatus(clientId, Collections.singletonList(snetId));
+	}
+	
+	/**
+	 * Updates the status of the projects to Inactive in one update
+	 * @param clientId : Id of the client
+	 * @param snetIdList : Unique Ids of the projects
+	 */
+	public void updateProjectStreamStatus(String clientId, List<String> snetIdList) {
 		
 		MongoDbUtils mdbUtils = new MongoDbUtils();
 		DB db = null;
@@ -246,18 +501,21 @@ public class PollerStopper {
 												.retrieveCollectionName(MONGO_STREAM_DPU_USAGE));
 			BasicDBObject query = new BasicDBObject();
 			query.append("client_id", new ObjectId(clientId));
-			query.append("snet_id", snetId);
+			query.append("snet_id", new BasicDBObject("$in", snetIdList));
 			String subscriptionId = new SubscriptionCollection().getActiveSubscriptionId(clientId);
 			if (subscriptionId != null) {
 				query.append("subscription_id", new ObjectId(subscriptionId));
 				BasicDBObject upsertQuery = new BasicDBObject();
 				upsertQuery.append("$set", new BasicDBObject("status", STATUS_INACTIVE));
-				mdbCollection.update(query, upsertQuery);
+				long started = Metrics.start();
+				try {
+					mdbCollection.update(query, upsertQuery, false, true);
+				} finally {
+					Metrics.stop(Metrics.MONGO_UPDATE, started);
+				}
 			}
 		}catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			mdbUtils.closeMongoConnection();
+			logger.error("Exception : ", e);
 		}
 	}
 	
@@ -267,6 +525,15 @@ public class PollerStopper {
 	 * @param snetId : Unique Id of the project
 	 */
 	public void updateStreamHistoryStatus(String clientId, String snetId) {
+		updateStreamHistoryStatus(clientId, Collections.singletonList(snetId));
+	}
+	
+	/**
+	 * Deactivates the current active streams of the projects in one update
+	 * @param clientId : Id of the client
+	 * @param snetIdList : Unique Ids of the projects
+	 */
+	public void updateStreamHistoryStatus(String clientId, List<String> snetIdList) {
 		
 		MongoDbUtils mdbUtils = new MongoDbUtils();
 		DB db = null;
@@ -274,32 +541,36 @@ public class PollerStopper {
 			db = mdbUtils.getMongoDbConnection();
 			DBCollection mdbCollection = db.getCollection(mdbUtils
 												.retrieveCollectionName(MONGO_STREAM_DPU_HISTORY));
-			BasicDBObject query = new BasicDBObject();
-			query.append("snet_id", snetId);
 			String subscriptionId = new SubscriptionCollection().getActiveSubscriptionId(clientId);
-			System.out.println("In Updating Stream History, ActiveSubscriptionId = " + subscriptionId);
-			logger.info("In Updating Stream History, ActiveSubscriptionId = " + subscriptionId);
+			logger.debug("In Updating Stream History, ActiveSubscriptionId = {}", subscriptionId);
 			if (subscriptionId != null) {
-				String csdlQuery = new ProjectsCollection().retreiveCsdlQuery(snetId);
-				System.out.println("subscriptionId = " + subscriptionId);
-				System.out.println("csdlQuery = " + csdlQuery);
-				System.out.println("snetId = " + snetId);
+				Map<String, String> csdlQueries = new ProjectsCollection().retreiveCsdlQueries(snetIdList);
+				// each project matches its own csdl query
+				BasicDBList projectQueries = new BasicDBList();
+				for (String snetId : snetIdList) {
+					projectQueries.add(new BasicDBObject("snet_id", snetId)
+										.append("csdl_query", csdlQueries.get(snetId)));
+				}
+				BasicDBObject query = new BasicDBObject();
 				query.append("subscription_id", new ObjectId(subscriptionId));
-				query.append("csdl_query", csdlQuery);
 				query.append("stream_usage.end_date", NA);
-				System.out.println("QUERY TO UPDATE HISTORY = " + query);
-				logger.info("QUERY TO UPDATE HISTORY = " + query);
+				query.append("$or", projectQueries);
+				// the query is only serialized on the log writer thread, if debug is enabled
+				logger.debug("QUERY TO UPDATE HISTORY = {}", query);
 				BasicDBObject setobject = new BasicDBObject();
 				setobject.append("$set", new BasicDBObject("stream_usage.$.end_date", new Date())
 												   .append("status", STATUS_INACTIVE));
-				WriteResult res = mdbCollection.update(query, setobject);
-				System.out.println("WriteResult Status = " + res);
-				logger.info("WriteResult Status = " + res);
+				long started = Metrics.start();
+				WriteResult res;
+				try {
+					res = mdbCollection.update(query, setobject, false, true);
+				} finally {
+					Metrics.stop(Metrics.MONGO_UPDATE, started);
+				}
+				logger.debug("WriteResult Status = {}", res);
 			}
 		}catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			mdbUtils.closeMongoConnection();
+			logger.error("Exception : ", e);
 		}
 	}
 	
@@ -0,0 +1,316 @@
+package com.veda.discovery.usageStats;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.veda.discovery.commons.SubscriptionCache;
+import com.veda.discovery.commons.SubscriptionSnapshot;
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Runs the full subscription check of
+ * {@link com.veda.discovery.handler.CheckSubscription#checkEnded}
+ * only for the usage events which may end the subscription.
+ *
+ * After a check passes, the client may use QUOTA_CHECK_HEADROOM_FRACTION of
+ * its remaining sentences and credits before it is checked again. The end
+ * date is compared on every event, and every client is checked at least once
+ * every QUOTA_CHECK_MAX_INTERVAL seconds to pick up changes made elsewhere.
+ *
+ * Usage seen by this process can not pass the quota unchecked. Usage from
+ * other processes can; the overshoot it causes is bounded by the allowance
+ * of the client, see {@link #getSentencesOvershootBound()} and
+ * {@link #getCreditsOvershootBound()}.
+ *
+ * Clients without events for QUOTA_CHECK_MAX_INTERVAL seconds are dropped
+ * once per interval; their next event is checked in any case.
+ */
+public class QuotaHeadroomGate {
+	
+	private static final String QUOTA_CHECK_MODE = "QUOTA_CHECK_MODE";
+	private static final String QUOTA_CHECK_HEADROOM_FRACTION = "QUOTA_CHECK_HEADROOM_FRACTION";
+	private static final String QUOTA_CHECK_MAX_INTERVAL = "QUOTA_CHECK_MAX_INTERVAL";
+	private static final String CHECK_MODE_HEADROOM = "HEADROOM";
+	
+	private static final boolean ENABLED = CHECK_MODE_HEADROOM.equalsIgnoreCase(
+									ConfigUtils.getProperty(QUOTA_CHECK_MODE, "EVERY_EVENT"));
+	private static final QuotaHeadroomGate INSTANCE = new QuotaHeadroomGate(
+									ConfigUtils.getDoubleProperty(QUOTA_CHECK_HEADROOM_FRACTION, 0.1),
+									ConfigUtils.getLongProperty(QUOTA_CHECK_MAX_INTERVAL, 60));
+	
+	static {
+		if (ENABLED) {
+			Metrics.addSource(new MetricSource() {
+				@Override
+				public void collect(Map<String, Number> metrics) {
+					metrics.put("quotaGate.checked", INSTANCE.getCheckedCount());
+					metrics.put("quotaGate.skipped", INSTANCE.getSkippedCount());
+					metrics.put("quotaGate.sentencesOvershootBound", INSTANCE.getSentencesOvershootBound());
+					metrics.put("quotaGate.creditsOvershootBound", INSTANCE.getCreditsOvershootBound());
+					metrics.put("quotaGate.maxUncheckedMillis", INSTANCE.getMaxUncheckedMillis());
+					metrics.put("quotaGate.trackedClients", INSTANCE.getTrackedCount());
+				}
+			});
+		}
+	}
+	
+	private final double headroomFraction;
+	private final long maxIntervalMillis;
+	// client-ID -> allowance since the last passed check
+	private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+	// client-ID -> latest dpu of each project, dpu events carry the project total
+	private final ConcurrentMap<String, ProjectDpu> dpuByClient = new ConcurrentHashMap<String, ProjectDpu>();
+	// time of the next eviction of the idle clients
+	private final AtomicLong nextEviction = new AtomicLong();
+	
+	private final AtomicLong checkedCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	
+	QuotaHeadroomGate(double headroomFraction, long maxIntervalSeconds) {
+		this.headroomFraction = Math.min(1.0, Math.max(0.0, headroomFraction));
+		this.maxIntervalMillis = TimeUnit.SECONDS.toMillis(maxIntervalSeconds);
+	}
+	
+	/**
+	 * Checks whether the subscription checks are gated by headroom
+	 * instead of run on every event
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+	
+	public static QuotaHeadroomGate getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Full subscription check of a client
+	 */
+	public interface SubscriptionCheck {
+		/**
+		 * @return true if the subscription ended, the caller then stops the poller
+		 */
+		boolean check(String clientId) throws Exception;
+	}
+	
+	/**
+	 * Counts a usage event against the allowance of the client and runs the
+	 * full check when the event leaves it
+	 * @param clientId : Id of the client
+	 * @param snetId : unique Id of the project
+	 * @param check : full check of the client
+	 * @return true if the check ran and stopped the client
+	 */
+	public boolean enforce(String clientId, String snetId, Integer sentencesCount, Double dpuCount,
+						   SubscriptionCheck check) throws Exception {
+		long now = System.currentTimeMillis();
+		evictIdle(now);
+		long sentences = sentencesCount == null ? 0 : sentencesCount;
+		double credits = creditsDelta(clientId, snetId, dpuCount, now);
+		Window window = windows.get(clientId);
+		if (window != null && window.accept(sentences, credits, now)) {
+			skippedCount.incrementAndGet();
+			return false;
+		}
+		checkedCount.incrementAndGet();
+		windows.remove(clientId);
+		if (check.check(clientId)) {
+			reset(clientId);
+			return true;
+		}
+		open(clientId, sentences, credits);
+		return false;
+	}
+	
+	/**
+	 * Opens a new allowance after the full check of an event passed
+	 * @param clientId : Id of the client
+	 * @param sentences : sentences of the checked event, not yet recorded
+	 * @param credits : credits of the checked event, not yet recorded
+	 */
+	private void open(String clientId, long sentences, double credits) {
+		SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+		if (subscription == null || !subscription.isActive() || subscription.getSubscriptionId() == null) {
+			return;
+		}
+		long usedSentences = 0;
+		double usedCredits = 0.0;
+		QuotaLedger.Usage usage = QuotaLedger.getInstance().getUsage(clientId,
+											subscription.getSubscriptionId());
+		if (usage != null) {
+			usedSentences = usage.getSentencesCount();
+			usedCredits = usage.getCreditsCount();
+		}
+		long now = System.currentTimeMillis();
+		long endTime = subscription.getEndDate() == null ? Long.MAX_VALUE
+											: subscription.getEndDate().getTime();
+		Window window = new Window(
+					headroomFraction * Math.max(0, subscription.getTotalSentences() - usedSentences),
+					headroomFraction * Math.max(0.0, subscription.getTotalCredits() - usedCredits),
+					endTime, now + maxIntervalMillis);
+		// the checked event is written after the check and counts against the new allowance
+		window.accept(sentences, credits, now);
+		windows.put(clientId, window);
+	}
+	
+	/**
+	 * Drops the allowance of a client, i.e when its subscription is made
+	 * inactive, so that its next event is checked
+	 * @param clientId : Id of the client
+	 */
+	public void reset(String clientId) {
+		windows.remove(clientId);
+		dpuByClient.remove(clientId);
+	}
+	
+	/**
+	 * Drops the clients which had no event for QUOTA_CHECK_MAX_INTERVAL, at
+	 * most once per interval. Their windows are too old to be accepted, so
+	 * their next event is checked anyway and counts the whole dpu of its project.
+	 * @param now : current time in milliseconds
+	 */
+	void evictIdle(long now) {
+		long next = nextEviction.get();
+		if (now < next || !nextEviction.compareAndSet(next, now + maxIntervalMillis)) {
+			return;
+		}
+		long idleBefore = now - maxIntervalMillis;
+		Iterator<Map.Entry<String, ProjectDpu>> clients = dpuByClient.entrySet().iterator();
+		while (clients.hasNext()) {
+			if (clients.next().getValue().getLastSeen() < idleBefore) {
+				clients.remove();
+			}
+		}
+		Iterator<Window> expired = windows.values().iterator();
+		while (expired.hasNext()) {
+			if (expired.next().checkBefore <= now) {
+				expired.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Change of the credits used by a project. The first event of a project
+	 * counts its whole dpu, which makes the check run for it.
+	 */
+	private double creditsDelta(String clientId, String snetId, Double dpuCount, long now) {
+		if (dpuCount == null || snetId == null) {
+			return 0.0;
+		}
+		ProjectDpu dpuByProject = dpuByClient.get(clientId);
+		if (dpuByProject == null) {
+			dpuByClient.putIfAbsent(clientId, new ProjectDpu());
+			dpuByProject = dpuByClient.get(clientId);
+		}
+		Double previous = dpuByProject.put(snetId, dpuCount, now);
+		return previous == null ? Double.POSITIVE_INFINITY : Math.max(0.0, dpuCount - previous);
+	}
+	
+	/**
+	 * No.of clients whose project dpu is kept
+	 */
+	public int getTrackedCount() {
+		return dpuByClient.size();
+	}
+	
+	public long getCheckedCount() {
+		return checkedCount.get();
+	}
+	
+	public long getSkippedCount() {
+		return skippedCount.get();
+	}
+	
+	/**
+	 * Largest number of sentences a client may still use without being
+	 * checked, i.e the most it can exceed its quota by if the remaining
+	 * sentences are used up by another process
+	 */
+	public double getSentencesOvershootBound() {
+		double bound = 0.0;
+		for (Window window : windows.values()) {
+			bound = Math.max(bound, window.remainingSentences());
+		}
+		return bound;
+	}
+	
+	/**
+	 * Largest number of credits a client may still use without being
+	 * checked, see {@link #getSentencesOvershootBound()}
+	 */
+	public double getCreditsOvershootBound() {
+		double bound = 0.0;
+		for (Window window : windows.values()) {
+			bound = Math.max(bound, window.remainingCredits());
+		}
+		return bound;
+	}
+	
+	/**
+	 * Longest time a subscription changed by another process may go
+	 * unchecked, in milliseconds
+	 */
+	public long getMaxUncheckedMillis() {
+		return maxIntervalMillis;
+	}
+	
+	/**
+	 * Latest dpu of the projects of one client
+	 */
+	private static class ProjectDpu {
+		private final Map<String, Double> dpuByProject = new HashMap<String, Double>();
+		private long lastSeen;
+		
+		synchronized Double put(String snetId, double dpu, long now) {
+			lastSeen = now;
+			return dpuByProject.put(snetId, dpu);
+		}
+		
+		synchronized long getLastSeen() {
+			return lastSeen;
+		}
+	}
+	
+	private static class Window {
+		private final double sentencesAllowance;
+		private final double creditsAllowance;
+		private final long endTime;
+		private final long checkBefore;
+		private double sentencesUsed;
+		private double creditsUsed;
+		
+		Window(double sentencesAllowance, double creditsAllowance, long endTime, long checkBefore) {
+			this.sentencesAllowance = sentencesAllowance;
+			this.creditsAllowance = creditsAllowance;
+			this.endTime = endTime;
+			this.checkBefore = checkBefore;
+		}
+		
+		/**
+		 * Adds the usage of an event
+		 * @return false if the event leaves the allowance, the end date is
+		 * passed or the window is too old
+		 */
+		synchronized boolean accept(long sentences, double credits, long now) {
+			sentencesUsed += sentences;
+			creditsUsed += credits;
+			return now < endTime && now < checkBefore
+					&& sentencesUsed < sentencesAllowance && creditsUsed < creditsAllowance;
+		}
+		
+		synchronized double remainingSentences() {
+			return Math.max(0.0, sentencesAllowance - sentencesUsed);
+		}
+		
+		synchronized double remainingCredits() {
+			return Math.max(0.0, creditsAllowance - creditsUsed);
+		}
+	}
+}
@@ -0,0 +1,543 @@
+package com.veda.discovery.usageStats;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.veda.discovery.commons.SubscriptionCollection;
+import com.veda.discovery.commons.SubscriptionSnapshot;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Hands out the remaining sentences and credits of a subscription in leases,
+ * so that a poller can enforce the quota on its own events and comes back
+ * only to renew, instead of the subscription being checked on every event.
+ *
+ * A lease is a chunk of QUOTA_LEASE_FRACTION of what is left of the
+ * subscription once the recorded usage and the outstanding leases are taken
+ * off, so the leases of a subscription never add up to more than its remaining
+ * quota. A lease ends after QUOTA_LEASE_DURATION seconds or at the end date of
+ * the subscription, whichever is first. An empty lease means the quota is
+ * used up, and the poller has to stop.
+ *
+ * A poller renews with the usage it took out of its lease. A lease which is
+ * neither renewed nor released before it ends is reclaimed as unused; whatever
+ * the poller used of it is counted once its usage events are recorded.
+ *
+ * The outstanding leases are kept in quota_leases, one document per
+ * subscription, so that they survive a restart and are shared by every
+ * instance of the ingestion server :
+ * {"_id" : ObjectId(subscription_id), "client_id" : ObjectId,
+ *  "seed_sentences" : 10, "seed_credits" : 5.0,
+ *  "reported_sentences" : 2, "reported_credits" : 1.0,
+ *  "leased_sentences" : 4, "leased_credits" : 2.0,
+ *  "leases" : [{"lease_id" : "...", "holder_id" : "...", "sentences" : 4, "credits" : 2.0,
+ *               "expires_at" : ISODate}]}
+ * A lease is reserved with a findAndModify which only matches while the
+ * leased totals leave room for it, and closed by an update which only
+ * matches while the lease is still in the document, so concurrent renewals
+ * never lease more than is left and a lease is given back once.
+ */
+public class QuotaLeaseAllocator {
+
+	private static final String QUOTA_LEASE_ENABLED = "QUOTA_LEASE_ENABLED";
+	private static final String QUOTA_LEASE_FRACTION = "QUOTA_LEASE_FRACTION";
+	private static final String QUOTA_LEASE_DURATION = "QUOTA_LEASE_DURATION";
+	private static final String MONGO_QUOTA_LEASES = "MONGO_QUOTA_LEASES";
+	// a reservation misses when another renewal of the subscription leased in between
+	private static final int RESERVE_ATTEMPTS = 5;
+
+	private static AsyncLog logger = AsyncLog.getLog(QuotaLeaseAllocator.class);
+
+	private static final boolean ENABLED = ConfigUtils.getBooleanProperty(QUOTA_LEASE_ENABLED, false);
+	private static QuotaLeaseAllocator instance;
+
+	static {
+		if (ENABLED) {
+			Metrics.addSource(new MetricSource() {
+				@Override
+				public void collect(Map<String, Number> metrics) {
+					QuotaLeaseAllocator allocator = getInstance();
+					metrics.put("quotaLease.active", allocator.getActiveCount());
+					metrics.put("quotaLease.granted", allocator.getGrantedCount());
+					metrics.put("quotaLease.reclaimed", allocator.getReclaimedCount());
+				}
+			});
+			ScheduledExecutorService reclaimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "quota-lease-reclaimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long interval = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(getInstance().durationMillis) / 4);
+			reclaimer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					getInstance().reclaimExpired();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	private final QuotaSource source;
+	private final DBCollection leases;
+	private final double fraction;
+	private final long durationMillis;
+
+	private final AtomicLong grantedCount = new AtomicLong();
+	private final AtomicLong reclaimedCount = new AtomicLong();
+
+	/**
+	 * @param source : subscriptions and their usage, i.e a local stand-in to
+	 * drive the allocator without the pooler
+	 * @param leases : collection the outstanding leases are kept in
+	 * @param fraction : part of the remaining quota one lease gets
+	 * @param durationMillis : time a lease is valid for
+	 */
+	public QuotaLeaseAllocator(QuotaSource source, DBCollection leases, double fraction, long durationMillis) {
+		this.source = source;
+		this.leases = leases;
+		this.fraction = Math.min(1.0, Math.max(0.0, fraction));
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Checks whether the pollers are given quota leases
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	public static synchronized QuotaLeaseAllocator getInstance() {
+		if (instance == null) {
+			MongoDbUtils mdbUtils = new MongoDbUtils();
+			instance = new QuotaLeaseAllocator(new LedgerQuotaSource(),
+							mdbUtils.getSubscriptionDbConnection().getCollection(
+											mdbUtils.retrieveCollectionName(MONGO_QUOTA_LEASES)),
+							ConfigUtils.getDoubleProperty(QUOTA_LEASE_FRACTION, 0.1),
+							TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(QUOTA_LEASE_DURATION, 300)));
+		}
+		return instance;
+	}
+
+	/**
+	 * Subscriptions and their recorded usage the leases are cut from
+	 */
+	public interface QuotaSource {
+		/**
+		 * @return active subscription of the client as stored, not cached, or
+		 * null if it could not be read
+		 */
+		SubscriptionSnapshot getSubscription(String clientId);
+
+		/**
+		 * @return usage recorded for the subscription, or null if there is none
+		 */
+		QuotaLedger.Usage getUsage(String clientId, String subscriptionId);
+	}
+
+	/**
+	 * Grants the first lease of a poller
+	 * @param clientId : Id of the client
+	 * @param holderId : Id of the poller or project the lease is for
+	 * @return lease, empty if the quota is used up or the subscription ended,
+	 * or null if the subscription could not be read
+	 */
+	public Lease grant(String clientId, String holderId) {
+		return renew(clientId, holderId, null, 0, 0.0);
+	}
+
+	/**
+	 * Closes the current lease of a poller and grants the next one. The
+	 * subscription is read again once the lease is reserved : a subscription
+	 * made inactive in between has its leases revoked after it is written,
+	 * so either the revocation drops the new lease or it is given back here.
+	 * @param leaseId : Id of the current lease, null if it has none
+	 * @param usedSentences : sentences the poller took out of the current lease
+	 * @param usedCredits : credits the poller took out of the current lease
+	 * @return lease, empty if the quota is used up or the subscription ended,
+	 * or null if the subscription or the leases could not be read
+	 */
+	public Lease renew(String clientId, String holderId, String leaseId, long usedSentences,
+					   double usedCredits) {
+		if (clientId == null) {
+			return null;
+		}
+		try {
+			if (leaseId != null) {
+				close(leaseId, usedSentences, usedCredits);
+			}
+			SubscriptionSnapshot subscription = source.getSubscription(clientId);
+			if (subscription == null) {
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			if (isEnded(subscription, now)) {
+				revokeClient(clientId);
+				return Lease.empty(clientId, holderId, subscription.getSubscriptionId(), now);
+			}
+			String subscriptionId = subscription.getSubscriptionId();
+			reclaimExpired(new BasicDBObject("_id", new ObjectId(subscriptionId)), now);
+			long endTime = subscription.getEndDate() == null ? Long.MAX_VALUE : subscription.getEndDate().getTime();
+			Lease lease = reserve(clientId, holderId, subscription, Math.min(now + durationMillis, endTime), now);
+			if (lease.isEmpty()) {
+				return lease;
+			}
+			SubscriptionSnapshot current = source.getSubscription(clientId);
+			if (current == null || isEnded(current, now) || !subscriptionId.equals(current.getSubscriptionId())) {
+				close(lease.getLeaseId(), 0, 0.0);
+				return current == null ? null : Lease.empty(clientId, holderId, subscriptionId, now);
+			}
+			grantedCount.incrementAndGet();
+			return lease;
+		} catch (MongoException e) {
+			logger.error("Exception in renewing the lease of clientId : {}", clientId, e);
+			return null;
+		}
+	}
+
+	private static boolean isEnded(SubscriptionSnapshot subscription, long now) {
+		return !subscription.isActive() || subscription.getSubscriptionId() == null
+			   || subscription.isExpiredAt(new Date(now));
+	}
+
+	/**
+	 * Cuts a lease out of what is left of the quota. The usage is the larger
+	 * of the recorded one and the one recorded when the leases document was
+	 * created plus the one reported by the pollers since, both only miss usage.
+	 */
+	private Lease reserve(String clientId, String holderId, SubscriptionSnapshot subscription, long expiresAt,
+						  long now) {
+		String subscriptionId = subscription.getSubscriptionId();
+		BasicDBObject idQuery = new BasicDBObject("_id", new ObjectId(subscriptionId));
+		for (int attempt = 0; attempt < RESERVE_ATTEMPTS; attempt++) {
+			QuotaLedger.Usage usage = source.getUsage(clientId, subscriptionId);
+			DBObject pool = findPool(clientId, idQuery, usage);
+			long usedSentences = Math.max(usage == null ? 0 : usage.getSentencesCount(),
+										  getLong(pool, "seed_sentences") + getLong(pool, "reported_sentences"));
+			double usedCredits = Math.max(usage == null ? 0.0 : usage.getCreditsCount(),
+										  getDouble(pool, "seed_credits") + getDouble(pool, "reported_credits"));
+			long freeSentences = subscription.getTotalSentences() - usedSentences;
+			double freeCredits = subscription.getTotalCredits() - usedCredits;
+			long remainingSentences = freeSentences - getLong(pool, "leased_sentences");
+			double remainingCredits = freeCredits - getDouble(pool, "leased_credits");
+			if (remainingSentences <= 0 || remainingCredits <= 0.0) {
+				return Lease.empty(clientId, holderId, subscriptionId, now);
+			}
+			// at least one sentence, never more than is left
+			long sentences = Math.min(remainingSentences, Math.max(1, (long) (fraction * remainingSentences)));
+			double credits = fraction * remainingCredits;
+			if (credits <= 0.0) {
+				return Lease.empty(clientId, holderId, subscriptionId, now);
+			}
+			Lease lease = new Lease(new ObjectId().toString(), clientId, holderId, subscriptionId, sentences,
+									credits, expiresAt);
+			// closing a lease moves at most its size from the leased to the reported
+			// usage, so a pool which still has room for the lease by its leased totals
+			// has room for it by its usage as well
+			BasicDBObject query = new BasicDBObject("_id", idQuery.get("_id"))
+							.append("leased_sentences", new BasicDBObject("$lte", freeSentences - sentences))
+							.append("leased_credits", new BasicDBObject("$lte", freeCredits - credits));
+			BasicDBObject update = new BasicDBObject("$inc", new BasicDBObject("leased_sentences", sentences)
+											.append("leased_credits", credits))
+							.append("$push", new BasicDBObject("leases", new BasicDBObject("lease_id", lease.getLeaseId())
+											.append("holder_id", holderId)
+											.append("sentences", sentences)
+											.append("credits", credits)
+											.append("expires_at", new Date(expiresAt))));
+			long started = Metrics.start();
+			try {
+				if (leases.findAndModify(query, new BasicDBObject("_id", 1), null, false, update, false, false) != null) {
+					return lease;
+				}
+			} finally {
+				Metrics.stop(Metrics.MONGO_UPDATE, started);
+			}
+		}
+		logger.warn("Lease of clientId : {} not reserved after {} attempts", clientId, RESERVE_ATTEMPTS);
+		return Lease.empty(clientId, holderId, subscriptionId, now);
+	}
+
+	/**
+	 * Reads the leases of a subscription, creating the document with the
+	 * usage recorded so far if the subscription has none yet
+	 */
+	private DBObject findPool(String clientId, BasicDBObject idQuery, QuotaLedger.Usage usage) {
+		BasicDBObject fields = new BasicDBObject("leases", 0);
+		long started = Metrics.start();
+		try {
+			DBObject pool = leases.findOne(idQuery, fields);
+			if (pool != null) {
+				return pool;
+			}
+			BasicDBObject setOnInsert = new BasicDBObject("client_id", new ObjectId(clientId))
+							.append("seed_sentences", usage == null ? 0L : usage.getSentencesCount())
+							.append("seed_credits", usage == null ? 0.0 : usage.getCreditsCount())
+							.append("reported_sentences", 0L)
+							.append("reported_credits", 0.0)
+							.append("leased_sentences", 0L)
+							.append("leased_credits", 0.0)
+							.append("leases", Arrays.asList());
+			try {
+				leases.update(idQuery, new BasicDBObject("$setOnInsert", setOnInsert), true, false);
+			} catch (MongoException e) {
+				// created by a concurrent renewal
+				if (!UsageDocuments.isDuplicateKey(e)) {
+					throw e;
+				}
+			}
+			return leases.findOne(idQuery, fields);
+		} finally {
+			Metrics.stop(Metrics.MONGO_FIND_ONE, started);
+		}
+	}
+
+	/**
+	 * Closes a lease the poller no longer needs, i.e when it is stopped
+	 * @param usedSentences : sentences the poller took out of the lease
+	 * @param usedCredits : credits the poller took out of the lease
+	 */
+	public void release(String clientId, String leaseId, long usedSentences, double usedCredits) {
+		if (clientId == null || leaseId == null) {
+			return;
+		}
+		try {
+			close(leaseId, usedSentences, usedCredits);
+		} catch (MongoException e) {
+			logger.error("Exception in releasing lease : {} of clientId : {}", leaseId, clientId, e);
+		}
+	}
+
+	/**
+	 * Returns the unused part of a lease to its subscription
+	 */
+	private void close(String leaseId, long usedSentences, double usedCredits) {
+		BasicDBObject query = new BasicDBObject("leases.lease_id", leaseId);
+		DBObject pool;
+		long started = Metrics.start();
+		try {
+			pool = leases.findOne(query, new BasicDBObject("leases", 1));
+		} finally {
+			Metrics.stop(Metrics.MONGO_FIND_ONE, started);
+		}
+		if (pool != null) {
+			for (Object lease : (List<?>) pool.get("leases")) {
+				if (leaseId.equals(((DBObject) lease).get("lease_id"))) {
+					closeLease(pool.get("_id"), (DBObject) lease, usedSentences, usedCredits);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a lease out of the leases of its subscription. The update only
+	 * matches while the lease is there, so it is given back once. The
+	 * reported usage is capped at the lease, a poller can not use more than
+	 * it was given.
+	 * @return true if this call closed the lease
+	 */
+	private boolean closeLease(Object subscriptionId, DBObject lease, long usedSentences, double usedCredits) {
+		Object leaseId = lease.get("lease_id");
+		long sentences = getLong(lease, "sentences");
+		double credits = getDouble(lease, "credits");
+		BasicDBObject query = new BasicDBObject("_id", subscriptionId).append("leases.lease_id", leaseId);
+		BasicDBObject update = new BasicDBObject("$pull", new BasicDBObject("leases",
+										new BasicDBObject("lease_id", leaseId)))
+						.append("$inc", new BasicDBObject("leased_sentences", -sentences)
+										.append("leased_credits", -credits)
+										.append("reported_sentences", Math.min(Math.max(0, usedSentences), sentences))
+										.append("reported_credits", Math.min(Math.max(0.0, usedCredits), credits)));
+		long started = Metrics.start();
+		try {
+			return leases.update(query, update).getN() > 0;
+		} finally {
+			Metrics.stop(Metrics.MONGO_UPDATE, started);
+		}
+	}
+
+	/**
+	 * Drops the leases of a client, i.e when its subscription is made
+	 * inactive. The pollers find out when they renew.
+	 * @param clientId : Id of the client
+	 */
+	public void revokeClient(String clientId) {
+		BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("leases", Arrays.asList())
+										.append("leased_sentences", 0L)
+										.append("leased_credits", 0.0));
+		long started = Metrics.start();
+		try {
+			leases.update(new BasicDBObject("client_id", new ObjectId(clientId)), update, false, true);
+		} finally {
+			Metrics.stop(Metrics.MONGO_UPDATE, started);
+		}
+	}
+
+	/**
+	 * Reclaims the leases which ended without being renewed or released
+	 */
+	public void reclaimExpired() {
+		try {
+			reclaimExpired(new BasicDBObject(), System.currentTimeMillis());
+		} catch (Exception e) {
+			logger.error("Exception in reclaiming leases : ", e);
+		}
+	}
+
+	/**
+	 * @param query : subscriptions whose leases are looked at
+	 */
+	private void reclaimExpired(BasicDBObject query, long now) {
+		Date date = new Date(now);
+		query.append("leases.expires_at", new BasicDBObject("$lte", date));
+		long started = Metrics.start();
+		DBCursor dbCursor = leases.find(query, new BasicDBObject("leases", 1));
+		try {
+			while (dbCursor.hasNext()) {
+				DBObject pool = dbCursor.next();
+				for (Object lease : (List<?>) pool.get("leases")) {
+					Date expiresAt = (Date) ((DBObject) lease).get("expires_at");
+					if (!expiresAt.after(date) && closeLease(pool.get("_id"), (DBObject) lease, 0, 0.0)) {
+						reclaimedCount.incrementAndGet();
+					}
+				}
+			}
+		} finally {
+			dbCursor.close();
+			Metrics.stop(Metrics.MONGO_FIND, started);
+		}
+	}
+
+	/**
+	 * @return no.of outstanding leases of all the subscriptions
+	 */
+	public int getActiveCount() {
+		int active = 0;
+		DBCursor dbCursor = leases.find(new BasicDBObject("leases.0", new BasicDBObject("$exists", true)),
+										new BasicDBObject("leases.lease_id", 1));
+		try {
+			while (dbCursor.hasNext()) {
+				active += ((List<?>) dbCursor.next().get("leases")).size();
+			}
+		} finally {
+			dbCursor.close();
+		}
+		return active;
+	}
+
+	public long getGrantedCount() {
+		return grantedCount.get();
+	}
+
+	public long getReclaimedCount() {
+		return reclaimedCount.get();
+	}
+
+	private static long getLong(DBObject dbObject, String key) {
+		Object value = dbObject == null ? null : dbObject.get(key);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	private static double getDouble(DBObject dbObject, String key) {
+		Object value = dbObject == null ? null : dbObject.get(key);
+		return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+	}
+
+	/**
+	 * Quota given to one poller till it expires
+	 */
+	public static class Lease {
+		private final String leaseId;
+		private final String clientId;
+		private final String holderId;
+		private final String subscriptionId;
+		private final long sentences;
+		private final double credits;
+		private final long expiresAt;
+
+		Lease(String leaseId, String clientId, String holderId, String subscriptionId, long sentences,
+			  double credits, long expiresAt) {
+			this.leaseId = leaseId;
+			this.clientId = clientId;
+			this.holderId = holderId;
+			this.subscriptionId = subscriptionId;
+			this.sentences = sentences;
+			this.credits = credits;
+			this.expiresAt = expiresAt;
+		}
+
+		static Lease empty(String clientId, String holderId, String subscriptionId, long now) {
+			return new Lease(null, clientId, holderId, subscriptionId, 0, 0.0, now);
+		}
+
+		public String getLeaseId() {
+			return leaseId;
+		}
+
+		public String getClientId() {
+			return clientId;
+		}
+
+		public String getHolderId() {
+			return holderId;
+		}
+
+		public String getSubscriptionId() {
+			return subscriptionId;
+		}
+
+		public long getSentences() {
+			return sentences;
+		}
+
+		public double getCredits() {
+			return credits;
+		}
+
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		/**
+		 * Checks whether the lease gives nothing, the poller has to stop
+		 */
+		public boolean isEmpty() {
+			return leaseId == null || sentences <= 0 || credits <= 0.0;
+		}
+	}
+
+	/**
+	 * Reads the subscriptions from Mongo, bypassing the cache so that a lease
+	 * is never sized from a subscription which has since changed, and the
+	 * usage through the ledger
+	 */
+	private static class LedgerQuotaSource implements QuotaSource {
+		@Override
+		public SubscriptionSnapshot getSubscription(String clientId) {
+			return new SubscriptionCollection().loadActiveSubscription(clientId);
+		}
+
+		@Override
+		public QuotaLedger.Usage getUsage(String clientId, String subscriptionId) {
+			return QuotaLedger.getInstance().getUsage(clientId, subscriptionId);
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package com.veda.discovery.usageStats;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Keeps the running sentences and DPU totals of the active subscriptions in
+ * memory, so that the quota checks do not have to read the usage on every
+ * usage event.
+ *
+ * A subscription is seeded from its project usage documents the first time it is asked
+ * for and is then kept current by {@link #recordUsage}. A write is announced by
+ * {@link #beginUsage} before it reaches Mongo, so that a seed or reconciliation
+ * reading in between does not replace the totals and the write is not counted
+ * twice. Increments that are written by another process are picked up by the
+ * periodic reconciliation against Mongo.
+ */
+public class QuotaLedger {
+	
+	private static final String QUOTA_LEDGER_RECONCILE_INTERVAL = "QUOTA_LEDGER_RECONCILE_INTERVAL";
+	private static final int RECONCILE_ATTEMPTS = 3;
+	
+	private static AsyncLog logger = AsyncLog.getLog(QuotaLedger.class);
+	private static final QuotaLedger INSTANCE = new QuotaLedger();
+	
+	// subscription-ID -> usage of the subscription
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final ScheduledExecutorService reconciler;
+	
+	private QuotaLedger() {
+		long interval = ConfigUtils.getLongProperty(QUOTA_LEDGER_RECONCILE_INTERVAL, 300);
+		reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "quota-ledger-reconciler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reconciler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reconcile();
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		Metrics.addSource(new MetricSource() {
+			@Override
+			public void collect(Map<String, Number> metrics) {
+				metrics.put("quotaLedger.subscriptions", entries.size());
+			}
+		});
+	}
+	
+	public static QuotaLedger getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * Gets the usage of a subscription, seeding it from the project usage documents
+	 * if it is not tracked yet
+	 * @param clientId : Id of the client
+	 * @param subscriptionId : Id of the active subscription
+	 * @return usage till date, or null if no usage is recorded for the subscription
+	 */
+	public Usage getUsage(String clientId, String subscriptionId) {
+		if (clientId == null || subscriptionId == null) {
+			return null;
+		}
+		Entry entry = entries.get(subscriptionId);
+		if (entry == null) {
+			// tracked before it is read, so that the writes which begin meanwhile hold off the seed
+			Entry unseeded = new Entry(clientId);
+			entry = entries.putIfAbsent(subscriptionId, unseeded);
+			if (entry == null) {
+				entry = unseeded;
+			}
+		}
+		if (entry.isSeeded()) {
+			return entry.snapshot();
+		}
+		Entry fresh = null;
+		for (int attempt = 0; attempt < RECONCILE_ATTEMPTS; attempt++) {
+			long version = entry.getVersion();
+			fresh = seed(clientId, subscriptionId);
+			if (fresh == null) {
+				return null;
+			}
+			if (entry.replaceIfUnchanged(fresh, version)) {
+				return entry.snapshot();
+			}
+		}
+		// the usage kept changing, the last read answers and the next call seeds again
+		return fresh.snapshot();
+	}
+	
+	/**
+	 * Announces a write of usage of a subscription, before it is written to the
+	 * project usage documents. Every write begun is ended by {@link #recordUsage}
+	 * or {@link #cancelUsage}.
+	 * @param subscriptionId : Id of the subscription
+	 * @return handle of the write
+	 */
+	public Write beginUsage(String subscriptionId) {
+		Entry entry = subscriptionId == null ? null : entries.get(subscriptionId);
+		if (entry != null) {
+			entry.begin();
+		}
+		return new Write(subscriptionId, entry);
+	}
+	
+	/**
+	 * Applies an increment that was written to the project usage documents. Sentences are
+	 * added to the total, the dpu is the latest value of the project and replaces
+	 * its previous value. If the subscription was not tracked, or was seeded
+	 * again, when the write began, whether its totals include the increment is
+	 * not known and the subscription is seeded again on the next call.
+	 * @param write : handle returned by {@link #beginUsage}
+	 */
+	public void recordUsage(Write write, String snetId, Integer sentencesCount, Double dpuCount) {
+		if (write.subscriptionId == null) {
+			return;
+		}
+		Entry entry = entries.get(write.subscriptionId);
+		if (entry != null && entry == write.entry) {
+			entry.complete(snetId, sentencesCount == null ? 0 : sentencesCount, dpuCount);
+			return;
+		}
+		if (write.entry != null) {
+			write.entry.end();
+		}
+		if (entry != null) {
+			entry.invalidate();
+		}
+	}
+	
+	/**
+	 * Ends a write which failed. A failed write which still reached Mongo is
+	 * picked up by the reconciliation.
+	 * @param write : handle returned by {@link #beginUsage}
+	 */
+	public void cancelUsage(Write write) {
+		if (write.entry != null) {
+			write.entry.end();
+		}
+	}
+	
+	/**
+	 * Stops tracking the subscriptions of a client, i.e when the
+	 * active subscription is made inactive
+	 * @param clientId : Id of the client
+	 */
+	public void evictClient(String clientId) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().clientId.equals(clientId)) {
+				iterator.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Re-reads the usage of every tracked subscription from the project usage documents
+	 * to correct the drift from missed or external increments. The read replaces
+	 * the running totals only if no increment was applied while it ran, else it
+	 * could overwrite the increment. A subscription which keeps changing is
+	 * read again a few times and otherwise left for the next reconciliation.
+	 */
+	public void reconcile() {
+		for (Map.Entry<String, Entry> tracked : entries.entrySet()) {
+			try {
+				Entry current = tracked.getValue();
+				boolean replaced = false;
+				for (int attempt = 0; attempt < RECONCILE_ATTEMPTS && !replaced; attempt++) {
+					long version = current.getVersion();
+					Entry fresh = seed(current.clientId, tracked.getKey());
+					if (fresh == null) {
+						break;
+					}
+					replaced = current.replaceIfUnchanged(fresh, version);
+				}
+				if (!replaced) {
+					logger.debug("Reconcile of subscriptionId : {} deferred, it kept changing", tracked.getKey());
+				}
+			} catch (Exception e) {
+				logger.error("Exception in reconcile of subscriptionId : {}", tracked.getKey(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the usage of a subscription. With write-behind enabled, the buffered
+	 * usage is taken before the written usage is read, so that usage flushed in
+	 * between is in the read, and is added unless the read shows it written.
+	 * Flushes are not held off.
+	 */
+	private Entry seed(String clientId, String subscriptionId) {
+		if (!UsageStatsBuffer.isEnabled()) {
+			return readProjects(clientId, subscriptionId, null);
+		}
+		List<PendingUsage> buffered = UsageStatsBuffer.getInstance().getPending(subscriptionId);
+		Map<String, DBObject> projects = new HashMap<String, DBObject>();
+		Entry entry = readProjects(clientId, subscriptionId, projects);
+		if (entry != null) {
+			for (PendingUsage usage : buffered) {
+				if (UsageDocuments.appliedDpuDelta(projects.get(usage.getSnetId()), usage.getOpId()) == null) {
+					entry.apply(usage.getSnetId(), usage.getSentencesCount(), usage.getDpuCount());
+				}
+			}
+		}
+		return entry;
+	}
+	
+	/**
+	 * Reads the sentences and dpu of each project of the subscription
+	 * @param projects : collects snet_id -> the document read with its recent ops, null if not needed
+	 */
+	private Entry readProjects(String clientId, String subscriptionId, Map<String, DBObject> projects) {
+		/**
+		 * Query Used :
+		 * db.project_usage.find({"subscription_id" : ObjectId("52a728abc07f8ad68acedcdd")},
+		 *                       {"snet_id" : 1, "sentences_count" : 1, "dpu" : 1, "recent_ops" : 1})
+		 */
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		try {
+			DBCollection mongoCollection = UsageDocuments.getProjectUsageCollection(mdbUtils);
+			BasicDBObject query = new BasicDBObject("subscription_id", new ObjectId(subscriptionId));
+			BasicDBObject fields = new BasicDBObject("snet_id", 1).append("sentences_count", 1)
+											.append("dpu", 1);
+			if (projects != null) {
+				fields.append("recent_ops", 1);
+			}
+			Entry entry = new Entry(clientId);
+			long started = Metrics.start();
+			try {
+				DBCursor cursor = mongoCollection.find(query, fields);
+				while (cursor.hasNext()) {
+					DBObject dbObject = cursor.next();
+					entry.seedProject((String) dbObject.get("snet_id"), toLong(dbObject.get("sentences_count")),
+									  toDouble(dbObject.get("dpu")));
+					if (projects != null) {
+						projects.put((String) dbObject.get("snet_id"), dbObject);
+					}
+				}
+			} finally {
+				Metrics.stop(Metrics.MONGO_FIND, started);
+			}
+			return entry;
+		} catch (Exception e) {
+			logger.error("Exception : ", e);
+		}
+		return null;
+	}
+	
+	private static long toLong(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : 0L;
+	}
+	
+	private static double toDouble(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+	}
+	
+	/**
+	 * A write of usage begun by {@link #beginUsage}
+	 */
+	public static final class Write {
+		private final String subscriptionId;
+		// entry tracked when the write began, null if the subscription was not tracked
+		private final Entry entry;
+		
+		private Write(String subscriptionId, Entry entry) {
+			this.subscriptionId = subscriptionId;
+			this.entry = entry;
+		}
+	}
+	
+	/**
+	 * Immutable view of the usage of a subscription
+	 */
+	public static class Usage {
+		private final long sentencesCount;
+		private final double creditsCount;
+		
+		public Usage(long sentencesCount, double creditsCount) {
+			this.sentencesCount = sentencesCount;
+			this.creditsCount = creditsCount;
+		}
+		
+		public long getSentencesCount() {
+			return sentencesCount;
+		}
+		
+		public double getCreditsCount() {
+			return creditsCount;
+		}
+	}
+	
+	/**
+	 * Running totals of one subscription
+	 */
+	private static class Entry {
+		private final String clientId;
+		private final Map<String, Double> dpuByProject = new HashMap<String, Double>();
+		private long sentencesCount;
+		private double creditsCount;
+		// incremented by every begun and applied usage, a reconciliation replaces the totals only if it did not move
+		private long version;
+		// no.of writes begun and not ended, a reconciliation waits for them
+		private int inFlight;
+		// false until the totals are read, and again once they are not known to hold a write
+		private boolean seeded;
+		
+		Entry(String clientId) {
+			this.clientId = clientId;
+		}
+		
+		synchronized void seedProject(String snetId, long sentences, double dpu) {
+			sentencesCount += sentences;
+			creditsCount += dpu;
+			dpuByProject.put(snetId, dpu);
+		}
+		
+		synchronized void begin() {
+			version++;
+			inFlight++;
+		}
+		
+		synchronized void end() {
+			version++;
+			inFlight--;
+		}
+		
+		synchronized void complete(String snetId, long sentences, Double dpu) {
+			inFlight--;
+			apply(snetId, sentences, dpu);
+		}
+		
+		synchronized void invalidate() {
+			version++;
+			seeded = false;
+		}
+		
+		synchronized boolean isSeeded() {
+			return seeded;
+		}
+		
+		synchronized void apply(String snetId, long sentences, Double dpu) {
+			version++;
+			sentencesCount += sentences;
+			Double previous = dpuByProject.get(snetId);
+			if (dpu != null) {
+				creditsCount += dpu - (previous == null ? 0.0 : previous);
+				dpuByProject.put(snetId, dpu);
+			} else if (previous == null) {
+				dpuByProject.put(snetId, 0.0);
+			}
+		}
+		
+		synchronized long getVersion() {
+			return version;
+		}
+		
+		/**
+		 * Replaces the totals with a fresh read, unless usage was begun or
+		 * applied since the version was taken, or a write is still in flight
+		 * @return false if the totals moved and were kept
+		 */
+		synchronized boolean replaceIfUnchanged(Entry fresh, long expectedVersion) {
+			if (version != expectedVersion || inFlight > 0) {
+				return false;
+			}
+			seeded = true;
+			synchronized (fresh) {
+				sentencesCount = fresh.sentencesCount;
+				creditsCount = fresh.creditsCount;
+				dpuByProject.clear();
+				dpuByProject.putAll(fresh.dpuByProject);
+			}
+			return true;
+		}
+		
+		synchronized Usage snapshot() {
+			if (dpuByProject.isEmpty()) {
+				return null;
+			}
+			return new Usage(sentencesCount, creditsCount);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.veda.discovery.usageStats;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Layout of the usage collections.
+ *
+ * project_usage holds one document per project of a subscription, unique on
+ * (subscription_id, snet_id) :
+ * {"client_id" : ObjectId, "subscription_id" : ObjectId, "plan_ref_id" : "...",
+ *  "snet_id" : "...", "project_name" : "...", "sentences_count" : 10,
+ *  "messages_count" : 5, "dpu" : 0.5, "recent_ops" : [{"op" : "...", "dpu_delta" : 0.5}],
+ *  "journal_seq" : {"<journal id>" : 42}}
+ *
+ * usage_totals holds the sums of the projects, keyed by the subscription, and
+ * the time they were last written, which the incremental sweep looks for :
+ * {"_id" : ObjectId(subscription_id), "client_id" : ObjectId, "plan_ref_id" : "...",
+ *  "sentences_count" : 10, "messages_count" : 5, "dpu" : 0.5, "updated_at" : ISODate,
+ *  "recent_ops" : ["..."]}
+ *
+ * Sentence and message counts are incremented. The dpu of a project is the
+ * latest value reported for it and replaces the previous one, so its totals
+ * are incremented by the difference. See {@link UsageStatisticsMigration}
+ * for the conversion from the statistics list of usage_statistics.
+ *
+ * Every increment of a project and of the totals carries the id of the write
+ * it belongs to, kept in recent_ops, so that retrying a write whose outcome is
+ * not known does not count the usage twice. A project also keeps the dpu
+ * difference of each write, which its retry passes on to the totals.
+ * Usage written from a {@link UsageJournal} marks the project with the last
+ * sequence it includes, so the records replayed after a crash which are
+ * already in the project are skipped.
+ */
+public final class UsageDocuments {
+	
+	private static final String MONGO_PROJECT_USAGE = "MONGO_PROJECT_USAGE";
+	private static final String MONGO_USAGE_TOTALS = "MONGO_USAGE_TOTALS";
+	private static final String MONGO_USAGE_DEAD_LETTERS = "MONGO_USAGE_DEAD_LETTERS";
+	private static final int DUPLICATE_KEY = 11000;
+	private static final int DUPLICATE_KEY_ON_UPDATE = 11001;
+	// no.of increments remembered per subscription, far more than can be in flight at once
+	private static final int RECENT_OPS = 256;
+	// no.of writes remembered per project, the retries of a write follow it closely
+	private static final int PROJECT_RECENT_OPS = 32;
+	private static final int TOTALS_UPDATE_ATTEMPTS = 3;
+	
+	private UsageDocuments() {
+	}
+	
+	public static DBCollection getProjectUsageCollection(MongoDbUtils mdbUtils) {
+		return mdbUtils.getSubscriptionDbConnection().getCollection(
+						mdbUtils.retrieveCollectionName(MONGO_PROJECT_USAGE));
+	}
+	
+	public static DBCollection getTotalsCollection(MongoDbUtils mdbUtils) {
+		return mdbUtils.getSubscriptionDbConnection().getCollection(
+						mdbUtils.retrieveCollectionName(MONGO_USAGE_TOTALS));
+	}
+	
+	/**
+	 * Usage which could not be written, kept to be corrected and written by hand
+	 */
+	public static DBCollection getDeadLettersCollection(MongoDbUtils mdbUtils) {
+		return mdbUtils.getSubscriptionDbConnection().getCollection(
+						mdbUtils.retrieveCollectionName(MONGO_USAGE_DEAD_LETTERS));
+	}
+	
+	/**
+	 * Query matching the usage document of one project of a subscription
+	 */
+	static BasicDBObject projectQuery(String subscriptionId, String snetId) {
+		return new BasicDBObject("subscription_id", new ObjectId(subscriptionId))
+						.append("snet_id", snetId);
+	}
+	
+	/**
+	 * Query matching the usage document of a project only while it is as it
+	 * was read and does not hold the write yet
+	 * @param previousDpu : dpu read from the document, null if it had none
+	 * @param opId : id of the write, see {@link #newOpId()}
+	 */
+	static BasicDBObject projectQuery(String subscriptionId, String snetId, Object previousDpu, String opId) {
+		return projectQuery(subscriptionId, snetId)
+						.append("dpu", previousDpu != null ? previousDpu : new BasicDBObject("$exists", false))
+						.append("recent_ops.op", new BasicDBObject("$ne", opId));
+	}
+	
+	/**
+	 * Query matching the totals document of a subscription
+	 */
+	public static BasicDBObject totalsQuery(String subscriptionId) {
+		return new BasicDBObject("_id", new ObjectId(subscriptionId));
+	}
+	
+	/**
+	 * Query matching the totals document of a subscription unless it already
+	 * holds the increment of a write
+	 * @param opId : id of the write, see {@link #newOpId()}
+	 */
+	static BasicDBObject totalsQuery(String subscriptionId, String opId) {
+		return totalsQuery(subscriptionId).append("recent_ops", new BasicDBObject("$ne", opId));
+	}
+	
+	/**
+	 * Id of a write of usage, shared by all the attempts of its totals increment
+	 */
+	public static String newOpId() {
+		return new ObjectId().toString();
+	}
+	
+	/**
+	 * Upsert of the usage document of a project
+	 * @param projectName : name of the project, only needed when the document is created
+	 * @param dpuCount : latest dpu of the project or null to keep the current one
+	 */
+	static BasicDBObject projectUpdate(String clientId, String planRefId, String projectName,
+									   Number sentencesCount, Number messagesCount, Double dpuCount) {
+		BasicDBObject setOnInsert = new BasicDBObject("client_id", new ObjectId(clientId))
+						.append("plan_ref_id", planRefId)
+						.append("project_name", projectName == null ? "" : projectName);
+		BasicDBObject updateQuery = new BasicDBObject("$inc", new BasicDBObject()
+						.append("sentences_count", sentencesCount == null ? 0 : sentencesCount)
+						.append("messages_count", messagesCount == null ? 0 : messagesCount));
+		if (dpuCount == null) {
+			setOnInsert.append("dpu", 0.0);
+		} else {
+			updateQuery.append("$set", new BasicDBObject("dpu", dpuCount));
+		}
+		return updateQuery.append("$setOnInsert", setOnInsert);
+	}
+	
+	/**
+	 * Same as {@link #projectUpdate(String, String, String, Number, Number, Double)}
+	 * recording the write with the difference it makes to the dpu of the totals
+	 * @param opId : id of the write
+	 * @param dpuDelta : difference between the new and the previous dpu of the project
+	 * @param journalMark : {@link #journalMark} of the journaled usage, null if it is not journaled
+	 */
+	static BasicDBObject projectUpdate(String clientId, String planRefId, String projectName,
+									   Number sentencesCount, Number messagesCount, Double dpuCount,
+									   String opId, double dpuDelta, BasicDBObject journalMark) {
+		BasicDBObject op = new BasicDBObject("op", opId).append("dpu_delta", dpuDelta);
+		BasicDBObject update = projectUpdate(clientId, planRefId, projectName, sentencesCount, messagesCount, dpuCount)
+						.append("$push", new BasicDBObject("recent_ops", new BasicDBObject("$each", Arrays.asList(op))
+								.append("$slice", -PROJECT_RECENT_OPS)));
+		if (journalMark != null) {
+			BasicDBObject set = (BasicDBObject) update.get("$set");
+			if (set == null) {
+				set = new BasicDBObject();
+				update.append("$set", set);
+			}
+			set.putAll(journalMark.toMap());
+		}
+		return update;
+	}
+	
+	/**
+	 * Mark of the last journal record included in a write of a project
+	 * @param journalId : {@link UsageJournal#getId()}
+	 * @param sequence : sequence of the last record of the project written
+	 */
+	static BasicDBObject journalMark(String journalId, long sequence) {
+		return new BasicDBObject("journal_seq." + journalId, sequence);
+	}
+	
+	/**
+	 * Reads the mark of a journal from a project document
+	 * @return sequence of the last record of the project written, 0 if none is
+	 */
+	static long journalSequence(DBObject project, String journalId) {
+		Object marks = project == null ? null : project.get("journal_seq");
+		Object sequence = marks instanceof DBObject ? ((DBObject) marks).get(journalId) : null;
+		return sequence instanceof Number ? ((Number) sequence).longValue() : 0;
+	}
+	
+	/**
+	 * Looks for a write among the ones recorded on the usage document of a project
+	 * @param project : document read with its recent_ops, null if it is not present
+	 * @return dpu difference of the write, null if it is not recorded
+	 */
+	static Double appliedDpuDelta(DBObject project, String opId) {
+		Object ops = project == null ? null : project.get("recent_ops");
+		if (ops instanceof List) {
+			for (Object op : (List<?>) ops) {
+				if (op instanceof DBObject && opId.equals(((DBObject) op).get("op"))) {
+					Object dpuDelta = ((DBObject) op).get("dpu_delta");
+					return dpuDelta instanceof Number ? ((Number) dpuDelta).doubleValue() : 0.0;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Upsert of the totals document of a subscription
+	 * @param dpuDelta : difference between the new and the previous dpu of the project
+	 * @param opId : id of the write, recorded with the increment
+	 */
+	static BasicDBObject totalsUpdate(String clientId, String planRefId, Number sentencesCount,
+									  Number messagesCount, double dpuDelta, String opId) {
+		return new BasicDBObject("$inc", new BasicDBObject()
+						.append("sentences_count", sentencesCount == null ? 0 : sentencesCount)
+						.append("messages_count", messagesCount == null ? 0 : messagesCount)
+						.append("dpu", dpuDelta))
+				.append("$set", new BasicDBObject("updated_at", new Date()))
+				.append("$push", new BasicDBObject("recent_ops", new BasicDBObject("$each", Arrays.asList(opId))
+						.append("$slice", -RECENT_OPS)))
+				.append("$setOnInsert", new BasicDBObject("client_id", new ObjectId(clientId))
+						.append("plan_ref_id", planRefId));
+	}
+	
+	/**
+	 * Increments the totals of a subscription once for a write, retrying
+	 * failures. An upsert which matches nothing because the increment is
+	 * already recorded fails on the _id of the totals document; the first such
+	 * failure may also be a concurrent insert of the document, so it is retried
+	 * once, and a second one means the increment was applied.
+	 * @param query : {@link #totalsQuery(String, String)} of the write
+	 * @param update : {@link #totalsUpdate(String, String, Number, Number, double, String)} of the write
+	 */
+	static void incrementTotals(DBCollection totals, BasicDBObject query, BasicDBObject update) {
+		int duplicates = 0;
+		for (int attempt = 1; ; attempt++) {
+			long started = Metrics.start();
+			try {
+				totals.update(query, update, true, false);
+				return;
+			} catch (MongoException e) {
+				if (isDuplicateKey(e)) {
+					if (++duplicates == 2) {
+						return;
+					}
+				} else if (attempt >= TOTALS_UPDATE_ATTEMPTS) {
+					throw e;
+				}
+			} finally {
+				Metrics.stop(Metrics.MONGO_UPDATE, started);
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether a write failed on the unique index, i.e when two upserts
+	 * insert the same project at once
+	 */
+	static boolean isDuplicateKey(int code) {
+		return code == DUPLICATE_KEY || code == DUPLICATE_KEY_ON_UPDATE;
+	}
+	
+	static boolean isDuplicateKey(MongoException e) {
+		return isDuplicateKey(e.getCode());
+	}
+	
+	/**
+	 * Difference the dpu of a project makes to the totals
+	 * @param dpuCount : new dpu, null if it is not reported
+	 * @param previousDpu : stored dpu of the project, null if it has no document yet
+	 */
+	static double dpuDelta(Double dpuCount, Object previousDpu) {
+		if (dpuCount == null) {
+			return 0.0;
+		}
+		return dpuCount - (previousDpu instanceof Number ? ((Number) previousDpu).doubleValue() : 0.0);
+	}
+}
@@ -0,0 +1,258 @@
+package com.veda.discovery.usageStats;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+
+/**
+ * Drops the usage events a poller delivers again, i.e when it retries after
+ * a timeout, so that their counts are not incremented twice. Only events
+ * which carry an id are de-duplicated.
+ *
+ * The ids of the last DEDUP_EXACT_CAPACITY events are kept exactly. Ids
+ * pushed out by newer ones move to a bloom filter, which remembers them for
+ * the rest of DEDUP_WINDOW in fixed memory. The filter is split into
+ * generations covering a part of the window each, and the oldest one is
+ * cleared when a new one starts.
+ *
+ * The bloom filter may report an id it has never seen, so an id found only
+ * there is accepted as probably new rather than dropping a genuine event,
+ * and counted as dedup.bloomSuspects. Up to DEDUP_BLOOM_EXPECTED_IDS ids per
+ * window, at most a DEDUP_BLOOM_FPP share of them are false positives; the
+ * rest are retries older than the exact ids, which are counted twice, and a
+ * rising count calls for a larger DEDUP_EXACT_CAPACITY.
+ *
+ * The filters are allocated on the first {@link #getInstance()}, i.e not at
+ * all while de-duplication is disabled.
+ */
+public class UsageEventDeduplicator {
+	
+	private static final String DEDUP_ENABLED = "DEDUP_ENABLED";
+	private static final String DEDUP_WINDOW = "DEDUP_WINDOW";
+	private static final String DEDUP_EXACT_CAPACITY = "DEDUP_EXACT_CAPACITY";
+	private static final String DEDUP_BLOOM_EXPECTED_IDS = "DEDUP_BLOOM_EXPECTED_IDS";
+	private static final String DEDUP_BLOOM_FPP = "DEDUP_BLOOM_FPP";
+	private static final int GENERATIONS = 4;
+	
+	private static final boolean ENABLED = ConfigUtils.getBooleanProperty(DEDUP_ENABLED, true);
+	private static volatile UsageEventDeduplicator instance;
+	
+	private final long windowMillis;
+	private final long generationMillis;
+	private final int exactCapacity;
+	// client|event-ID -> time it was accepted, oldest first
+	private final LinkedHashMap<String, Long> recent = new LinkedHashMap<String, Long>();
+	private final BloomFilter[] generations = new BloomFilter[GENERATIONS];
+	private int current = 0;
+	private long currentStartedMillis = System.currentTimeMillis();
+	
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong bloomSuspectCount = new AtomicLong();
+	
+	UsageEventDeduplicator(long windowMillis, int exactCapacity, int expectedIds, double fpp) {
+		this.windowMillis = windowMillis;
+		this.generationMillis = Math.max(1, windowMillis / GENERATIONS);
+		this.exactCapacity = exactCapacity;
+		// a burst may put all the ids of a window into one generation, and a
+		// lookup asks every generation, so each gets all the ids and a share of the rate
+		for (int i = 0; i < GENERATIONS; i++) {
+			generations[i] = new BloomFilter(Math.max(1, expectedIds), fpp / GENERATIONS);
+		}
+	}
+	
+	/**
+	 * Checks whether events with an id are de-duplicated
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+	
+	public static UsageEventDeduplicator getInstance() {
+		UsageEventDeduplicator deduplicator = instance;
+		if (deduplicator == null) {
+			synchronized (UsageEventDeduplicator.class) {
+				deduplicator = instance;
+				if (deduplicator == null) {
+					deduplicator = new UsageEventDeduplicator(
+									TimeUnit.SECONDS.toMillis(ConfigUtils.getLongProperty(DEDUP_WINDOW, 3600)),
+									ConfigUtils.getIntProperty(DEDUP_EXACT_CAPACITY, 100000),
+									ConfigUtils.getIntProperty(DEDUP_BLOOM_EXPECTED_IDS, 1000000),
+									ConfigUtils.getDoubleProperty(DEDUP_BLOOM_FPP, 0.001));
+					instance = deduplicator;
+					Metrics.addSource(new MetricSource() {
+						@Override
+						public void collect(Map<String, Number> metrics) {
+							metrics.put("dedup.duplicates", instance.getDuplicateCount());
+							metrics.put("dedup.bloomSuspects", instance.getBloomSuspectCount());
+							metrics.put("dedup.recentIds", instance.getRecentCount());
+						}
+					});
+				}
+			}
+		}
+		return deduplicator;
+	}
+	
+	/**
+	 * Records the id of an event, unless it was seen within the window
+	 * @param clientId : Id of the client, event ids only have to be unique per client
+	 * @param eventId : Id the poller gave the event
+	 * @return false if the event is a duplicate and has to be dropped
+	 */
+	public synchronized boolean accept(String clientId, String eventId) {
+		long now = System.currentTimeMillis();
+		rotate(now);
+		String key = clientId + "|" + eventId;
+		Long acceptedAt = recent.get(key);
+		if (acceptedAt != null && now - acceptedAt < windowMillis) {
+			duplicateCount.incrementAndGet();
+			Metrics.increment(Metrics.USAGE_DUPLICATES);
+			return false;
+		}
+		if (acceptedAt == null && mightContain(hash(key))) {
+			// a late retry or a false positive, which cannot be told apart
+			bloomSuspectCount.incrementAndGet();
+		}
+		// an expired entry is put again as the newest
+		recent.remove(key);
+		recent.put(key, now);
+		evict(now);
+		return true;
+	}
+	
+	/**
+	 * Forgets an accepted event which could not be applied, so that its
+	 * retry is accepted
+	 */
+	public synchronized void release(String clientId, String eventId) {
+		recent.remove(clientId + "|" + eventId);
+	}
+	
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+	
+	public long getBloomSuspectCount() {
+		return bloomSuspectCount.get();
+	}
+	
+	public synchronized int getRecentCount() {
+		return recent.size();
+	}
+	
+	/**
+	 * Drops the ids older than the window and moves the ids over the
+	 * capacity into the current generation of the bloom filter
+	 */
+	private void evict(long now) {
+		Iterator<Map.Entry<String, Long>> iterator = recent.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Long> oldest = iterator.next();
+			boolean expired = now - oldest.getValue() >= windowMillis;
+			if (!expired && recent.size() <= exactCapacity) {
+				return;
+			}
+			if (!expired) {
+				generations[current].add(hash(oldest.getKey()));
+			}
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * Starts a new generation for every part of the window which has passed,
+	 * clearing the oldest one
+	 */
+	private void rotate(long now) {
+		if (now - currentStartedMillis >= windowMillis) {
+			for (BloomFilter generation : generations) {
+				generation.clear();
+			}
+			currentStartedMillis = now;
+			return;
+		}
+		while (now - currentStartedMillis >= generationMillis) {
+			current = (current + 1) % GENERATIONS;
+			generations[current].clear();
+			currentStartedMillis += generationMillis;
+		}
+	}
+	
+	private boolean mightContain(long hash) {
+		for (BloomFilter generation : generations) {
+			if (generation.mightContain(hash)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * 64 bit FNV-1a hash of an id, the filter derives its bit positions from both halves.
+	 * The halves of FNV are correlated for ids which differ in the last characters,
+	 * the murmur3 finalizer mixes them.
+	 */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+	/**
+	 * Bloom filter of a fixed no.of bits, sized for the expected ids and the
+	 * false positive rate
+	 */
+	private static class BloomFilter {
+		private final long[] words;
+		private final int bitCount;
+		private final int hashCount;
+		
+		BloomFilter(int expectedIds, double fpp) {
+			double ln2 = Math.log(2);
+			long bits = (long) Math.ceil(-expectedIds * Math.log(fpp) / (ln2 * ln2));
+			this.bitCount = (int) Math.max(64, Math.min(bits, Integer.MAX_VALUE - 63));
+			this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedIds * ln2));
+			this.words = new long[(bitCount + 63) / 64];
+		}
+		
+		void add(long hash) {
+			int hash1 = (int) hash;
+			int hash2 = (int) (hash >>> 32);
+			for (int i = 0; i < hashCount; i++) {
+				int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+				words[bit >>> 6] |= 1L << bit;
+			}
+		}
+		
+		boolean mightContain(long hash) {
+			int hash1 = (int) hash;
+			int hash2 = (int) (hash >>> 32);
+			for (int i = 0; i < hashCount; i++) {
+				int bit = ((hash1 + i * hash2) & Integer.MAX_VALUE) % bitCount;
+				if ((words[bit >>> 6] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		void clear() {
+			Arrays.fill(words, 0L);
+		}
+	}
+}
@@ -0,0 +1,615 @@
+package com.veda.discovery.usageStats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
+
+/**
+ * Append-only journal of the usage events accepted by {@link UsageStatsBuffer},
+ * so that the usage buffered in memory is not lost when the process dies.
+ *
+ * Records are appended to memory-mapped segment files of a fixed size,
+ * named after the sequence of their first record. A full segment is forced
+ * to disk and a new one is started. Each record is :
+ * payload length (int), sequence (long), payload, CRC32 of sequence and payload (int)
+ * A zero length or a bad checksum marks the end of a segment, i.e a record
+ * torn by a crash.
+ *
+ * Appending does not wait for the disk. {@link #awaitCommitted} waits until
+ * the committer thread has forced the record, and one force commits every
+ * record appended while the previous one ran (group commit). A failed force
+ * is retried COMMIT_ATTEMPTS times with a doubling delay; after that the
+ * journal is unhealthy : the waiting and later appends fail with the error.
+ *
+ * Once the buffer has written the usage up to a sequence, {@link #checkpoint}
+ * stores it and deletes the segments holding only older records. On startup
+ * the records after the checkpoint are handed back by {@link #replay}.
+ *
+ * A journal has an id, kept in its directory, which names the marks of the
+ * sequences written to the project documents. A new directory starts its
+ * sequences over under a new id, so the marks of the old one do not hide them.
+ */
+class UsageJournal {
+	
+	private static final String SEGMENT_PREFIX = "usage-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String ID_FILE = "journal-id";
+	// payload length, sequence and checksum
+	private static final int RECORD_OVERHEAD = 4 + 8 + 4;
+	private static final int COMMIT_ATTEMPTS = 5;
+	private static final long COMMIT_RETRY_MILLIS = 100;
+	
+	private static Logger logger = Logger.getLogger(UsageJournal.class);
+	
+	private final File directory;
+	private final int segmentSize;
+	private String id;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private final Condition committed = lock.newCondition();
+	private MappedByteBuffer segment;
+	private long segmentFirstSequence;
+	// segments before the current one which are not yet checkpointed
+	private final List<SealedSegment> sealed = new ArrayList<SealedSegment>();
+	private long lastSequence;
+	private long committedSequence;
+	private final Object checkpointLock = new Object();
+	private volatile long checkpointSequence;
+	private long commitCount;
+	private boolean open = true;
+	// set once the records can no longer be forced
+	private IOException failure;
+	private final Thread committer;
+	
+	private UsageJournal(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runCommitter();
+			}
+		}, "usage-journal-committer");
+		this.committer.setDaemon(true);
+	}
+	
+	/**
+	 * Opens the journal of a directory, creating it if needed. The records
+	 * which are not checkpointed are read back by {@link #replay}.
+	 * @param directory : directory of the segment files
+	 * @param segmentSize : size of a segment file in bytes
+	 */
+	static UsageJournal open(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create usage journal directory " + directory);
+		}
+		UsageJournal journal = new UsageJournal(directory, segmentSize);
+		journal.id = journal.readId();
+		journal.checkpointSequence = journal.readCheckpoint();
+		journal.lastSequence = journal.checkpointSequence;
+		journal.committedSequence = journal.checkpointSequence;
+		return journal;
+	}
+	
+	/**
+	 * Reads the records after the checkpoint and starts a new segment after
+	 * them. To be called once, before the first append.
+	 * @return records not yet checkpointed, in the order they were appended
+	 */
+	List<Record> replay() throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		for (File file : listSegments()) {
+			long segmentLast = readSegment(file, records);
+			sealed.add(new SealedSegment(file, segmentLast));
+		}
+		lock.lock();
+		try {
+			for (SealedSegment segment : sealed) {
+				lastSequence = Math.max(lastSequence, segment.lastSequence);
+			}
+			committedSequence = lastSequence;
+		} finally {
+			lock.unlock();
+		}
+		// drops the segments holding only checkpointed records first, an empty
+		// segment left by a crash may have the name of the new one
+		deleteCheckpointed();
+		lock.lock();
+		try {
+			startSegment();
+		} finally {
+			lock.unlock();
+		}
+		committer.start();
+		return records;
+	}
+	
+	/**
+	 * Appends a usage event without waiting for the disk
+	 * @return sequence of the record, to wait for with {@link #awaitCommitted}
+	 */
+	long append(String clientId, String subscriptionId, String planRefId, String snetId,
+				Integer sentencesCount, Integer messagesCount, Double dpuCount) throws IOException {
+		byte[] payload = encode(clientId, subscriptionId, planRefId, snetId, sentencesCount,
+								messagesCount, dpuCount);
+		lock.lock();
+		try {
+			if (!open) {
+				throw new IOException("Usage journal is closed");
+			}
+			if (failure != null) {
+				throw new IOException("Usage journal is unhealthy", failure);
+			}
+			// keeps room for the zero length which ends the segment
+			if (segment.remaining() < RECORD_OVERHEAD + payload.length + 4) {
+				rotate();
+			}
+			long sequence = lastSequence + 1;
+			CRC32 crc = new CRC32();
+			crc.update(ByteBuffer.allocate(8).putLong(sequence).array());
+			crc.update(payload);
+			segment.putInt(payload.length).putLong(sequence).put(payload).putInt((int) crc.getValue());
+			lastSequence = sequence;
+			appended.signal();
+			return sequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits until a record is forced to disk
+	 * @param sequence : sequence returned by {@link #append}
+	 * @throws IOException if the journal became unhealthy before the record was forced
+	 */
+	void awaitCommitted(long sequence) throws InterruptedException, IOException {
+		lock.lockInterruptibly();
+		try {
+			while (committedSequence < sequence && open && failure == null) {
+				committed.await();
+			}
+			if (committedSequence < sequence && failure != null) {
+				throw failure;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stores that the records up to a sequence are written to the usage
+	 * collections and deletes the segments which hold only such records
+	 */
+	void checkpoint(long sequence) throws IOException {
+		// the appends do not wait for the checkpoint file to be synced
+		synchronized (checkpointLock) {
+			if (sequence <= checkpointSequence) {
+				return;
+			}
+			writeCheckpoint(sequence);
+			checkpointSequence = sequence;
+		}
+		deleteCheckpointed();
+	}
+	
+	/**
+	 * Gets the id of the journal, the same for every process using its directory
+	 */
+	String getId() {
+		return id;
+	}
+	
+	/**
+	 * Gets the sequence of the last appended record
+	 */
+	long getLastSequence() {
+		lock.lock();
+		try {
+			return lastSequence;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Checks whether the records can still be forced to disk
+	 */
+	boolean isHealthy() {
+		lock.lock();
+		try {
+			return failure == null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	long getCommitCount() {
+		lock.lock();
+		try {
+			return commitCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	int getSegmentCount() {
+		lock.lock();
+		try {
+			return sealed.size() + 1;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Forces the appended records and stops the committer
+	 */
+	void close() {
+		lock.lock();
+		try {
+			if (!open) {
+				return;
+			}
+			open = false;
+			segment.force();
+			committedSequence = lastSequence;
+			committed.signalAll();
+			appended.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			committer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Forces the records appended so far, then commits them. Records appended
+	 * during the force are committed by the next one.
+	 */
+	private void runCommitter() {
+		int failedAttempts = 0;
+		long retryMillis = COMMIT_RETRY_MILLIS;
+		while (true) {
+			MappedByteBuffer toForce;
+			long sequence;
+			lock.lock();
+			try {
+				while (open && committedSequence == lastSequence) {
+					appended.awaitUninterruptibly();
+				}
+				if (!open) {
+					return;
+				}
+				toForce = segment;
+				sequence = lastSequence;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				toForce.force();
+			} catch (Exception e) {
+				if (++failedAttempts >= COMMIT_ATTEMPTS) {
+					fail(new IOException("Usage journal not forced after " + failedAttempts + " attempts", e));
+					return;
+				}
+				logger.error("Exception in forcing the usage journal, retrying in " + retryMillis + " ms : ", e);
+				try {
+					Thread.sleep(retryMillis);
+				} catch (InterruptedException interrupted) {
+					fail(new IOException("Usage journal committer interrupted", e));
+					return;
+				}
+				retryMillis *= 2;
+				continue;
+			}
+			failedAttempts = 0;
+			retryMillis = COMMIT_RETRY_MILLIS;
+			lock.lock();
+			try {
+				// a rotation in between forced the older segment itself
+				committedSequence = Math.max(committedSequence, sequence);
+				commitCount++;
+				committed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Marks the journal unhealthy and fails the appends waiting to be committed
+	 */
+	private void fail(IOException error) {
+		long lastCommitted;
+		lock.lock();
+		try {
+			failure = error;
+			lastCommitted = committedSequence;
+			committed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		logger.error("Usage journal is unhealthy, records after sequence " + lastCommitted
+					 + " are not on disk : ", error);
+	}
+	
+	/**
+	 * Forces the full segment, so that its records are committed, and starts
+	 * the next one. Called with the lock held.
+	 */
+	private void rotate() throws IOException {
+		segment.force();
+		committedSequence = lastSequence;
+		committed.signalAll();
+		sealed.add(new SealedSegment(segmentFile(segmentFirstSequence), lastSequence));
+		startSegment();
+	}
+	
+	/**
+	 * Maps a new segment for the records after the last sequence. Called with
+	 * the lock held.
+	 */
+	private void startSegment() throws IOException {
+		segmentFirstSequence = lastSequence + 1;
+		RandomAccessFile file = new RandomAccessFile(segmentFile(segmentFirstSequence), "rw");
+		try {
+			file.setLength(segmentSize);
+			// the mapping stays valid after the file is closed
+			segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		} finally {
+			file.close();
+		}
+	}
+	
+	private void deleteCheckpointed() {
+		List<File> deletable = new ArrayList<File>();
+		lock.lock();
+		try {
+			Iterator<SealedSegment> iterator = sealed.iterator();
+			while (iterator.hasNext()) {
+				SealedSegment segment = iterator.next();
+				if (segment.lastSequence <= checkpointSequence) {
+					deletable.add(segment.file);
+					iterator.remove();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (File file : deletable) {
+			if (!file.delete()) {
+				logger.error("Cannot delete checkpointed usage journal segment " + file);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the valid records of a segment, up to the first torn record
+	 * @param records : collects the records after the checkpoint
+	 * @return sequence of the last valid record, or the checkpoint if the segment is empty
+	 */
+	private long readSegment(File file, List<Record> records) throws IOException {
+		long last = checkpointSequence;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+										0, randomAccessFile.length());
+			while (buffer.remaining() >= RECORD_OVERHEAD) {
+				int length = buffer.getInt();
+				if (length <= 0 || length > buffer.remaining() - 8 - 4) {
+					break;
+				}
+				long sequence = buffer.getLong();
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				int checksum = buffer.getInt();
+				CRC32 crc = new CRC32();
+				crc.update(ByteBuffer.allocate(8).putLong(sequence).array());
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum) {
+					logger.error("Usage journal segment " + file + " ends with a torn record at sequence " + sequence);
+					break;
+				}
+				last = Math.max(last, sequence);
+				if (sequence > checkpointSequence) {
+					records.add(decode(sequence, payload));
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			logger.error("Usage journal segment " + file + " ends with a torn record");
+		} finally {
+			randomAccessFile.close();
+		}
+		return last;
+	}
+	
+	private File[] listSegments() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		// names are zero padded, so they sort by their first sequence
+		Arrays.sort(files);
+		return files;
+	}
+	
+	private File segmentFile(long firstSequence) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%019d", firstSequence) + SEGMENT_SUFFIX);
+	}
+	
+	/**
+	 * Reads the id of the journal, creating it along with the directory
+	 */
+	private String readId() throws IOException {
+		File file = new File(directory, ID_FILE);
+		if (file.exists()) {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readUTF();
+			} finally {
+				in.close();
+			}
+		}
+		String newId = new ObjectId().toString();
+		File temporary = new File(directory, ID_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(temporary);
+		try {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeUTF(newId);
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temporary.renameTo(file)) {
+			throw new IOException("Cannot write usage journal id " + file);
+		}
+		return newId;
+	}
+	
+	private long readCheckpoint() throws IOException {
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readLong();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Writes the checkpoint to a temporary file which replaces the previous
+	 * one once it is on disk, so that a crash leaves either of them
+	 */
+	private void writeCheckpoint(long sequence) throws IOException {
+		File temporary = new File(directory, CHECKPOINT_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(temporary);
+		try {
+			DataOutputStream data = new DataOutputStream(out);
+			data.writeLong(sequence);
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		File file = new File(directory, CHECKPOINT_FILE);
+		if (!temporary.renameTo(file)) {
+			// platforms which do not replace on rename
+			file.delete();
+			if (!temporary.renameTo(file)) {
+				throw new IOException("Cannot write usage journal checkpoint " + file);
+			}
+		}
+	}
+	
+	private static byte[] encode(String clientId, String subscriptionId, String planRefId, String snetId,
+								 Integer sentencesCount, Integer messagesCount, Double dpuCount)
+								 throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(clientId);
+		out.writeUTF(subscriptionId);
+		out.writeBoolean(planRefId != null);
+		if (planRefId != null) {
+			out.writeUTF(planRefId);
+		}
+		out.writeUTF(snetId);
+		out.writeBoolean(sentencesCount != null);
+		if (sentencesCount != null) {
+			out.writeInt(sentencesCount);
+		}
+		out.writeBoolean(messagesCount != null);
+		if (messagesCount != null) {
+			out.writeInt(messagesCount);
+		}
+		out.writeBoolean(dpuCount != null);
+		if (dpuCount != null) {
+			out.writeDouble(dpuCount);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	private static Record decode(long sequence, byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		String clientId = in.readUTF();
+		String subscriptionId = in.readUTF();
+		String planRefId = in.readBoolean() ? in.readUTF() : null;
+		String snetId = in.readUTF();
+		Integer sentencesCount = in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+		Integer messagesCount = in.readBoolean() ? Integer.valueOf(in.readInt()) : null;
+		Double dpuCount = in.readBoolean() ? Double.valueOf(in.readDouble()) : null;
+		return new Record(sequence, clientId, subscriptionId, planRefId, snetId, sentencesCount,
+						  messagesCount, dpuCount);
+	}
+	
+	/**
+	 * Usage event read back from the journal
+	 */
+	static class Record {
+		final long sequence;
+		final String clientId;
+		final String subscriptionId;
+		final String planRefId;
+		final String snetId;
+		final Integer sentencesCount;
+		final Integer messagesCount;
+		final Double dpuCount;
+		
+		Record(long sequence, String clientId, String subscriptionId, String planRefId, String snetId,
+			   Integer sentencesCount, Integer messagesCount, Double dpuCount) {
+			this.sequence = sequence;
+			this.clientId = clientId;
+			this.subscriptionId = subscriptionId;
+			this.planRefId = planRefId;
+			this.snetId = snetId;
+			this.sentencesCount = sentencesCount;
+			this.messagesCount = messagesCount;
+			this.dpuCount = dpuCount;
+		}
+	}
+	
+	private static class SealedSegment {
+		private final File file;
+		private final long lastSequence;
+		
+		SealedSegment(File file, long lastSequence) {
+			this.file = file;
+			this.lastSequence = lastSequence;
+		}
+	}
+}
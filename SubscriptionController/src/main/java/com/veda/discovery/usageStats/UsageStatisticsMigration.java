@@ -0,0 +1,181 @@
+package com.veda.discovery.usageStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Converts the statistics lists of usage_statistics into the per-project
+ * documents and the totals of {@link UsageDocuments}.
+ *
+ * To be run once before the new layout is deployed. usage_statistics is
+ * only read and is left in place. With --rebuild-totals only the totals are
+ * recomputed from the project documents, i.e after a totals increment failed.
+ * Either way the usage writers have to be stopped while it runs.
+ */
+public class UsageStatisticsMigration {
+	
+	private static final String MONGO_USAGE_STATISTICS = "MONGO_USAGE_STATISTICS";
+	private static final String REBUILD_TOTALS = "--rebuild-totals";
+	
+	private static Logger logger = Logger.getLogger(UsageStatisticsMigration.class);
+	
+	private final MongoDbUtils mdbUtils = new MongoDbUtils();
+	
+	/**
+	 * Copies the usage of each project of usage_statistics into its own document
+	 * @return no.of project documents written
+	 */
+	public int migrateProjects() {
+		DBCollection projectUsage = UsageDocuments.getProjectUsageCollection(mdbUtils);
+		if (projectUsage.count() > 0) {
+			throw new IllegalStateException(projectUsage.getName() + " is not empty, the usage is already migrated");
+		}
+		projectUsage.ensureIndex(new BasicDBObject("subscription_id", 1).append("snet_id", 1),
+								 new BasicDBObject("unique", true));
+		DBCollection usageStatistics = mdbUtils.getSubscriptionDbConnection().getCollection(
+										mdbUtils.retrieveCollectionName(MONGO_USAGE_STATISTICS));
+		int projects = 0;
+		DBCursor cursor = usageStatistics.find();
+		try {
+			while (cursor.hasNext()) {
+				DBObject dbObject = cursor.next();
+				if (!(dbObject.get("statistics") instanceof BasicDBList)
+						|| dbObject.get("subscription_id") == null) {
+					continue;
+				}
+				Map<String, BasicDBObject> projectDocuments = toProjectDocuments(dbObject);
+				if (projectDocuments.isEmpty()) {
+					continue;
+				}
+				// a subscription with several usage_statistics documents adds up
+				BulkWriteOperation bulk = projectUsage.initializeUnorderedBulkOperation();
+				for (BasicDBObject project : projectDocuments.values()) {
+					BasicDBObject query = new BasicDBObject("subscription_id", project.get("subscription_id"))
+											.append("snet_id", project.get("snet_id"));
+					bulk.find(query).upsert().updateOne(new BasicDBObject()
+									.append("$inc", new BasicDBObject()
+											.append("sentences_count", project.get("sentences_count"))
+											.append("messages_count", project.get("messages_count")))
+									.append("$set", new BasicDBObject()
+											.append("client_id", project.get("client_id"))
+											.append("plan_ref_id", project.get("plan_ref_id"))
+											.append("project_name", project.get("project_name"))
+											.append("dpu", project.get("dpu"))));
+				}
+				bulk.execute();
+				projects += projectDocuments.size();
+			}
+		} finally {
+			cursor.close();
+		}
+		return projects;
+	}
+	
+	/**
+	 * Recomputes the totals of every subscription from its project documents
+	 * @return no.of totals documents written
+	 */
+	public int rebuildTotals() {
+		DBCollection projectUsage = UsageDocuments.getProjectUsageCollection(mdbUtils);
+		DBCollection totals = UsageDocuments.getTotalsCollection(mdbUtils);
+		int subscriptions = 0;
+		// walks the unique index so that the projects of a subscription are adjacent
+		DBCursor cursor = projectUsage.find().sort(new BasicDBObject("subscription_id", 1).append("snet_id", 1));
+		try {
+			BasicDBObject current = null;
+			while (cursor.hasNext()) {
+				DBObject project = cursor.next();
+				if (current == null || !current.get("_id").equals(project.get("subscription_id"))) {
+					if (current != null) {
+						writeTotals(totals, current);
+						subscriptions++;
+					}
+					current = new BasicDBObject("_id", project.get("subscription_id"))
+									.append("client_id", project.get("client_id"))
+									.append("plan_ref_id", project.get("plan_ref_id"))
+									.append("sentences_count", 0L)
+									.append("messages_count", 0L)
+									.append("dpu", 0.0);
+				}
+				current.put("sentences_count", (Long) current.get("sentences_count") + toLong(project.get("sentences_count")));
+				current.put("messages_count", (Long) current.get("messages_count") + toLong(project.get("messages_count")));
+				current.put("dpu", (Double) current.get("dpu") + toDouble(project.get("dpu")));
+			}
+			if (current != null) {
+				writeTotals(totals, current);
+				subscriptions++;
+			}
+		} finally {
+			cursor.close();
+		}
+		return subscriptions;
+	}
+	
+	/**
+	 * Merges the statistics list of a usage_statistics document by snet_id.
+	 * Concurrent first events could push a project twice; the counts of the
+	 * duplicates are summed and the highest dpu is kept.
+	 */
+	private Map<String, BasicDBObject> toProjectDocuments(DBObject usage) {
+		Map<String, BasicDBObject> projects = new LinkedHashMap<String, BasicDBObject>();
+		for (Object entry : (BasicDBList) usage.get("statistics")) {
+			DBObject statistics = (DBObject) entry;
+			String snetId = (String) statistics.get("snet_id");
+			if (snetId == null) {
+				continue;
+			}
+			BasicDBObject project = projects.get(snetId);
+			if (project == null) {
+				project = new BasicDBObject("client_id", usage.get("client_id"))
+								.append("subscription_id", usage.get("subscription_id"))
+								.append("plan_ref_id", usage.get("plan_ref_id"))
+								.append("snet_id", snetId)
+								.append("project_name", statistics.get("project_name"))
+								.append("sentences_count", 0L)
+								.append("messages_count", 0L)
+								.append("dpu", 0.0);
+				projects.put(snetId, project);
+			}
+			project.put("sentences_count", (Long) project.get("sentences_count") + toLong(statistics.get("sentences_count")));
+			project.put("messages_count", (Long) project.get("messages_count") + toLong(statistics.get("messages_count")));
+			project.put("dpu", Math.max((Double) project.get("dpu"), toDouble(statistics.get("dpu"))));
+		}
+		return projects;
+	}
+	
+	private void writeTotals(DBCollection totals, BasicDBObject subscriptionTotals) {
+		totals.update(new BasicDBObject("_id", subscriptionTotals.get("_id")), subscriptionTotals, true, false);
+	}
+	
+	private static long toLong(Object value) {
+		return value instanceof Number ? ((Number) value).longValue() : 0L;
+	}
+	
+	private static double toDouble(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : 0.0;
+	}
+	
+	public static void main(String[] args) {
+		UsageStatisticsMigration migration = new UsageStatisticsMigration();
+		try {
+			if (args.length == 0 || !REBUILD_TOTALS.equals(args[0])) {
+				logger.info("Migrated usage of " + migration.migrateProjects() + " projects");
+			}
+			logger.info("Rebuilt usage totals of " + migration.rebuildTotals() + " subscriptions");
+		} catch (Exception e) {
+			logger.error("Exception in migrating usage statistics : ", e);
+		} finally {
+			MongoDbUtils.shutdown();
+		}
+	}
+}
@@ -1,41 +1,244 @@
 package com.veda.discovery.usageStats;
 
-import org.apache.log4j.Logger;
-import org.bson.types.ObjectId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.veda.discovery.commons.ClientLocks;
+import com.veda.discovery.commons.SubscriptionCache;
 import com.veda.discovery.commons.SubscriptionCollection;
+import com.veda.discovery.commons.SubscriptionSnapshot;
 import com.veda.discovery.handler.CheckSubscription;
+import com.veda.discovery.logging.AsyncLog;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.IoExecutor;
 import com.veda.discovery.utils.MongoDbUtils;
 
 
 public class UsageStats { 
 	
-	private static final String MONGO_USAGE_STATISTICS = "MONGO_USAGE_STATISTICS";
-	private static final String MONGO_SUBSCRIPTIONS = "MONGO_SUBSCRIPTIONS";
 	private static final String MONGO_PROJECTS = "MONGO_PROJECTS";
-	private static Logger logger = Logger.getLogger(UsageStats.class);
+	// each attempt fails only if another instance wrote the project since it was read
+	private static final int PROJECT_WRITE_ATTEMPTS = 5;
+	private static AsyncLog logger = AsyncLog.getLog(UsageStats.class);
+	// last event of each client stripe of the asynchronous API, the next one is chained after it
+	private static final AtomicReferenceArray<CompletableFuture<Void>> laneTails = createLaneTails();
 	
 	public void analyzeSubscription(String clientId, String snetId, Integer sentencesCount, 
 									Integer messagesCount, Double dpuCount) throws Exception {
+		analyzeSubscription(clientId, snetId, sentencesCount, messagesCount, dpuCount, null);
+	}
+	
+	/**
+	 * Same as {@link #analyzeSubscription(String, String, Integer, Integer, Double)}
+	 * for an event with an id. An event delivered again with the same id is
+	 * dropped before anything is read or written, see {@link UsageEventDeduplicator}.
+	 * An event whose usage could not be written is forgotten, so that the retry
+	 * of the poller is analyzed, and written under the event id.
+	 * @param eventId : Id given to the event by the poller, null if it has none
+	 */
+	public void analyzeSubscription(String clientId, String snetId, Integer sentencesCount, 
+									Integer messagesCount, Double dpuCount, String eventId) throws Exception {
+		analyzeSubscription(clientId, snetId, sentencesCount, messagesCount, dpuCount, eventId, null);
+	}
+	
+	/**
+	 * Same as {@link #analyzeSubscription(String, String, Integer, Integer, Double, String)}
+	 * for a caller which retries the usage after a failure. The usage is written
+	 * under the given id, so a retry whose previous attempt was written after all
+	 * is not counted twice.
+	 * @param opId : Id of the write, see {@link UsageDocuments#newOpId()}, null
+	 * to write under the id of the event or a new one
+	 * @throws Exception if the subscription could not be checked or the usage not written
+	 */
+	public void analyzeSubscription(String clientId, String snetId, Integer sentencesCount, 
+									Integer messagesCount, Double dpuCount, String eventId,
+									String opId) throws Exception {
 		
-		//Checks if the subscription expired and stops the poller for
-		//the client
-		boolean isSubscriptionActive = new CheckSubscription().enquireSubscriptionForClient(clientId);
-		if (!isSubscriptionActive) {
-			// upserts the details of sentence, message and 
-			//dpu counts into Usage-Statistics collection
-			new UsageStats().upsertStats(clientId, snetId, sentencesCount,
-				 						 messagesCount, dpuCount);
+		Metrics.increment(Metrics.USAGE_EVENTS);
+		if (opId == null) {
+			opId = eventId != null ? eventId : UsageDocuments.newOpId();
+		}
+		if (eventId != null && UsageEventDeduplicator.isEnabled()) {
+			if (!UsageEventDeduplicator.getInstance().accept(clientId, eventId)) {
+				logger.debug("Dropping duplicate usage event : {} of snetId : {}", eventId, snetId);
+				return;
+			}
+			try {
+				checkAndUpsert(clientId, snetId, sentencesCount, messagesCount, dpuCount, opId);
+			} catch (Exception e) {
+				// lets the retry of the poller through
+				UsageEventDeduplicator.getInstance().release(clientId, eventId);
+				throw e;
+			}
+		} else {
+			checkAndUpsert(clientId, snetId, sentencesCount, messagesCount, dpuCount, opId);
+		}
+	}
+	
+	/**
+	 * Asynchronous form of {@link #analyzeSubscription(String, String, Integer, Integer, Double, String)},
+	 * which returns at once. The blocking calls run on the {@link IoExecutor}, and the
+	 * subscription checks run concurrently with the reads of the subscription and
+	 * the project name the upsert needs.
+	 *
+	 * The events of a client run one after another, chained on the stripe of
+	 * the client, so no thread waits for the previous event. The check and the
+	 * upsert of an event hold the lock of the client on an I/O thread, as the
+	 * synchronous form does, and an ended subscription is stopped once the
+	 * lock is released. Synchronous and asynchronous calls for the same client
+	 * are not ordered against each other, a process is expected to use one of them.
+	 * @param eventId : Id given to the event by the poller, null if it has none
+	 * @return future completed once the usage is recorded or the event is dropped,
+	 * failed if the subscription could not be checked or the usage not written
+	 */
+	public CompletableFuture<Void> analyzeSubscriptionAsync(final String clientId, final String snetId,
+															final Integer sentencesCount, final Integer messagesCount,
+															final Double dpuCount, final String eventId) {
+		Metrics.increment(Metrics.USAGE_EVENTS);
+		final boolean deduplicated = eventId != null && UsageEventDeduplicator.isEnabled();
+		if (deduplicated && !UsageEventDeduplicator.getInstance().accept(clientId, eventId)) {
+			logger.debug("Dropping duplicate usage event : {} of snetId : {}", eventId, snetId);
+			return CompletableFuture.completedFuture(null);
+		}
+		final String opId = eventId != null ? eventId : UsageDocuments.newOpId();
+		final CompletableFuture<Void> previousDone = new CompletableFuture<Void>();
+		CompletableFuture<Void> result = previousDone.thenCompose(ignored ->
+						checkAndUpsertAsync(clientId, snetId, sentencesCount, messagesCount, dpuCount, opId));
+		if (deduplicated) {
+			result = result.whenComplete((ignored, e) -> {
+				if (e != null) {
+					// lets the retry of the poller through
+					UsageEventDeduplicator.getInstance().release(clientId, eventId);
+				}
+			});
+		}
+		// the next event of the stripe starts once this one is done, failed or not
+		CompletableFuture<Void> tail = result.handle((ignored, e) -> (Void) null);
+		int lane = ClientLocks.stripe(clientId, laneTails.length());
+		laneTails.getAndSet(lane, tail).thenRun(() -> previousDone.complete(null));
+		return result;
+	}
+	
+	private CompletableFuture<Void> checkAndUpsertAsync(final String clientId, final String snetId,
+														final Integer sentencesCount, final Integer messagesCount,
+														final Double dpuCount, final String opId) {
+		// read before the check, used only if the subscription is still active
+		final CompletableFuture<String> subscriptionId = IoExecutor.supply(
+						() -> new SubscriptionCollection().getActiveSubscriptionId(clientId));
+		// the buffer names the projects it creates itself
+		final CompletableFuture<String> projectName = UsageStatsBuffer.isEnabled()
+						? CompletableFuture.<String>completedFuture(null)
+						: IoExecutor.supply(() -> getProjectLabel(snetId));
+		return CompletableFuture.allOf(subscriptionId, projectName).thenCompose(ignored ->
+						IoExecutor.supply(() -> {
+							Lock clientLock = ClientLocks.get(clientId);
+							clientLock.lock();
+							try {
+								boolean ended = checkEnded(clientId, snetId, sentencesCount, dpuCount);
+								if (!ended) {
+									writeStats(clientId, snetId, sentencesCount, messagesCount, dpuCount,
+											   subscriptionId.join(), projectName.join(), opId);
+								}
+								return ended;
+							} finally {
+								clientLock.unlock();
+							}
+						})).thenCompose(ended -> ended
+						? new CheckSubscription().stopEndedAsync(clientId).thenCompose(stopped -> stopped
+										? CompletableFuture.<Void>completedFuture(null)
+										// the owner of the partition stops the client, the usage is recorded till then
+										: IoExecutor.supply(() -> {
+											upsertHoldingLock(clientId, snetId, sentencesCount, messagesCount,
+															  dpuCount, subscriptionId.join(), projectName.join(), opId);
+											return (Void) null;
+										}))
+						: CompletableFuture.<Void>completedFuture(null));
+	}
+	
+	private static AtomicReferenceArray<CompletableFuture<Void>> createLaneTails() {
+		AtomicReferenceArray<CompletableFuture<Void>> tails =
+						new AtomicReferenceArray<CompletableFuture<Void>>(ClientLocks.getStripeCount());
+		for (int i = 0; i < tails.length(); i++) {
+			tails.set(i, CompletableFuture.<Void>completedFuture(null));
+		}
+		return tails;
+	}
+	
+	/**
+	 * Checks the subscription of the client and records the usage if it is
+	 * still active, holding the lock of the client so that a concurrent call
+	 * for the same client does not check or deactivate the subscription in
+	 * between. The poller of an ended subscription is stopped after the lock
+	 * is released.
+	 */
+	private void checkAndUpsert(String clientId, String snetId, Integer sentencesCount, 
+								Integer messagesCount, Double dpuCount, String opId) throws Exception {
+		// calls for the same client run one at a time, from the check to the upsert
+		boolean ended;
+		Lock clientLock = ClientLocks.get(clientId);
+		clientLock.lock();
+		try {
+			ended = checkEnded(clientId, snetId, sentencesCount, dpuCount);
+			if (!ended) {
+				// upserts the details of sentence, message and 
+				//dpu counts into Usage-Statistics collection
+				writeStats(clientId, snetId, sentencesCount, messagesCount, dpuCount, null, null, opId);
+			}
+		} finally {
+			clientLock.unlock();
+		}
+		//stops the poller for the client
+		if (ended && !new CheckSubscription().stopEnded(clientId)) {
+			// the owner of the partition stops the client, the usage is recorded till then
+			upsertHoldingLock(clientId, snetId, sentencesCount, messagesCount, dpuCount, null, null, opId);
 		}
 	}
 	
 	/**
-	 * Inserts the record to the usage statistics collection for the client if
-	 * the record is not present and Updates if the record is present 
+	 * Records the usage of an event whose subscription ended but whose stop is
+	 * left to another instance, see {@link CheckSubscription#stopEnded}
+	 */
+	private void upsertHoldingLock(String clientId, String snetId, Integer sentencesCount,
+								   Integer messagesCount, Double dpuCount, String subscriptionId,
+								   String projectName, String opId) throws Exception {
+		Lock clientLock = ClientLocks.get(clientId);
+		clientLock.lock();
+		try {
+			writeStats(clientId, snetId, sentencesCount, messagesCount, dpuCount, subscriptionId, projectName, opId);
+		} finally {
+			clientLock.unlock();
+		}
+	}
+	
+	/**
+	 * Checks if the subscription of the client expired or is exhausted. Called
+	 * with the lock of the client held.
+	 */
+	private boolean checkEnded(String clientId, String snetId, Integer sentencesCount,
+							   Double dpuCount) throws Exception {
+		if (QuotaHeadroomGate.isEnabled()) {
+			// checks only when the event may end the subscription
+			return QuotaHeadroomGate.getInstance().enforce(clientId, snetId, sentencesCount, dpuCount,
+												new QuotaHeadroomGate.SubscriptionCheck() {
+				@Override
+				public boolean check(String clientId) throws Exception {
+					return new CheckSubscription().checkEnded(clientId);
+				}
+			});
+		}
+		return new CheckSubscription().checkEnded(clientId);
+	}
+	
+	/**
+	 * Inserts the usage document of the project if it is not present and
+	 * updates it if it is present, in a single atomic operation, and adds the
+	 * usage to the totals of the subscription, see {@link UsageDocuments}
 	 * 
 	 * @param clientId : Id of the client
 	 * @param snetId : unique Id of the project
@@ -46,91 +249,143 @@ public class UsageStats {
 	 */
 	public void upsertStats(String clientId, String snetId, Integer sentencesCount, 
 							Integer messagesCount, Double dpuCount) {
-		MongoDbUtils mdbUtils = new MongoDbUtils();
 		try {
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String stats = mdbUtils.retrieveCollectionName(MONGO_USAGE_STATISTICS);
-			DBCollection mongoCollection = mDb.getCollection(stats);
-			BasicDBObject query = new BasicDBObject();
-			query.append("client_id", new ObjectId(clientId));
-			String activePlanId = getActivePlanRefId(clientId);
-			String subId = new SubscriptionCollection().getActiveSubscriptionId(clientId);
-			if (subId != null) {
-				query.append("subscription_id", new ObjectId(subId));
-				query.append("plan_ref_id", activePlanId);
-				query.append("statistics.snet_id", snetId);
-				// checks if the snetId is present in the statistics list
-				DBObject dbObject = mongoCollection.findOne(query);
-				if (dbObject == null) {
-					// If the snetId is not present, checks if the client record exists
-					// in the database
-					query.remove("statistics.snet_id");
-					BasicDBObject statsDetails = new BasicDBObject();
-					statsDetails.append("project_name", getProjectLabel(snetId));
-					statsDetails.append("snet_id", snetId);
-					//if messagesCount is null, adds messagesCount as 0
-					// else adds the incoming messages count 
-					if (messagesCount == null) {
-						statsDetails.append("messages_count", 0);
-					} else {
-						statsDetails.append("messages_count", messagesCount);
-					}
-					//if sentencesCount is null, adds sentencesCount as 0
-					// else adds the incoming sentences count 
-					if (sentencesCount == null) {
-						statsDetails.append("sentences_count", 0);
-					} else {
-						statsDetails.append("sentences_count", sentencesCount);
-					}
-					//if dpuCount is null, adds dpuCount as 0
-					// else adds the incoming dpu count 
-					if (dpuCount == null) {
-						statsDetails.append("dpu", 0.0);
-					} else {
-						statsDetails.append("dpu", dpuCount);
-					}
-					BasicDBObject push = new BasicDBObject();
-					push.append("$push", new BasicDBObject("statistics",statsDetails));
-					// Creates and pushes the details into the statistics list
-					mongoCollection.update(query, push, true, false);
-				} else {
-					// If the snetId is present, updates the counts for that snetId
-					BasicDBObject updateQuery = new BasicDBObject();
-					BasicDBObject incrementObj =  new BasicDBObject();
-					//increments the sentences count if not null
-					if (sentencesCount != null) {
-						updateQuery.append("$inc", incrementObj.append(
-								"statistics.$.sentences_count", sentencesCount));
-					}
-					//increments the messages count if not null
-					if (messagesCount != null) {
-						updateQuery.append("$inc", incrementObj.append(
-								"statistics.$.messages_count", messagesCount));
-					}
-					//sets the dpu count if not null
-					if (dpuCount != null) {
-						updateQuery.append("$set", new BasicDBObject().append(
-								"statistics.$.dpu", dpuCount));
-					}
-					mongoCollection.update(query, updateQuery);
-				}
-			}
+			writeStats(clientId, snetId, sentencesCount, messagesCount, dpuCount, null, null,
+					   UsageDocuments.newOpId());
 		} catch (IllegalArgumentException e) {
-			System.out.println("IllegalArgumentException : Parsing null objectId in UpsertStats of class UsageStats");
-			logger.error("IllegalArgumentException : " + e);
-			e.printStackTrace();
+			// repeats for every event of a project with a bad id
+			logger.errorSampled("Parsing null objectId in UpsertStats for snetId : {}", snetId, e);
 		} catch (NullPointerException e) {
-			System.out.println("NullPointerException : ObjectId may be null");
-			logger.error("NullPointerException : " + e);
-			e.printStackTrace();
+			logger.errorSampled("ObjectId may be null for snetId : {}", snetId, e);
 		} catch(Exception e){
-			logger.error("Exception : " + e);
-			e.printStackTrace();
-		} finally {
-			mdbUtils.closeMongoConnection();
+			logger.error("Exception : ", e);
 		}
 	}
 	
+	/**
+	 * Same as {@link #upsertStats(String, String, Integer, Integer, Double)} for a
+	 * caller which retries failures, with the subscription and the project name
+	 * read beforehand. The project and the totals are written
+	 * under the id of the write, so retrying a write whose outcome is not known
+	 * applies it once.
+	 * @param subscriptionId : Id of the active subscription, null to read it
+	 * @param projectName : name of the project, null to read it if the project document is created
+	 * @param opId : Id of the write, the same for all of its attempts
+	 * @throws Exception if the usage could not be written
+	 */
+	void writeStats(String clientId, String snetId, Integer sentencesCount, Integer messagesCount,
+					Double dpuCount, String subscriptionId, String projectName, String opId) throws Exception {
+		if (UsageStatsBuffer.isEnabled() && bufferStats(clientId, snetId, sentencesCount,
+														messagesCount, dpuCount)) {
+			return;
+		}
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		String subId = subscriptionId != null ? subscriptionId
+						: new SubscriptionCollection().getActiveSubscriptionId(clientId);
+		if (subId != null) {
+			String activePlanId = getActivePlanRefId(clientId);
+			// begun before the project is written, the running totals of the quota checks follow the write
+			QuotaLedger.Write ledgerWrite = QuotaLedger.getInstance().beginUsage(subId);
+			double dpuDelta;
+			try {
+				// the totals are incremented by the difference the write made to the dpu of the project
+				dpuDelta = writeProject(UsageDocuments.getProjectUsageCollection(mdbUtils), clientId,
+										activePlanId, subId, snetId, projectName, sentencesCount,
+										messagesCount, dpuCount, opId, null);
+			} catch (Exception e) {
+				QuotaLedger.getInstance().cancelUsage(ledgerWrite);
+				throw e;
+			}
+			QuotaLedger.getInstance().recordUsage(ledgerWrite, snetId, sentencesCount, dpuCount);
+			BasicDBObject totalsUpdate = UsageDocuments.totalsUpdate(clientId, activePlanId,
+									sentencesCount, messagesCount, dpuDelta, opId);
+			UsageDocuments.incrementTotals(UsageDocuments.getTotalsCollection(mdbUtils),
+									UsageDocuments.totalsQuery(subId, opId), totalsUpdate);
+		}
+	}
+	
+	/**
+	 * Writes the usage of a project once for a write. The document is read and
+	 * updated only if it is unchanged and does not hold the write yet, which
+	 * records the write with its dpu difference; a write found recorded is not
+	 * applied again and its recorded difference is returned. A document changed
+	 * in between, or inserted at once by another write, is read again.
+	 * @param projectName : name of the project, null to read it if the document is created
+	 * @param opId : Id of the write
+	 * @param journalMark : set with the write, see {@link UsageDocuments#journalMark}, null for none
+	 * @return difference between the new and the previous dpu of the project
+	 */
+	double writeProject(DBCollection projectUsage, String clientId, String planRefId, String subscriptionId,
+						String snetId, String projectName, Number sentencesCount, Number messagesCount,
+						Double dpuCount, String opId, BasicDBObject journalMark) {
+		BasicDBObject query = UsageDocuments.projectQuery(subscriptionId, snetId);
+		BasicDBObject fields = new BasicDBObject("dpu", 1).append("recent_ops", 1);
+		for (int attempt = 1; ; attempt++) {
+			DBObject current;
+			long started = Metrics.start();
+			try {
+				current = projectUsage.findOne(query, fields);
+			} finally {
+				Metrics.stop(Metrics.MONGO_FIND_ONE, started);
+			}
+			Double applied = UsageDocuments.appliedDpuDelta(current, opId);
+			if (applied != null) {
+				return applied;
+			}
+			Object previousDpu = current == null ? null : current.get("dpu");
+			double dpuDelta = UsageDocuments.dpuDelta(dpuCount, previousDpu);
+			// the project name is only needed when the document is created
+			String name = current != null ? null : (projectName != null ? projectName : getProjectLabel(snetId));
+			BasicDBObject update = UsageDocuments.projectUpdate(clientId, planRefId, name, sentencesCount,
+										messagesCount, dpuCount, opId, dpuDelta, journalMark);
+			started = Metrics.start();
+			try {
+				if (projectUsage.update(UsageDocuments.projectQuery(subscriptionId, snetId, previousDpu, opId),
+										update, current == null, false).getN() > 0) {
+					return dpuDelta;
+				}
+			} catch (MongoException e) {
+				if (!UsageDocuments.isDuplicateKey(e)) {
+					throw e;
+				}
+			} finally {
+				Metrics.stop(Metrics.MONGO_UPDATE, started);
+			}
+			if (attempt == PROJECT_WRITE_ATTEMPTS) {
+				throw new MongoException("Usage of snetId : " + snetId + " changed by every attempt, not written");
+			}
+		}
+	}
+	
+	
+	/**
+	 * Hands the usage to the write-behind buffer instead of writing it
+	 * @return false if the buffer is drained and the usage has to be written directly
+	 */
+	private boolean bufferStats(String clientId, String snetId, Integer sentencesCount, 
+								Integer messagesCount, Double dpuCount) {
+		String subId = new SubscriptionCollection().getActiveSubscriptionId(clientId);
+		if (subId == null) {
+			return true;
+		}
+		// the ledger counts the usage as soon as it is accepted, begun before a seed can see it buffered
+		QuotaLedger.Write ledgerWrite = QuotaLedger.getInstance().beginUsage(subId);
+		boolean buffered = false;
+		try {
+			buffered = UsageStatsBuffer.getInstance().add(clientId, subId, getActivePlanRefId(clientId),
+														  snetId, sentencesCount, messagesCount, dpuCount);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while buffering usage of snetId : {}", snetId, e);
+		} finally {
+			if (buffered) {
+				QuotaLedger.getInstance().recordUsage(ledgerWrite, snetId, sentencesCount, dpuCount);
+			} else {
+				QuotaLedger.getInstance().cancelUsage(ledgerWrite);
+			}
+		}
+		return buffered;
+	}
 	
 	/**
 	 * gets the active plan of a client
@@ -138,30 +393,9 @@ public class UsageStats {
 	 * @return active Plan reference Id
 	 */
 	private String getActivePlanRefId (String clientId) {
-		if (clientId == null) {
-			return null;
-		}
-		MongoDbUtils mdbUtils = new MongoDbUtils();
-		try {
-			DB mDb = mdbUtils.getSubscriptionDbConnection();
-			String subscription = mdbUtils.retrieveCollectionName(MONGO_SUBSCRIPTIONS);
-			DBCollection mongoCollection = mDb.getCollection(subscription);
-			BasicDBObject query = new BasicDBObject();
-			query.append("client_id", new ObjectId(clientId));
-			query.append("is_active", 1);
-			DBObject dBObject = mongoCollection.findOne(query);
-			if (dBObject != null) {
-				String planRefId = dBObject.get("plan_ref_id").toString();
-				return planRefId;
-			}
-		} catch (NullPointerException e) {
-			System.out.println("Exception : The user has no active plans ");
-			logger.error("Exception : The user has no active plans ", e);
-		} catch (Exception e) {
-			e.printStackTrace();
-			logger.error("Exception : ", e);
-		} finally {
-			mdbUtils.closeMongoConnection();
+		SubscriptionSnapshot subscription = SubscriptionCache.getInstance().get(clientId);
+		if (subscription != null) {
+			return subscription.getPlanRefId();
 		}
 		return null;
 	}
@@ -172,7 +406,7 @@ public class UsageStats {
 	 * @return string label : Name of the project
 	 * @throws Exception
 	 */
-	private String getProjectLabel(String snetId) {
+	String getProjectLabel(String snetId) {
 		String label = "";
 		MongoDbUtils mdbUtils = new MongoDbUtils();
 		try {
@@ -181,15 +415,18 @@ public class UsageStats {
 			DBCollection projectsCollection = mDb.getCollection(projects);
 			BasicDBObject query = new BasicDBObject("snet_id", snetId);
 			BasicDBObject project = new BasicDBObject("label", 1);
-			DBObject dbObject = projectsCollection.findOne(query, project);
+			long started = Metrics.start();
+			DBObject dbObject;
+			try {
+				dbObject = projectsCollection.findOne(query, project);
+			} finally {
+				Metrics.stop(Metrics.MONGO_FIND_ONE, started);
+			}
 			if (dbObject != null) {
 				label = (String) dbObject.get("label");
 			}
 		} catch(Exception e) {
-			logger.error("Exception in getProjectLabel snetId : " + snetId, e);
-			e.printStackTrace();
-		} finally {
-			mdbUtils.closeMongoConnection();	
+			logger.error("Exception in getProjectLabel snetId : {}", snetId, e);
 		}
 		return label;
 	}
@@ -0,0 +1,826 @@
+package com.veda.discovery.usageStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.veda.discovery.metrics.MetricSource;
+import com.veda.discovery.metrics.Metrics;
+import com.veda.discovery.utils.ConfigUtils;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Write-behind buffer for {@link UsageStats#upsertStats}. Usage events are
+ * coalesced per (subscription, snet_id) in memory and written to the
+ * usage collections, with one read and one bulk write of the projects and
+ * one bulk write of the totals, when the buffer reaches the batch size or
+ * the flush interval elapses.
+ *
+ * The number of buffered projects is bounded; callers adding a new project to
+ * a full buffer block until a flush makes room. The buffer is drained before
+ * the shared Mongo client is closed on shutdown.
+ *
+ * With USAGE_JOURNAL_ENABLED every event is appended to the {@link UsageJournal}
+ * and {@link #add} returns once it is on disk. Each flush checkpoints the
+ * journal up to the oldest event still buffered, and the events after the
+ * checkpoint are written again when the buffer is created after a crash.
+ * A project written from the journal is marked with the last sequence it
+ * includes, see {@link UsageDocuments}, so the replayed events already in
+ * the project are skipped rather than written twice.
+ *
+ * A project write which fails is retried as it was, under the same id and
+ * not merged with newer usage, so a write which went through although it
+ * failed is not applied again, see {@link UsageStats#writeProject}.
+ */
+public class UsageStatsBuffer {
+	
+	private static final String USAGE_WRITE_BEHIND_ENABLED = "USAGE_WRITE_BEHIND_ENABLED";
+	private static final String USAGE_WRITE_BEHIND_BATCH_SIZE = "USAGE_WRITE_BEHIND_BATCH_SIZE";
+	private static final String USAGE_WRITE_BEHIND_FLUSH_INTERVAL = "USAGE_WRITE_BEHIND_FLUSH_INTERVAL";
+	private static final String USAGE_WRITE_BEHIND_MAX_PENDING = "USAGE_WRITE_BEHIND_MAX_PENDING";
+	private static final String USAGE_WRITE_BEHIND_MAX_ATTEMPTS = "USAGE_WRITE_BEHIND_MAX_ATTEMPTS";
+	private static final String USAGE_JOURNAL_ENABLED = "USAGE_JOURNAL_ENABLED";
+	private static final String USAGE_JOURNAL_DIRECTORY = "USAGE_JOURNAL_DIRECTORY";
+	private static final String USAGE_JOURNAL_SEGMENT_SIZE = "USAGE_JOURNAL_SEGMENT_SIZE";
+	// no.of projects whose documents are read at once
+	private static final int READ_BATCH = 500;
+	
+	private static Logger logger = Logger.getLogger(UsageStatsBuffer.class);
+	private static final boolean ENABLED = ConfigUtils.getBooleanProperty(USAGE_WRITE_BEHIND_ENABLED, false);
+	private static UsageStatsBuffer instance;
+	
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final int maxPending;
+	private final int maxAttempts;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition flushRequested = lock.newCondition();
+	private Map<String, PendingUsage> pending = new LinkedHashMap<String, PendingUsage>();
+	// project writes which failed, retried as they were before the pending usage
+	private List<PendingUsage> retries = new ArrayList<PendingUsage>();
+	// usage taken by the flush in progress, until it is written, kept to retry or dead-lettered
+	private final Set<PendingUsage> inFlight = Collections.newSetFromMap(new IdentityHashMap<PendingUsage, Boolean>());
+	private boolean accepting = true;
+	
+	// held while a batch is taken and written, one flush at a time
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final Thread flusher;
+	// increments of the totals to retry, guarded by the flush lock
+	private List<PendingTotals> failedTotals = new ArrayList<PendingTotals>();
+	// null if the events are not journaled
+	private UsageJournal journal;
+	
+	private final AtomicLong acceptedCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong deadLetterCount = new AtomicLong();
+	
+	private UsageStatsBuffer(int batchSize, long flushIntervalMillis, int maxPending, int maxAttempts) {
+		this.batchSize = batchSize;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		this.maxPending = maxPending;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runFlusher();
+			}
+		}, "usage-stats-flusher");
+		this.flusher.setDaemon(true);
+	}
+	
+	/**
+	 * Checks whether usage statistics are written behind
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+	
+	public static synchronized UsageStatsBuffer getInstance() {
+		if (instance == null) {
+			instance = new UsageStatsBuffer(
+						ConfigUtils.getIntProperty(USAGE_WRITE_BEHIND_BATCH_SIZE, 1000),
+						ConfigUtils.getLongProperty(USAGE_WRITE_BEHIND_FLUSH_INTERVAL, 1000),
+						ConfigUtils.getIntProperty(USAGE_WRITE_BEHIND_MAX_PENDING, 50000),
+						ConfigUtils.getIntProperty(USAGE_WRITE_BEHIND_MAX_ATTEMPTS, 5));
+			if (ConfigUtils.getBooleanProperty(USAGE_JOURNAL_ENABLED, false)) {
+				instance.openJournal(new File(ConfigUtils.getProperty(USAGE_JOURNAL_DIRECTORY, "journal/usage")),
+									 ConfigUtils.getIntProperty(USAGE_JOURNAL_SEGMENT_SIZE, 64 * 1024 * 1024));
+			}
+			instance.flusher.start();
+			MongoDbUtils.addShutdownTask(new Runnable() {
+				@Override
+				public void run() {
+					instance.drain();
+				}
+			});
+			Metrics.addSource(new MetricSource() {
+				@Override
+				public void collect(Map<String, Number> metrics) {
+					metrics.put("usageBuffer.accepted", instance.getAcceptedCount());
+					metrics.put("usageBuffer.written", instance.getWrittenCount());
+					metrics.put("usageBuffer.flushes", instance.getFlushCount());
+					metrics.put("usageBuffer.pending", instance.getPendingCount());
+					metrics.put("usageBuffer.deadLettered", instance.getDeadLetterCount());
+					if (instance.journal != null) {
+						metrics.put("usageJournal.commits", instance.journal.getCommitCount());
+						metrics.put("usageJournal.segments", instance.journal.getSegmentCount());
+						metrics.put("usageJournal.healthy", instance.journal.isHealthy() ? 1 : 0);
+					}
+				}
+			});
+		}
+		return instance;
+	}
+	
+	/**
+	 * Buffers a usage event of a project
+	 * @param clientId : Id of the client
+	 * @param subscriptionId : Id of the active subscription
+	 * @param planRefId : active plan reference Id
+	 * @param snetId : unique Id of the project
+	 * @return false if the buffer is drained or the event cannot be journaled, and
+	 *         it has to be written directly
+	 */
+	public boolean add(String clientId, String subscriptionId, String planRefId, String snetId,
+					   Integer sentencesCount, Integer messagesCount, Double dpuCount)
+					   throws InterruptedException {
+		String key = PendingUsage.key(subscriptionId, snetId);
+		long sequence = 0;
+		lock.lockInterruptibly();
+		try {
+			PendingUsage usage = pending.get(key);
+			while (accepting && usage == null && pending.size() >= maxPending) {
+				// backpressure : waits for the flusher to make room
+				flushRequested.signal();
+				notFull.await();
+				usage = pending.get(key);
+			}
+			if (!accepting) {
+				return false;
+			}
+			if (journal != null) {
+				// appended under the lock, so the journal order is the buffer order
+				try {
+					sequence = journal.append(clientId, subscriptionId, planRefId, snetId, sentencesCount,
+											  messagesCount, dpuCount);
+				} catch (IOException e) {
+					logger.error("Exception in journaling usage of snetId : " + snetId + ", writing it directly : ", e);
+					return false;
+				}
+			}
+			if (usage == null) {
+				usage = new PendingUsage(clientId, subscriptionId, planRefId, snetId);
+				pending.put(key, usage);
+			}
+			usage.add(sentencesCount, messagesCount, dpuCount, sequence);
+			acceptedCount.incrementAndGet();
+			if (pending.size() >= batchSize) {
+				flushRequested.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (sequence != 0) {
+			// group commit : waits outside the lock for the force which covers the event
+			try {
+				journal.awaitCommitted(sequence);
+			} catch (IOException e) {
+				// the event is buffered but not on disk, so it is written out before returning;
+				// the unhealthy journal makes the later events go directly
+				logger.error("Exception in committing usage of snetId : " + snetId + ", flushing the buffer : ", e);
+				flush();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes everything buffered so far
+	 */
+	public void flush() {
+		flushLock.lock();
+		try {
+			List<PendingUsage> batch = takePending();
+			if (!batch.isEmpty() || !failedTotals.isEmpty()) {
+				write(batch);
+				checkpointJournal();
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+	
+	/**
+	 * Stops accepting events and writes out the buffer
+	 */
+	public void drain() {
+		lock.lock();
+		try {
+			accepting = false;
+			flushRequested.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) * 2);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		if (journal != null) {
+			journal.close();
+		}
+		logger.info("Usage statistics buffer drained, accepted : " + acceptedCount.get()
+					+ " written : " + writtenCount.get() + " flushes : " + flushCount.get());
+	}
+	
+	/**
+	 * Gets the buffered usage of a subscription, including the usage taken by
+	 * the flush in progress which is not settled yet. Some of it may already be
+	 * written, which the op id of each usage tells, see
+	 * {@link UsageDocuments#appliedDpuDelta}.
+	 * @param subscriptionId : Id of the subscription
+	 */
+	List<PendingUsage> getPending(String subscriptionId) {
+		List<PendingUsage> usages = new ArrayList<PendingUsage>();
+		lock.lock();
+		try {
+			for (PendingUsage usage : retries) {
+				if (usage.getSubscriptionId().equals(subscriptionId)) {
+					usages.add(usage.copy());
+				}
+			}
+			for (PendingUsage usage : inFlight) {
+				if (usage.getSubscriptionId().equals(subscriptionId)) {
+					usages.add(usage.copy());
+				}
+			}
+			for (PendingUsage usage : pending.values()) {
+				if (usage.getSubscriptionId().equals(subscriptionId)) {
+					usages.add(usage.copy());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return usages;
+	}
+	
+	public long getAcceptedCount() {
+		return acceptedCount.get();
+	}
+	
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+	
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+	
+	public long getDeadLetterCount() {
+		return deadLetterCount.get();
+	}
+	
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return retries.size() + pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void runFlusher() {
+		while (true) {
+			try {
+				if (!awaitFlush()) {
+					return;
+				}
+				flush();
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				logger.error("Exception in flushing usage statistics : ", e);
+			}
+		}
+	}
+	
+	/**
+	 * Waits until the batch size is reached or the flush interval elapses
+	 * @return false once the buffer stops accepting events
+	 */
+	private boolean awaitFlush() throws InterruptedException {
+		lock.lock();
+		try {
+			long remaining = flushIntervalNanos;
+			while (accepting && pending.size() < batchSize && remaining > 0) {
+				remaining = flushRequested.awaitNanos(remaining);
+			}
+			return accepting;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Opens the journal and writes the events a previous process journaled
+	 * but did not write, skipping those its projects are marked with. If the
+	 * journal cannot be opened or the marks cannot be read, the buffer does not
+	 * accept events, so that they are written directly, and the events are
+	 * replayed by the next process.
+	 */
+	private void openJournal(File directory, int segmentSize) {
+		try {
+			journal = UsageJournal.open(directory, segmentSize);
+			List<UsageJournal.Record> records = journal.replay();
+			if (!records.isEmpty()) {
+				Map<String, Long> marks = readJournalMarks(records);
+				int skipped = 0;
+				lock.lock();
+				try {
+					for (UsageJournal.Record record : records) {
+						String key = PendingUsage.key(record.subscriptionId, record.snetId);
+						Long mark = marks.get(key);
+						if (mark != null && record.sequence <= mark) {
+							// written to the project before the crash, only the checkpoint was not
+							skipped++;
+							continue;
+						}
+						PendingUsage usage = pending.get(key);
+						if (usage == null) {
+							usage = new PendingUsage(record.clientId, record.subscriptionId, record.planRefId,
+													 record.snetId);
+							pending.put(key, usage);
+						}
+						usage.add(record.sentencesCount, record.messagesCount, record.dpuCount, record.sequence);
+					}
+				} finally {
+					lock.unlock();
+				}
+				logger.info("Replaying " + (records.size() - skipped) + " journaled usage events of "
+							+ getPendingCount() + " projects, " + skipped + " events already written");
+				// a failed write stays buffered and is retried by the flusher
+				flush();
+			}
+		} catch (IOException e) {
+			abandonJournal(directory, e);
+		} catch (MongoException e) {
+			abandonJournal(directory, e);
+		}
+	}
+	
+	private void abandonJournal(File directory, Exception error) {
+		logger.error("Exception in opening usage journal " + directory
+					 + ", usage statistics are written directly : ", error);
+		if (journal != null) {
+			journal.close();
+		}
+		journal = null;
+		accepting = false;
+	}
+	
+	/**
+	 * Reads the sequence of the journal each project of the replayed events
+	 * is marked with
+	 * @return project key -> last sequence written to the project
+	 */
+	private Map<String, Long> readJournalMarks(List<UsageJournal.Record> records) {
+		Map<String, BasicDBObject> queries = new LinkedHashMap<String, BasicDBObject>();
+		for (UsageJournal.Record record : records) {
+			String key = PendingUsage.key(record.subscriptionId, record.snetId);
+			if (!queries.containsKey(key)) {
+				try {
+					queries.put(key, UsageDocuments.projectQuery(record.subscriptionId, record.snetId));
+				} catch (IllegalArgumentException e) {
+					// a bad subscription id, its usage is dead-lettered again
+				}
+			}
+		}
+		Map<String, Long> marks = new HashMap<String, Long>();
+		Map<String, DBObject> projects = readProjects(UsageDocuments.getProjectUsageCollection(new MongoDbUtils()),
+										queries.values(), new BasicDBObject("journal_seq." + journal.getId(), 1));
+		for (Map.Entry<String, DBObject> project : projects.entrySet()) {
+			marks.put(project.getKey(), UsageDocuments.journalSequence(project.getValue(), journal.getId()));
+		}
+		return marks;
+	}
+	
+	/**
+	 * Reads the usage documents of projects, a batch of them at a time
+	 * @param queries : {@link UsageDocuments#projectQuery} of each project
+	 * @param fields : fields to read besides the keys of the projects
+	 * @return project key -> document, for the projects which have one
+	 */
+	private static Map<String, DBObject> readProjects(DBCollection projectUsage, Collection<BasicDBObject> queries,
+													  BasicDBObject fields) {
+		Map<String, DBObject> documents = new HashMap<String, DBObject>();
+		fields = new BasicDBObject(fields.toMap()).append("subscription_id", 1).append("snet_id", 1);
+		List<BasicDBObject> projects = new ArrayList<BasicDBObject>(queries);
+		for (int from = 0; from < projects.size(); from += READ_BATCH) {
+			List<BasicDBObject> batch = projects.subList(from, Math.min(from + READ_BATCH, projects.size()));
+			long started = Metrics.start();
+			DBCursor cursor = projectUsage.find(new BasicDBObject("$or", batch), fields);
+			try {
+				while (cursor.hasNext()) {
+					DBObject project = cursor.next();
+					documents.put(PendingUsage.key(String.valueOf(project.get("subscription_id")),
+												   (String) project.get("snet_id")), project);
+				}
+			} finally {
+				cursor.close();
+				Metrics.stop(Metrics.MONGO_FIND, started);
+			}
+		}
+		return documents;
+	}
+	
+	/**
+	 * Checkpoints the journal up to the event before the oldest one still
+	 * buffered, or whose project write or totals increment is to be retried,
+	 * all older events are written to their project and to the totals, or dead-lettered.
+	 * Called with the flush lock held.
+	 */
+	private void checkpointJournal() {
+		if (journal == null) {
+			return;
+		}
+		long sequence;
+		lock.lock();
+		try {
+			sequence = journal.getLastSequence();
+			for (PendingUsage usage : retries) {
+				if (usage.getFirstSequence() != 0) {
+					sequence = Math.min(sequence, usage.getFirstSequence() - 1);
+				}
+			}
+			for (PendingUsage usage : pending.values()) {
+				if (usage.getFirstSequence() != 0) {
+					sequence = Math.min(sequence, usage.getFirstSequence() - 1);
+				}
+			}
+			for (PendingTotals increment : failedTotals) {
+				if (increment.usage.getFirstSequence() != 0) {
+					sequence = Math.min(sequence, increment.usage.getFirstSequence() - 1);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		try {
+			journal.checkpoint(sequence);
+		} catch (IOException e) {
+			logger.error("Exception in checkpointing usage journal : ", e);
+		}
+	}
+	
+	/**
+	 * Takes the writes to retry followed by the buffered usage
+	 */
+	private List<PendingUsage> takePending() {
+		lock.lock();
+		try {
+			List<PendingUsage> batch = retries;
+			batch.addAll(pending.values());
+			inFlight.addAll(batch);
+			retries = new ArrayList<PendingUsage>();
+			pending = new LinkedHashMap<String, PendingUsage>();
+			notFull.signalAll();
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Keeps project writes which failed so that the next flush retries them
+	 * as they were
+	 */
+	private void retry(List<PendingUsage> usages) {
+		lock.lock();
+		try {
+			retries.addAll(usages);
+			inFlight.removeAll(usages);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Marks the usage of the flush in progress as written or dead-lettered
+	 */
+	private void settle(PendingUsage usage) {
+		lock.lock();
+		try {
+			inFlight.remove(usage);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets the usage of a batch which is neither written, nor kept to retry, nor dead-lettered
+	 */
+	private List<PendingUsage> unsettled(List<PendingUsage> batch) {
+		List<PendingUsage> usages = new ArrayList<PendingUsage>();
+		lock.lock();
+		try {
+			for (PendingUsage usage : batch) {
+				if (inFlight.contains(usage)) {
+					usages.add(usage);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return usages;
+	}
+	
+	/**
+	 * Writes a batch to the projects, see {@link #writeProjects}, followed by
+	 * the increments of the totals of the projects written. A write rejected by
+	 * the server is retried in the next flush or dead-lettered, see
+	 * {@link #retryOrDeadLetter}; when the server cannot be reached the rest of
+	 * the batch is retried in the next flush.
+	 */
+	private void write(List<PendingUsage> operations) {
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		// the increments the previous flushes could not apply go first
+		List<PendingTotals> increments = failedTotals;
+		failedTotals = new ArrayList<PendingTotals>();
+		int previousIncrements = increments.size();
+		try {
+			writeProjects(mdbUtils, operations, increments);
+		} catch (Exception e) {
+			List<PendingUsage> unwritten = unsettled(operations);
+			logger.error("Exception in writing usage statistics, retrying " + unwritten.size()
+						 + " projects in next flush : ", e);
+			retry(unwritten);
+		}
+		int written = increments.size() - previousIncrements;
+		if (!operations.isEmpty() && written == operations.size()) {
+			flushCount.incrementAndGet();
+		}
+		writtenCount.addAndGet(written);
+		if (!increments.isEmpty()) {
+			failedTotals = writeTotals(mdbUtils, increments);
+		}
+	}
+	
+	/**
+	 * Writes the projects of a batch with one read of their documents and one
+	 * unordered bulk of updates, each made only if its project is as it was
+	 * read and recording the write, as {@link UsageStats#writeProject} does. A
+	 * retried write found recorded is not applied again. The updates of a bulk
+	 * which did not all match, and the newer usage of a project whose retried
+	 * write is in the same batch, are written one by one afterwards.
+	 * @param increments : collects the totals increments of the projects written
+	 */
+	private void writeProjects(MongoDbUtils mdbUtils, List<PendingUsage> operations,
+							   List<PendingTotals> increments) {
+		DBCollection projectUsage = UsageDocuments.getProjectUsageCollection(mdbUtils);
+		UsageStats usageStats = new UsageStats();
+		String journalId = journal == null ? null : journal.getId();
+		// project key -> first usage of the project in the batch
+		Map<String, PendingUsage> firsts = new LinkedHashMap<String, PendingUsage>();
+		Map<String, BasicDBObject> queries = new HashMap<String, BasicDBObject>();
+		List<PendingUsage> later = new ArrayList<PendingUsage>();
+		for (PendingUsage usage : operations) {
+			String key = PendingUsage.key(usage.getSubscriptionId(), usage.getSnetId());
+			if (firsts.containsKey(key)) {
+				// written after the older usage of its project
+				later.add(usage);
+				continue;
+			}
+			try {
+				queries.put(key, usage.projectQuery());
+				firsts.put(key, usage);
+			} catch (IllegalArgumentException e) {
+				// a bad subscription id, which no retry can fix
+				retryOrDeadLetter(mdbUtils, usage, e.toString());
+			}
+		}
+		Map<String, DBObject> documents = readProjects(projectUsage, queries.values(),
+										new BasicDBObject("dpu", 1).append("recent_ops", 1));
+		BulkWriteOperation bulk = projectUsage.initializeUnorderedBulkOperation();
+		List<PendingUsage> updated = new ArrayList<PendingUsage>();
+		List<Double> dpuDeltas = new ArrayList<Double>();
+		for (Map.Entry<String, PendingUsage> project : firsts.entrySet()) {
+			PendingUsage usage = project.getValue();
+			DBObject current = documents.get(project.getKey());
+			Double applied = UsageDocuments.appliedDpuDelta(current, usage.getOpId());
+			if (applied != null) {
+				// a retried write which went through after all
+				written(usage, applied, increments);
+				continue;
+			}
+			Object previousDpu = current == null ? null : current.get("dpu");
+			double dpuDelta = UsageDocuments.dpuDelta(usage.getDpuCount(), previousDpu);
+			// the project name is only needed when the document is created
+			String projectName = current == null ? usageStats.getProjectLabel(usage.getSnetId()) : null;
+			BasicDBObject update = usage.projectUpdate(projectName, dpuDelta, journalId);
+			BulkWriteRequestBuilder request = bulk.find(usage.projectQuery(previousDpu));
+			if (current == null) {
+				request.upsert().updateOne(update);
+			} else {
+				request.updateOne(update);
+			}
+			updated.add(usage);
+			dpuDeltas.add(dpuDelta);
+		}
+		List<PendingUsage> oneByOne = new ArrayList<PendingUsage>();
+		if (!updated.isEmpty()) {
+			BulkWriteResult result;
+			long started = Metrics.start();
+			try {
+				result = bulk.execute();
+			} catch (BulkWriteException e) {
+				// the failed updates are written one by one, which reports their errors
+				result = e.getWriteResult();
+			} finally {
+				Metrics.stop(Metrics.MONGO_BULK_WRITE, started);
+			}
+			Set<Integer> inserted = new HashSet<Integer>();
+			for (BulkWriteUpsert upsert : result.getUpserts()) {
+				inserted.add(upsert.getIndex());
+			}
+			boolean allApplied = result.getMatchedCount() + inserted.size() == updated.size();
+			for (int i = 0; i < updated.size(); i++) {
+				if (allApplied || inserted.contains(i)) {
+					written(updated.get(i), dpuDeltas.get(i), increments);
+				} else {
+					// which of the updates matched is not known, the writes one by one find the applied ones
+					oneByOne.add(updated.get(i));
+				}
+			}
+		}
+		oneByOne.addAll(later);
+		for (PendingUsage usage : oneByOne) {
+			try {
+				written(usage, usage.writeProject(usageStats, projectUsage, journalId), increments);
+			} catch (MongoException.Network e) {
+				throw e;
+			} catch (MongoException e) {
+				retryOrDeadLetter(mdbUtils, usage, e.getMessage());
+			} catch (IllegalArgumentException e) {
+				retryOrDeadLetter(mdbUtils, usage, e.toString());
+			}
+		}
+	}
+	
+	private void written(PendingUsage usage, double dpuDelta, List<PendingTotals> increments) {
+		settle(usage);
+		increments.add(new PendingTotals(usage, dpuDelta));
+	}
+	
+	/**
+	 * Puts back the usage of a project whose write was rejected, so that the
+	 * next flush retries it, until it was rejected USAGE_WRITE_BEHIND_MAX_ATTEMPTS
+	 * times. It is then moved to the dead letters, to be corrected and written
+	 * by hand, and stays buffered if that fails as well.
+	 */
+	private void retryOrDeadLetter(MongoDbUtils mdbUtils, PendingUsage usage, String error) {
+		int attempts = usage.recordFailure();
+		if (attempts < maxAttempts) {
+			logger.error("Usage of snetId : " + usage.getSnetId() + " rejected " + attempts
+						 + " times, retrying in next flush, error : " + error);
+			retry(Collections.singletonList(usage));
+			return;
+		}
+		long started = Metrics.start();
+		try {
+			UsageDocuments.getDeadLettersCollection(mdbUtils).insert(usage.deadLetter(error));
+			settle(usage);
+			deadLetterCount.incrementAndGet();
+			logger.error("Usage of snetId : " + usage.getSnetId() + " rejected " + attempts
+						 + " times, moved to the dead letters, error : " + error);
+		} catch (Exception e) {
+			logger.error("Exception in dead-lettering usage of snetId : " + usage.getSnetId()
+						 + ", retrying in next flush : ", e);
+			retry(Collections.singletonList(usage));
+		} finally {
+			Metrics.stop(Metrics.MONGO_INSERT, started);
+		}
+	}
+	
+	/**
+	 * Increments the totals of the subscriptions by the usage written to their
+	 * projects. Increments rejected on the _id of a totals document are retried
+	 * one by one, see {@link UsageDocuments#incrementTotals}. Any other failed
+	 * increment is retried by the next flushes, and after USAGE_WRITE_BEHIND_MAX_ATTEMPTS
+	 * of them it is moved to the dead letters, to be applied by hand.
+	 * @return the increments to retry, which hold the journal checkpoint
+	 */
+	private List<PendingTotals> writeTotals(MongoDbUtils mdbUtils, List<PendingTotals> increments) {
+		List<PendingTotals> failed = new ArrayList<PendingTotals>();
+		DBCollection totals = UsageDocuments.getTotalsCollection(mdbUtils);
+		try {
+			BulkWriteOperation bulk = totals.initializeUnorderedBulkOperation();
+			for (PendingTotals increment : increments) {
+				bulk.find(increment.usage.totalsQuery()).upsert().updateOne(increment.update);
+			}
+			long started = Metrics.start();
+			try {
+				bulk.execute();
+			} finally {
+				Metrics.stop(Metrics.MONGO_BULK_WRITE, started);
+			}
+		} catch (BulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				PendingTotals increment = increments.get(error.getIndex());
+				String message = error.getMessage();
+				if (UsageDocuments.isDuplicateKey(error.getCode())) {
+					// a concurrent insert of the totals or an increment applied already
+					try {
+						UsageDocuments.incrementTotals(totals, increment.usage.totalsQuery(), increment.update);
+						continue;
+					} catch (MongoException retryError) {
+						message = retryError.getMessage();
+					}
+				}
+				retryTotals(mdbUtils, increment, message, failed);
+			}
+		} catch (Exception e) {
+			logger.error("Exception in writing usage totals of " + increments.size() + " projects : ", e);
+			for (PendingTotals increment : increments) {
+				retryTotals(mdbUtils, increment, e.getMessage(), failed);
+			}
+		}
+		return failed;
+	}
+	
+	/**
+	 * Keeps a failed totals increment for the next flush, until it failed
+	 * USAGE_WRITE_BEHIND_MAX_ATTEMPTS times. It is then moved to the dead
+	 * letters, and kept for the next flush if that fails as well.
+	 */
+	private void retryTotals(MongoDbUtils mdbUtils, PendingTotals increment, String error,
+							 List<PendingTotals> failed) {
+		String snetId = increment.usage.getSnetId();
+		if (++increment.failedAttempts < maxAttempts) {
+			logger.error("Usage totals of snetId : " + snetId + " not incremented, retrying in next flush, error : " + error);
+			failed.add(increment);
+			return;
+		}
+		long started = Metrics.start();
+		try {
+			UsageDocuments.getDeadLettersCollection(mdbUtils).insert(
+							increment.usage.totalsDeadLetter(increment.dpuDelta, increment.failedAttempts, error));
+			deadLetterCount.incrementAndGet();
+			logger.error("Usage totals of snetId : " + snetId + " not incremented after " + increment.failedAttempts
+						 + " attempts, moved to the dead letters, error : " + error);
+		} catch (Exception e) {
+			logger.error("Exception in dead-lettering usage totals of snetId : " + snetId
+						 + ", retrying in next flush : ", e);
+			failed.add(increment);
+		} finally {
+			Metrics.stop(Metrics.MONGO_INSERT, started);
+		}
+	}
+	
+	/**
+	 * Increment of the totals of a written project, kept until it is applied
+	 */
+	private static class PendingTotals {
+		private final PendingUsage usage;
+		private final double dpuDelta;
+		private final BasicDBObject update;
+		private int failedAttempts;
+		
+		PendingTotals(PendingUsage usage, double dpuDelta) {
+			this.usage = usage;
+			this.dpuDelta = dpuDelta;
+			this.update = usage.totalsUpdate(dpuDelta);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.veda.discovery.utils;
+
+import java.util.Properties;
+
+import com.icici.seg.utils.PropertyUtil;
+
+/**
+ * Read access to config/config.properties with defaults for the
+ * optional tuning properties.
+ */
+public class ConfigUtils {
+	
+	public static String configFile = "config/config.properties";
+	public static Properties properties;
+	
+	static {
+		properties = PropertyUtil.loadSetting(configFile);
+	}
+	
+	public static String getProperty(String key, String defaultValue) {
+		if (properties == null) {
+			return defaultValue;
+		}
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+	
+	public static int getIntProperty(String key, int defaultValue) {
+		return Integer.parseInt(getProperty(key, String.valueOf(defaultValue)));
+	}
+	
+	public static long getLongProperty(String key, long defaultValue) {
+		return Long.parseLong(getProperty(key, String.valueOf(defaultValue)));
+	}
+	
+	public static double getDoubleProperty(String key, double defaultValue) {
+		return Double.parseDouble(getProperty(key, String.valueOf(defaultValue)));
+	}
+	
+	public static boolean getBooleanProperty(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(getProperty(key, String.valueOf(defaultValue)));
+	}
+}
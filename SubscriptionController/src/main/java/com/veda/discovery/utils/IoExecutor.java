@@ -0,0 +1,55 @@
+package com.veda.discovery.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking Mongo and pooler calls of the asynchronous API. The
+ * driver only has blocking calls, so they are confined to ASYNC_IO_THREADS
+ * threads; the callers are never blocked, and the work of the events in
+ * flight waits in the queue of the pool instead of holding a thread each.
+ */
+public final class IoExecutor {
+	
+	private static final String ASYNC_IO_THREADS = "ASYNC_IO_THREADS";
+	
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+					ConfigUtils.getIntProperty(ASYNC_IO_THREADS, 32), new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "async-io-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	private IoExecutor() {
+	}
+	
+	public static Executor get() {
+		return EXECUTOR;
+	}
+	
+	/**
+	 * Runs a blocking call on the pool
+	 * @return future of the result, completed exceptionally if the call throws
+	 */
+	public static <T> CompletableFuture<T> supply(final Callable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		EXECUTOR.execute(() -> {
+			try {
+				future.complete(call.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+}
@@ -1,17 +1,22 @@
 package com.veda.discovery.utils;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
+import org.apache.log4j.Logger;
+
 import com.icici.seg.utils.PropertyUtil;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.Mongo;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
 
 public class MongoDbUtils {
 	
-	private Mongo mongoClient = null;
 	private String collectionName;
 	public static String configFile = "config/mongodb.properties";
 	public static Properties properties;
@@ -23,7 +28,22 @@ public class MongoDbUtils {
 	public static final String MONGO_PORT = "MONGO_PORT";
 	public static final String MONGO_DATABASE = "MONGO_DATABASE";
 	public static final String MONGO_DATABASE_SUBSCRIPTION = "MONGO_DATABASE_SUBSCRIPTION";
+	public static final String MONGO_CONNECTIONS_PER_HOST = "MONGO_CONNECTIONS_PER_HOST";
+	public static final String MONGO_THREADS_ALLOWED_TO_BLOCK_MULTIPLIER = "MONGO_THREADS_ALLOWED_TO_BLOCK_MULTIPLIER";
+	public static final String MONGO_MAX_WAIT_TIME = "MONGO_MAX_WAIT_TIME";
+	public static final String MONGO_CONNECT_TIMEOUT = "MONGO_CONNECT_TIMEOUT";
+	public static final String MONGO_SOCKET_TIMEOUT = "MONGO_SOCKET_TIMEOUT";
+	
+	private static Logger logger = Logger.getLogger(MongoDbUtils.class);
 	
+	/**
+	 * Single pooled client shared by the whole process for both the
+	 * DISCOVERY and SUBSCRIPTION databases.
+	 */
+	private static volatile Mongo sharedClient;
+	private static boolean shutdownHookRegistered = false;
+	// tasks which still need the client, run before it is closed
+	private static final List<Runnable> shutdownTasks = new ArrayList<Runnable>();
 	
 	static{
 		properties = PropertyUtil.loadSetting(configFile);
@@ -32,7 +52,7 @@ public class MongoDbUtils {
 		database = properties.getProperty(MONGO_DATABASE);
 		subscriptionDatabase = properties.getProperty(MONGO_DATABASE_SUBSCRIPTION);
 	}
-
+	
 	public String retrieveCollectionName(String collectionName) {
 		if (properties != null) {
 			this.collectionName = properties.getProperty(collectionName);
@@ -41,16 +61,14 @@ public class MongoDbUtils {
 		}
 		return this.collectionName;
 	}
-
+	
 	public DB getMongoDbConnection() {
 		DB mdb = null;
 		if (properties != null) {
-			try {
-				mongoClient = new MongoClient(server, port);
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
+			Mongo mongoClient = getSharedClient();
+			if (mongoClient != null) {
+				mdb = mongoClient.getDB(database);
 			}
-			mdb = mongoClient.getDB(database);
 		} else {
 			System.out.println("File Not Found: mongodb.properties");
 		}
@@ -60,18 +78,130 @@ public class MongoDbUtils {
 	public DB getSubscriptionDbConnection() {
 		DB mdb = null;
 		if (properties != null) {
-			try {
-				mongoClient = new MongoClient(server, port);
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
+			Mongo mongoClient = getSharedClient();
+			if (mongoClient != null) {
+				mdb = mongoClient.getDB(subscriptionDatabase);
 			}
-			mdb = mongoClient.getDB(subscriptionDatabase);
 		} else {
 			System.out.println("File Not Found: mongodb.properties");
 		}
 		return mdb;
 	}
 	
+	/**
+	 * Returns the process-wide client, creating it and its connection pool
+	 * on first use. The pool is sized from mongodb.properties.
+	 */
+	private static Mongo getSharedClient() {
+		Mongo mongoClient = sharedClient;
+		if (mongoClient == null) {
+			synchronized (MongoDbUtils.class) {
+				mongoClient = sharedClient;
+				if (mongoClient == null) {
+					try {
+						mongoClient = new MongoClient(new ServerAddress(server, port),
+													  buildClientOptions());
+						sharedClient = mongoClient;
+						registerShutdownHook();
+					} catch (UnknownHostException e) {
+						logger.error("Cannot connect to Mongo server " + server + ":" + port + " : ", e);
+					}
+				}
+			}
+		}
+		return mongoClient;
+	}
+	
+	/**
+	 * Builds the pool options, falling back to the driver defaults
+	 * for the properties which are not configured.
+	 */
+	private static MongoClientOptions buildClientOptions() {
+		MongoClientOptions.Builder builder = MongoClientOptions.builder();
+		builder.description("SubscriptionController");
+		builder.connectionsPerHost(getIntProperty(MONGO_CONNECTIONS_PER_HOST, 100));
+		builder.threadsAllowedToBlockForConnectionMultiplier(
+						getIntProperty(MONGO_THREADS_ALLOWED_TO_BLOCK_MULTIPLIER, 5));
+		builder.maxWaitTime(getIntProperty(MONGO_MAX_WAIT_TIME, 120000));
+		builder.connectTimeout(getIntProperty(MONGO_CONNECT_TIMEOUT, 10000));
+		builder.socketTimeout(getIntProperty(MONGO_SOCKET_TIMEOUT, 0));
+		builder.socketKeepAlive(true);
+		return builder.build();
+	}
+	
+	private static int getIntProperty(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.trim());
+	}
+	
+	private static void registerShutdownHook() {
+		synchronized (MongoDbUtils.class) {
+			if (!shutdownHookRegistered) {
+				Runtime.getRuntime().addShutdownHook(new Thread("mongo-client-shutdown") {
+					@Override
+					public void run() {
+						runShutdownTasks();
+						shutdown();
+					}
+				});
+				shutdownHookRegistered = true;
+			}
+		}
+	}
+	
+	/**
+	 * Registers a task to run on JVM shutdown before the shared client is
+	 * closed, i.e to drain buffered writes. Tasks run in reverse order of
+	 * registration.
+	 */
+	public static void addShutdownTask(Runnable task) {
+		synchronized (MongoDbUtils.class) {
+			shutdownTasks.add(task);
+		}
+		registerShutdownHook();
+	}
+	
+	private static void runShutdownTasks() {
+		List<Runnable> tasks;
+		synchronized (MongoDbUtils.class) {
+			tasks = new ArrayList<Runnable>(shutdownTasks);
+			shutdownTasks.clear();
+		}
+		for (int i = tasks.size() - 1; i >= 0; i--) {
+			try {
+				tasks.get(i).run();
+			} catch (Exception e) {
+				logger.error("Exception in shutdown task : ", e);
+			}
+		}
+	}
+	
+	/**
+	 * Closes the shared client and its connection pool. A later call to
+	 * one of the connection methods opens a new client.
+	 */
+	public static void shutdown() {
+		synchronized (MongoDbUtils.class) {
+			if (sharedClient != null) {
+				sharedClient.close();
+				sharedClient = null;
+			}
+		}
+	}
+	
+	/**
+	 * Replaces the shared client, i.e with an in-process stand-in when the
+	 * data-access paths are benchmarked. The replaced client is not closed.
+	 */
+	public static void setSharedClient(Mongo mongoClient) {
+		synchronized (MongoDbUtils.class) {
+			sharedClient = mongoClient;
+		}
+	}
+	
 	/**
 	 * Converts any data type to String.
 	 */
@@ -86,9 +216,11 @@ public class MongoDbUtils {
 		return "";
 	}
 	
+	/**
+	 * Connections are now borrowed from the shared pool, so there is
+	 * nothing to close per caller. Use {@link #shutdown()} to release the pool.
+	 */
+	@Deprecated
 	public void closeMongoConnection(){
-		if(mongoClient != null){
-			mongoClient.close();
-		}
 	}
 }
@@ -0,0 +1,125 @@
+package com.veda.discovery.handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class SubscriptionSweeperTest extends TestCase {
+	
+	public void testEveryClientIsCheckedOnce() throws Exception {
+		final Set<String> seen = ConcurrentHashMap.newKeySet();
+		final AtomicInteger calls = new AtomicInteger();
+		SweepReport report = new SubscriptionSweeper(4, "FIXED", 5000).sweep(clientIds(100),
+						new SubscriptionSweeper.ClientCheck() {
+			@Override
+			public boolean check(String clientId) {
+				calls.incrementAndGet();
+				seen.add(clientId);
+				return clientId.endsWith("0");
+			}
+		});
+		assertEquals(100, calls.get());
+		assertEquals(100, seen.size());
+		assertEquals(100, report.getClientsChecked());
+		assertEquals(10, report.getClientsStopped());
+		assertEquals(0, report.getClientsFailed());
+	}
+	
+	public void testNullIdsAreSkipped() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		SweepReport report = new SubscriptionSweeper(2, "FIXED", 5000).sweep(
+						Arrays.asList("client-1", null, "client-2"), new SubscriptionSweeper.ClientCheck() {
+			@Override
+			public boolean check(String clientId) {
+				calls.incrementAndGet();
+				return false;
+			}
+		});
+		assertEquals(2, calls.get());
+		assertEquals(2, report.getClientsChecked());
+	}
+	
+	public void testFailedCheckDoesNotAffectTheOthers() throws Exception {
+		SweepReport report = new SubscriptionSweeper(3, "FIXED", 5000).sweep(clientIds(30),
+						new SubscriptionSweeper.ClientCheck() {
+			@Override
+			public boolean check(String clientId) throws Exception {
+				if (clientId.endsWith("5")) {
+					throw new Exception("pollers not stopped");
+				}
+				return false;
+			}
+		});
+		assertEquals(27, report.getClientsChecked());
+		assertEquals(3, report.getClientsFailed());
+		assertEquals(0, report.getClientsTimedOut());
+	}
+	
+	public void testParallelismIsNeverExceeded() throws Exception {
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		new SubscriptionSweeper(3, "FIXED", 5000).sweep(clientIds(30), new SubscriptionSweeper.ClientCheck() {
+			@Override
+			public boolean check(String clientId) throws Exception {
+				int now = running.incrementAndGet();
+				maxRunning.accumulateAndGet(now, Math::max);
+				Thread.sleep(5);
+				running.decrementAndGet();
+				return false;
+			}
+		});
+		assertTrue("ran " + maxRunning.get() + " checks at a time", maxRunning.get() <= 3);
+	}
+	
+	public void testSlowCheckTimesOutAndIsInterrupted() throws Exception {
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		SweepReport report = new SubscriptionSweeper(2, "FIXED", 100).sweep(
+						Arrays.asList("slow", "fast"), new SubscriptionSweeper.ClientCheck() {
+			@Override
+			public boolean check(String clientId) throws Exception {
+				if (clientId.equals("slow")) {
+					try {
+						Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+					} catch (InterruptedException e) {
+						interrupted.countDown();
+						throw e;
+					}
+				}
+				return true;
+			}
+		});
+		assertEquals(0, interrupted.getCount());
+		assertEquals(1, report.getClientsChecked());
+		assertEquals(1, report.getClientsStopped());
+		assertEquals(1, report.getClientsTimedOut());
+		// counted once, as timed out, not also as failed by its exception
+		assertEquals(1, report.getClientsFailed());
+	}
+	
+	// on virtual threads where the JVM has them, on platform threads otherwise
+	public void testVirtualThreadModeChecksEveryClient() throws Exception {
+		SweepReport report = new SubscriptionSweeper(2, "VIRTUAL", 5000).sweep(clientIds(10),
+						new SubscriptionSweeper.ClientCheck() {
+			@Override
+			public boolean check(String clientId) {
+				return false;
+			}
+		});
+		assertEquals(10, report.getClientsChecked());
+	}
+	
+	private static List<String> clientIds(int count) {
+		List<String> clientIds = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			clientIds.add("client-" + i);
+		}
+		return clientIds;
+	}
+}
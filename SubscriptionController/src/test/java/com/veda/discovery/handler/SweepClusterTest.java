@@ -0,0 +1,123 @@
+package com.veda.discovery.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.github.fakemongo.Fongo;
+import com.veda.discovery.utils.MongoDbUtils;
+
+import junit.framework.TestCase;
+
+public class SweepClusterTest extends TestCase {
+	
+	private static final int INSTANCES = 3;
+	private static final int PARTITIONS = 16;
+	private static final int CLIENTS = 2000;
+	private static final long LEASE_MILLIS = 1000;
+	private static final long HEARTBEAT_MILLIS = 200;
+	private static final long CONVERGE_MILLIS = LEASE_MILLIS + 4 * HEARTBEAT_MILLIS;
+	
+	private final List<SweepCluster> live = new ArrayList<SweepCluster>();
+	private final List<String> clientIds = new ArrayList<String>();
+	
+	@Override
+	protected void setUp() {
+		MongoDbUtils.setSharedClient(new Fongo(getName()).getMongo());
+		for (int i = 0; i < CLIENTS; i++) {
+			clientIds.add(new ObjectId().toString());
+		}
+		for (int i = 0; i < INSTANCES; i++) {
+			SweepCluster cluster = newInstance("instance-" + i);
+			cluster.start();
+			live.add(cluster);
+		}
+	}
+	
+	@Override
+	protected void tearDown() {
+		for (SweepCluster cluster : live) {
+			cluster.stop();
+		}
+		MongoDbUtils.setSharedClient(null);
+	}
+	
+	public void testEveryClientIsSweptByOneInstance() throws Exception {
+		assertTrue("not covered after start", awaitCoverage(live));
+		
+		SweepCluster leaving = live.remove(live.size() - 1);
+		leaving.stop();
+		assertTrue(leaving.getOwnedPartitions().isEmpty());
+		assertTrue("not covered after an instance left", awaitCoverage(live));
+	}
+	
+	public void testDeadInstanceIsFencedAndItsPartitionsTakenOver() throws Exception {
+		assertTrue("not covered after start", awaitCoverage(live));
+		
+		// joins, takes its share, then stops heartbeating without giving it back
+		SweepCluster dead = newInstance("dead");
+		List<SweepCluster> withDead = new ArrayList<SweepCluster>(live);
+		withDead.add(dead);
+		long deadline = System.currentTimeMillis() + CONVERGE_MILLIS;
+		while (dead.getOwnedPartitions().isEmpty() && System.currentTimeMillis() < deadline) {
+			dead.heartbeat();
+			Thread.sleep(HEARTBEAT_MILLIS);
+		}
+		assertFalse("joining instance got no partitions", dead.getOwnedPartitions().isEmpty());
+		assertTrue("a client is owned twice", noOverlap(withDead));
+		String deadClient = null;
+		for (String clientId : clientIds) {
+			if (dead.owns(clientId)) {
+				deadClient = clientId;
+				break;
+			}
+		}
+		assertNotNull(deadClient);
+		assertTrue(dead.fence(deadClient));
+		
+		assertTrue("not covered after an instance died", awaitCoverage(live));
+		assertFalse("dead instance passed the fence", dead.fence(deadClient));
+	}
+	
+	private static SweepCluster newInstance(String instanceId) {
+		return new SweepCluster(instanceId, PARTITIONS, LEASE_MILLIS, HEARTBEAT_MILLIS);
+	}
+	
+	/**
+	 * Waits till every client is owned by exactly one of the instances
+	 * @return false if a client is owned twice or the instances do not cover the clients in time
+	 */
+	private boolean awaitCoverage(List<SweepCluster> instances) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + CONVERGE_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			if (!noOverlap(instances)) {
+				return false;
+			}
+			int covered = 0;
+			for (SweepCluster cluster : instances) {
+				covered += cluster.filterOwned(clientIds).size();
+			}
+			if (covered == clientIds.size()) {
+				return true;
+			}
+			Thread.sleep(HEARTBEAT_MILLIS / 4);
+		}
+		return false;
+	}
+	
+	private boolean noOverlap(List<SweepCluster> instances) {
+		for (String clientId : clientIds) {
+			int owners = 0;
+			for (SweepCluster cluster : instances) {
+				if (cluster.owns(clientId)) {
+					owners++;
+				}
+			}
+			if (owners > 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
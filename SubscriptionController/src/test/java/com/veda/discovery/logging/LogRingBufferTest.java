@@ -0,0 +1,133 @@
+package com.veda.discovery.logging;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import junit.framework.TestCase;
+
+public class LogRingBufferTest extends TestCase {
+	
+	private Logger logger;
+	private RecordingAppender appender;
+	private LogRingBuffer ring;
+	
+	@Override
+	protected void setUp() {
+		logger = Logger.getLogger(LogRingBufferTest.class.getName() + "." + getName());
+		logger.setAdditivity(false);
+		logger.setLevel(Level.DEBUG);
+		appender = new RecordingAppender();
+		logger.addAppender(appender);
+	}
+	
+	@Override
+	protected void tearDown() {
+		if (ring != null) {
+			ring.stop();
+		}
+		logger.removeAllAppenders();
+	}
+	
+	public void testEventsAreWrittenInOrderWithTheirArguments() {
+		ring = new LogRingBuffer(16);
+		for (int i = 0; i < 10; i++) {
+			publish(Level.INFO, "event {} of {}", i, 10, null);
+		}
+		ring.drain(5000);
+		assertEquals(10, appender.events.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals("event " + i + " of 10", appender.events.get(i).getRenderedMessage());
+			assertEquals(Level.INFO, appender.events.get(i).getLevel());
+		}
+		assertEquals(0, ring.getPendingCount());
+		assertEquals(0, ring.getDroppedCount());
+	}
+	
+	public void testThrowableAndCallerThreadAreKept() {
+		ring = new LogRingBuffer(16);
+		Exception failure = new IllegalStateException("failed");
+		publish(Level.ERROR, "Exception in {}", "write", null, failure);
+		ring.drain(5000);
+		LoggingEvent event = appender.events.get(0);
+		assertEquals("Exception in write", event.getRenderedMessage());
+		assertSame(failure, event.getThrowableInformation().getThrowable());
+		assertEquals(Thread.currentThread().getName(), event.getThreadName());
+	}
+	
+	public void testFullRingDropsInsteadOfBlocking() throws Exception {
+		appender.blockUntil = new CountDownLatch(1);
+		// rounded up to 4 slots
+		ring = new LogRingBuffer(4);
+		publish(Level.INFO, "first", null, null, null);
+		assertTrue("writer did not take the first event", appender.appending.await(5, TimeUnit.SECONDS));
+		// the slot of the first event is held until the appender returns
+		for (int i = 0; i < 3; i++) {
+			publish(Level.INFO, "queued", null, null, null);
+		}
+		assertEquals(-1, ring.claim());
+		assertEquals(-1, ring.claim());
+		assertEquals(2, ring.getDroppedCount());
+		appender.blockUntil.countDown();
+		ring.drain(5000);
+		assertEquals(4, appender.events.size());
+		assertEquals(0, ring.getPendingCount());
+	}
+	
+	public void testFailingAppenderDoesNotStopTheWriter() {
+		appender.failOn = "bad";
+		ring = new LogRingBuffer(16);
+		publish(Level.INFO, "bad", null, null, null);
+		publish(Level.INFO, "good", null, null, null);
+		ring.drain(5000);
+		assertEquals(1, appender.events.size());
+		assertEquals("good", appender.events.get(0).getRenderedMessage());
+		assertEquals(0, ring.getPendingCount());
+	}
+	
+	private void publish(Level level, String format, Object arg0, Object arg1, Throwable throwable) {
+		long sequence = ring.claim();
+		assertTrue("ring is full", sequence >= 0);
+		int argCount = arg0 == null ? 0 : (arg1 == null ? 1 : 2);
+		ring.slot(sequence).set(logger, level, format, argCount, arg0, arg1, null, throwable, 0);
+		ring.publish(sequence);
+	}
+	
+	private static class RecordingAppender extends AppenderSkeleton {
+		private final List<LoggingEvent> events = new CopyOnWriteArrayList<LoggingEvent>();
+		private final CountDownLatch appending = new CountDownLatch(1);
+		private volatile CountDownLatch blockUntil;
+		private volatile String failOn;
+		
+		@Override
+		protected void append(LoggingEvent event) {
+			appending.countDown();
+			if (blockUntil != null) {
+				try {
+					blockUntil.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if (event.getRenderedMessage().equals(failOn)) {
+				throw new IllegalStateException("appender failed");
+			}
+			events.add(event);
+		}
+		
+		@Override
+		public void close() {
+		}
+		
+		@Override
+		public boolean requiresLayout() {
+			return false;
+		}
+	}
+}
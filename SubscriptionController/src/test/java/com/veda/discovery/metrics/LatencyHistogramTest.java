@@ -0,0 +1,87 @@
+package com.veda.discovery.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+	
+	public void testEmptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMicros(0.99));
+		assertEquals(0.0, histogram.getMeanMicros(), 0.0);
+	}
+	
+	public void testSmallValuesAreExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int micros = 0; micros < 4; micros++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+		}
+		assertEquals(1, histogram.getPercentileMicros(0.50));
+		assertEquals(3, histogram.getPercentileMicros(1.0));
+	}
+	
+	public void testPercentilesWithinBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int micros = 1; micros <= 1000; micros++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMaxMicros());
+		assertEquals(500.5, histogram.getMeanMicros(), 0.001);
+		assertWithinPrecision(500, histogram.getPercentileMicros(0.50));
+		assertWithinPrecision(990, histogram.getPercentileMicros(0.99));
+		// capped by the largest value recorded
+		assertEquals(1000, histogram.getPercentileMicros(1.0));
+	}
+	
+	public void testLatenciesOverTheRangeGoToTheLastBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		long micros = 1L << 45;
+		histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+		assertEquals(micros, histogram.getMaxMicros());
+		assertEquals(micros, histogram.getPercentileMicros(0.99));
+	}
+	
+	public void testConcurrentRecordsAreAllCounted() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						histogram.record(TimeUnit.MICROSECONDS.toNanos(i % 100));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, histogram.getCount());
+		assertEquals(99, histogram.getMaxMicros());
+	}
+	
+	public void testCollectNamesTheOperation() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(2));
+		Map<String, Number> metrics = new HashMap<String, Number>();
+		histogram.collect("mongo.find", metrics);
+		assertEquals(1L, metrics.get("mongo.find.count"));
+		assertEquals(2000L, metrics.get("mongo.find.max_us"));
+		assertTrue(metrics.containsKey("mongo.find.p99_us"));
+	}
+	
+	/**
+	 * The percentile is the upper bound of its bucket, at most a quarter above the value
+	 */
+	private static void assertWithinPrecision(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual,
+				   actual >= expected && actual <= expected + expected / 4);
+	}
+}
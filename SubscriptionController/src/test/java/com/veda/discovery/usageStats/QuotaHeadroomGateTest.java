@@ -0,0 +1,83 @@
+package com.veda.discovery.usageStats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class QuotaHeadroomGateTest extends TestCase {
+	
+	private static final long MAX_INTERVAL_SECONDS = 60;
+	
+	private QuotaHeadroomGate gate;
+	
+	@Override
+	protected void setUp() {
+		gate = new QuotaHeadroomGate(0.1, MAX_INTERVAL_SECONDS);
+	}
+	
+	public void testEndedCheckStopsAndForgetsClient() throws Exception {
+		final AtomicInteger checks = new AtomicInteger();
+		QuotaHeadroomGate.SubscriptionCheck ended = new QuotaHeadroomGate.SubscriptionCheck() {
+			@Override
+			public boolean check(String clientId) {
+				checks.incrementAndGet();
+				return true;
+			}
+		};
+		assertTrue(gate.enforce("client-1", "project-1", 10, 1.5, ended));
+		assertEquals(1, checks.get());
+		assertEquals(0, gate.getTrackedCount());
+		// no allowance is opened for a stopped client, its next event is checked again
+		assertTrue(gate.enforce("client-1", "project-1", 10, 2.0, ended));
+		assertEquals(2, checks.get());
+		assertEquals(2, gate.getCheckedCount());
+		assertEquals(0, gate.getSkippedCount());
+	}
+	
+	public void testResetDropsProjectDpu() throws Exception {
+		trackFailedCheck("client-1");
+		assertEquals(1, gate.getTrackedCount());
+		gate.reset("client-1");
+		assertEquals(0, gate.getTrackedCount());
+	}
+	
+	public void testIdleClientsAreEvictedOncePerInterval() throws Exception {
+		long start = System.currentTimeMillis();
+		trackFailedCheck("client-1");
+		trackFailedCheck("client-2");
+		assertEquals(2, gate.getTrackedCount());
+		long interval = TimeUnit.SECONDS.toMillis(MAX_INTERVAL_SECONDS);
+		// not due yet, the first event scheduled the next eviction one interval ahead
+		gate.evictIdle(start + interval / 2);
+		assertEquals(2, gate.getTrackedCount());
+		gate.evictIdle(start + 3 * interval);
+		assertEquals(0, gate.getTrackedCount());
+	}
+	
+	public void testActiveClientsAreKept() throws Exception {
+		long start = System.currentTimeMillis();
+		trackFailedCheck("client-1");
+		// the eviction is due, but the client was seen within the interval
+		gate.evictIdle(start + TimeUnit.SECONDS.toMillis(MAX_INTERVAL_SECONDS));
+		assertEquals(1, gate.getTrackedCount());
+	}
+	
+	/**
+	 * Records the dpu of a project through an event whose check fails, which
+	 * keeps the client tracked without opening an allowance
+	 */
+	private void trackFailedCheck(String clientId) {
+		try {
+			gate.enforce(clientId, "project-1", 10, 1.5, new QuotaHeadroomGate.SubscriptionCheck() {
+				@Override
+				public boolean check(String clientId) throws Exception {
+					throw new Exception("subscription could not be read");
+				}
+			});
+			fail("the failed check should be thrown");
+		} catch (Exception e) {
+			assertEquals("subscription could not be read", e.getMessage());
+		}
+	}
+}
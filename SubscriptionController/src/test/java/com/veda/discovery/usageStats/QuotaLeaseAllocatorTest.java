@@ -0,0 +1,166 @@
+package com.veda.discovery.usageStats;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.DBCollection;
+import com.veda.discovery.commons.SubscriptionSnapshot;
+
+import junit.framework.TestCase;
+
+public class QuotaLeaseAllocatorTest extends TestCase {
+	
+	private static final String CLIENT_ID = "52c7aa334c31b4e1ce6f93d9";
+	private static final String SUBSCRIPTION_ID = "52a728abc07f8ad68acedcdd";
+	private static final long LEASE_MILLIS = 50;
+	private static final int INSTANCES = 3;
+	
+	private DBCollection leases;
+	
+	@Override
+	protected void setUp() {
+		leases = new Fongo(getName()).getDB("quota_lease_test").getCollection("quota_leases");
+	}
+	
+	public void testRenewedLeaseIsAFractionOfWhatIsLeft() {
+		LocalPooler pooler = new LocalPooler(1000, 500.0);
+		QuotaLeaseAllocator allocator = new QuotaLeaseAllocator(pooler, leases, 0.1, 60000);
+		QuotaLeaseAllocator.Lease lease = allocator.grant(CLIENT_ID, "poller");
+		assertFalse(lease.isEmpty());
+		assertEquals(SUBSCRIPTION_ID, lease.getSubscriptionId());
+		assertTrue(lease.getSentences() <= 100);
+		assertTrue(lease.getCredits() <= 50.0);
+		
+		pooler.record(lease.getSentences(), lease.getCredits());
+		QuotaLeaseAllocator.Lease renewed = allocator.renew(CLIENT_ID, "poller", lease.getLeaseId(),
+															 lease.getSentences(), lease.getCredits());
+		assertFalse(renewed.isEmpty());
+		assertTrue(renewed.getSentences() <= (1000 - pooler.getSentences()) / 10 + 1);
+		assertEquals(1, allocator.getActiveCount());
+	}
+	
+	public void testExhaustedQuotaGrantsAnEmptyLease() {
+		LocalPooler pooler = new LocalPooler(1000, 500.0);
+		pooler.record(1000, 500.0);
+		QuotaLeaseAllocator allocator = new QuotaLeaseAllocator(pooler, leases, 0.1, 60000);
+		assertTrue(allocator.grant(CLIENT_ID, "poller").isEmpty());
+	}
+	
+	/**
+	 * Pollers released together use their leases up in random steps and renew
+	 * them, some of them drop their lease without a word to have it reclaimed,
+	 * until every poller is handed an empty lease. The pollers renew through
+	 * several allocators sharing the leases collection, and one of them is
+	 * replaced halfway, like an instance restarting.
+	 */
+	public void testConcurrentPollersStayWithinTheQuota() throws Exception {
+		int pollers = 16;
+		final int totalSentences = 20000;
+		final double totalCredits = totalSentences / 2.0;
+		final LocalPooler pooler = new LocalPooler(totalSentences, totalCredits);
+		final QuotaLeaseAllocator[] allocators = new QuotaLeaseAllocator[INSTANCES];
+		for (int i = 0; i < INSTANCES; i++) {
+			allocators[i] = new QuotaLeaseAllocator(pooler, leases, 0.1, LEASE_MILLIS);
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(pollers);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int p = 0; p < pollers; p++) {
+			final String holderId = "poller-" + p;
+			final Random random = new Random(p);
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					long renewals = 0;
+					QuotaLeaseAllocator.Lease lease = allocators[random.nextInt(INSTANCES)].grant(CLIENT_ID, holderId);
+					while (!lease.isEmpty()) {
+						long usedSentences = 0;
+						double usedCredits = 0.0;
+						// the poller stops at the edge of its lease, like a poller enforcing it locally
+						while (usedSentences < lease.getSentences() && usedCredits < lease.getCredits()
+								&& random.nextInt(20) != 0) {
+							long sentences = Math.min(1 + random.nextInt(50), lease.getSentences() - usedSentences);
+							double credits = Math.min(sentences / 2.0, lease.getCredits() - usedCredits);
+							pooler.record(sentences, credits);
+							usedSentences += sentences;
+							usedCredits += credits;
+						}
+						if (random.nextInt(10) == 0) {
+							// the poller goes away, its lease is reclaimed once it expires
+							Thread.sleep(LEASE_MILLIS);
+							lease = allocators[random.nextInt(INSTANCES)].grant(CLIENT_ID, holderId);
+						} else {
+							lease = allocators[random.nextInt(INSTANCES)].renew(CLIENT_ID, holderId, lease.getLeaseId(),
+																				  usedSentences, usedCredits);
+						}
+						renewals++;
+						if (holderId.equals("poller-0") && renewals == 20) {
+							// an instance restarts, its leases stay in the collection
+							allocators[0] = new QuotaLeaseAllocator(pooler, leases, 0.1, LEASE_MILLIS);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Void> result : results) {
+			result.get(2, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+		
+		assertTrue(pooler.getSentences() + " of " + totalSentences, pooler.getSentences() <= totalSentences);
+		assertTrue(pooler.getCredits() + " of " + totalCredits, pooler.getCredits() <= totalCredits + 1e-6);
+		assertTrue("quota not used up", pooler.getSentences() > totalSentences * 0.99
+										|| pooler.getCredits() > totalCredits * 0.99);
+	}
+	
+	/**
+	 * Stand-in for the pooler and the usage documents : one active subscription
+	 * whose usage is recorded as the pollers send it
+	 */
+	private static class LocalPooler implements QuotaLeaseAllocator.QuotaSource {
+		private final SubscriptionSnapshot subscription;
+		private long sentences;
+		private double credits;
+		
+		LocalPooler(int totalSentences, double totalCredits) {
+			this.subscription = new SubscriptionSnapshot(CLIENT_ID, SUBSCRIPTION_ID, "TEST_PLAN",
+							new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)),
+							totalSentences, totalCredits, true);
+		}
+		
+		synchronized void record(long sentences, double credits) {
+			this.sentences += sentences;
+			this.credits += credits;
+		}
+		
+		synchronized long getSentences() {
+			return sentences;
+		}
+		
+		synchronized double getCredits() {
+			return credits;
+		}
+		
+		@Override
+		public SubscriptionSnapshot getSubscription(String clientId) {
+			return subscription;
+		}
+		
+		@Override
+		public synchronized QuotaLedger.Usage getUsage(String clientId, String subscriptionId) {
+			return new QuotaLedger.Usage(sentences, credits);
+		}
+	}
+}
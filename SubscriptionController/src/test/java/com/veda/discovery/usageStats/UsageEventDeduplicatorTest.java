@@ -0,0 +1,51 @@
+package com.veda.discovery.usageStats;
+
+import junit.framework.TestCase;
+
+public class UsageEventDeduplicatorTest extends TestCase {
+	
+	private static final long WINDOW_MILLIS = 60000;
+	
+	public void testRedeliveredEventIsDropped() {
+		UsageEventDeduplicator deduplicator = new UsageEventDeduplicator(WINDOW_MILLIS, 100, 1000, 0.001);
+		assertTrue(deduplicator.accept("client-1", "event-1"));
+		assertFalse(deduplicator.accept("client-1", "event-1"));
+		assertEquals(1, deduplicator.getDuplicateCount());
+	}
+	
+	public void testEventIdsAreScopedToTheClient() {
+		UsageEventDeduplicator deduplicator = new UsageEventDeduplicator(WINDOW_MILLIS, 100, 1000, 0.001);
+		assertTrue(deduplicator.accept("client-1", "event-1"));
+		assertTrue(deduplicator.accept("client-2", "event-1"));
+		assertEquals(0, deduplicator.getDuplicateCount());
+	}
+	
+	public void testReleasedEventIsAcceptedAgain() {
+		UsageEventDeduplicator deduplicator = new UsageEventDeduplicator(WINDOW_MILLIS, 100, 1000, 0.001);
+		assertTrue(deduplicator.accept("client-1", "event-1"));
+		// the write of the event failed, its retry has to go through
+		deduplicator.release("client-1", "event-1");
+		assertTrue(deduplicator.accept("client-1", "event-1"));
+		assertFalse(deduplicator.accept("client-1", "event-1"));
+	}
+	
+	public void testEvictedIdIsAcceptedAsBloomSuspect() {
+		UsageEventDeduplicator deduplicator = new UsageEventDeduplicator(WINDOW_MILLIS, 2, 1000, 0.001);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(deduplicator.accept("client-1", "event-" + i));
+		}
+		assertEquals(2, deduplicator.getRecentCount());
+		// pushed out of the exact ids, found only by the bloom filter
+		assertTrue(deduplicator.accept("client-1", "event-0"));
+		assertEquals(1, deduplicator.getBloomSuspectCount());
+		assertEquals(0, deduplicator.getDuplicateCount());
+	}
+	
+	public void testExpiredIdIsAcceptedAgain() throws Exception {
+		UsageEventDeduplicator deduplicator = new UsageEventDeduplicator(50, 100, 1000, 0.001);
+		assertTrue(deduplicator.accept("client-1", "event-1"));
+		Thread.sleep(100);
+		assertTrue(deduplicator.accept("client-1", "event-1"));
+		assertEquals(0, deduplicator.getDuplicateCount());
+	}
+}
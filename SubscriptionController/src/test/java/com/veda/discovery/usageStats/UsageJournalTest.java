@@ -0,0 +1,211 @@
+package com.veda.discovery.usageStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class UsageJournalTest extends TestCase {
+	
+	private static final String SUBSCRIPTION_ID = "52fc6258e4b049743727f1ed";
+	// payload length, sequence and checksum
+	private static final int RECORD_OVERHEAD = 4 + 8 + 4;
+	
+	private File directory;
+	private UsageJournal journal;
+	
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("usage-journal").toFile();
+	}
+	
+	@Override
+	protected void tearDown() {
+		if (journal != null) {
+			journal.close();
+		}
+		delete(directory);
+	}
+	
+	public void testAppendedRecordsAreReplayedInOrder() throws Exception {
+		journal = open(4096);
+		long first = journal.append("client-1", SUBSCRIPTION_ID, "plan-1", "project-1", 10, 2, 1.5);
+		long second = journal.append("client-1", SUBSCRIPTION_ID, null, "project-2", null, null, null);
+		journal.awaitCommitted(second);
+		assertEquals(1, first);
+		assertEquals(2, second);
+		journal.close();
+		
+		journal = UsageJournal.open(directory, 4096);
+		List<UsageJournal.Record> records = journal.replay();
+		assertEquals(2, records.size());
+		UsageJournal.Record record = records.get(0);
+		assertEquals(1, record.sequence);
+		assertEquals("client-1", record.clientId);
+		assertEquals(SUBSCRIPTION_ID, record.subscriptionId);
+		assertEquals("plan-1", record.planRefId);
+		assertEquals("project-1", record.snetId);
+		assertEquals(Integer.valueOf(10), record.sentencesCount);
+		assertEquals(Integer.valueOf(2), record.messagesCount);
+		assertEquals(Double.valueOf(1.5), record.dpuCount);
+		// null counts are kept as not reported
+		record = records.get(1);
+		assertEquals(2, record.sequence);
+		assertNull(record.planRefId);
+		assertNull(record.sentencesCount);
+		assertNull(record.messagesCount);
+		assertNull(record.dpuCount);
+		// the sequences go on after the replayed records
+		assertEquals(3, journal.append("client-1", SUBSCRIPTION_ID, null, "project-1", 1, 1, null));
+	}
+	
+	public void testRecordWithBadChecksumEndsTheSegment() throws Exception {
+		journal = open(4096);
+		appendRecords(3);
+		journal.close();
+		journal = null;
+		File segment = onlySegment();
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			long third = offsetOf(file, 3);
+			// flips the first payload byte of the third record
+			file.seek(third + 4 + 8);
+			int value = file.read();
+			file.seek(third + 4 + 8);
+			file.write(value ^ 0xff);
+		} finally {
+			file.close();
+		}
+		
+		journal = UsageJournal.open(directory, 4096);
+		List<UsageJournal.Record> records = journal.replay();
+		assertEquals(2, records.size());
+		assertEquals(2, records.get(1).sequence);
+		assertEquals(3, journal.append("client-1", SUBSCRIPTION_ID, null, "project-1", 1, 1, null));
+	}
+	
+	public void testTornTailIsDropped() throws Exception {
+		journal = open(4096);
+		appendRecords(3);
+		journal.close();
+		journal = null;
+		File segment = onlySegment();
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			// a crash in the middle of the third record
+			file.setLength(offsetOf(file, 3) + 4 + 8 + 3);
+		} finally {
+			file.close();
+		}
+		
+		journal = UsageJournal.open(directory, 4096);
+		List<UsageJournal.Record> records = journal.replay();
+		assertEquals(2, records.size());
+		assertEquals(1, records.get(0).sequence);
+		assertEquals(2, records.get(1).sequence);
+	}
+	
+	public void testFullSegmentsRotateAndReplayInOrder() throws Exception {
+		// room for two records a segment
+		journal = open(256);
+		appendRecords(9);
+		assertTrue(journal.getSegmentCount() > 3);
+		journal.close();
+		
+		journal = UsageJournal.open(directory, 256);
+		List<UsageJournal.Record> records = journal.replay();
+		assertEquals(9, records.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertEquals(i + 1, records.get(i).sequence);
+		}
+	}
+	
+	public void testCheckpointDeletesSegmentsAndSkipsRecordsOnReplay() throws Exception {
+		journal = open(256);
+		appendRecords(10);
+		int segments = segmentFiles().length;
+		journal.checkpoint(6);
+		assertTrue(segmentFiles().length < segments);
+		// a checkpoint never goes back
+		journal.checkpoint(3);
+		journal.close();
+		
+		journal = UsageJournal.open(directory, 256);
+		List<UsageJournal.Record> records = journal.replay();
+		assertEquals(4, records.size());
+		assertEquals(7, records.get(0).sequence);
+		assertEquals(10, records.get(3).sequence);
+		journal.checkpoint(journal.getLastSequence());
+		// only the segment the next records go to is left
+		assertEquals(1, segmentFiles().length);
+		assertEquals(1, journal.getSegmentCount());
+	}
+	
+	public void testIdIsKeptByTheDirectory() throws Exception {
+		journal = open(4096);
+		String id = journal.getId();
+		assertNotNull(id);
+		journal.close();
+		journal = UsageJournal.open(directory, 4096);
+		journal.replay();
+		assertEquals(id, journal.getId());
+		
+		File other = Files.createTempDirectory("usage-journal").toFile();
+		UsageJournal otherJournal = UsageJournal.open(other, 4096);
+		try {
+			assertFalse(id.equals(otherJournal.getId()));
+		} finally {
+			delete(other);
+		}
+	}
+	
+	private UsageJournal open(int segmentSize) throws IOException {
+		UsageJournal opened = UsageJournal.open(directory, segmentSize);
+		assertTrue(opened.replay().isEmpty());
+		return opened;
+	}
+	
+	private void appendRecords(int count) throws Exception {
+		long last = 0;
+		for (int i = 0; i < count; i++) {
+			last = journal.append("client-1", SUBSCRIPTION_ID, "plan-1", "project-" + i, i, 1, 0.5 * i);
+		}
+		journal.awaitCommitted(last);
+	}
+	
+	/**
+	 * Walks the records of a segment up to the one of a sequence
+	 * @return offset of the record
+	 */
+	private static long offsetOf(RandomAccessFile file, long sequence) throws IOException {
+		long offset = 0;
+		for (long i = 1; i < sequence; i++) {
+			file.seek(offset);
+			offset += RECORD_OVERHEAD + file.readInt();
+		}
+		return offset;
+	}
+	
+	private File onlySegment() {
+		File[] segments = segmentFiles();
+		assertEquals(1, segments.length);
+		return segments[0];
+	}
+	
+	private File[] segmentFiles() {
+		return directory.listFiles((dir, name) -> name.endsWith(".journal"));
+	}
+	
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
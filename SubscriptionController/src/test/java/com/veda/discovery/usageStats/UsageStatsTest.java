@@ -0,0 +1,143 @@
+package com.veda.discovery.usageStats;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.veda.discovery.utils.MongoDbUtils;
+
+import junit.framework.TestCase;
+
+public class UsageStatsTest extends TestCase {
+	
+	private static final String PLAN_REF_ID = "TEST_PLAN";
+	private static final int PROJECTS = 4;
+	
+	private MongoDbUtils mdbUtils;
+	private ObjectId clientId;
+	private ObjectId subscriptionId;
+	
+	@Override
+	protected void setUp() {
+		MongoDbUtils.setSharedClient(new Fongo(getName()).getMongo());
+		mdbUtils = new MongoDbUtils();
+		DB discoveryDb = mdbUtils.getMongoDbConnection();
+		DB subscriptionDb = mdbUtils.getSubscriptionDbConnection();
+		clientId = new ObjectId();
+		subscriptionId = new ObjectId();
+		discoveryDb.getCollection(mdbUtils.retrieveCollectionName("MONGO_CLIENTS"))
+						.insert(new BasicDBObject("_id", clientId));
+		subscriptionDb.getCollection(mdbUtils.retrieveCollectionName("MONGO_SUBSCRIPTIONS"))
+						.insert(new BasicDBObject("_id", subscriptionId)
+								.append("client_id", clientId)
+								.append("plan_ref_id", PLAN_REF_ID)
+								.append("end_date", new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)))
+								.append("total_sentences", Integer.MAX_VALUE)
+								.append("total_credits", 1.0e12)
+								.append("is_active", 1));
+		DBCollection projects = discoveryDb.getCollection(mdbUtils.retrieveCollectionName("MONGO_PROJECTS"));
+		for (int i = 0; i < PROJECTS; i++) {
+			projects.insert(new BasicDBObject("snet_id", snetId(i))
+								.append("client_id", clientId)
+								.append("label", "Project " + snetId(i))
+								.append("is_active", 1));
+		}
+		UsageDocuments.getProjectUsageCollection(mdbUtils).createIndex(
+						new BasicDBObject("subscription_id", 1).append("snet_id", 1),
+						new BasicDBObject("unique", true));
+	}
+	
+	@Override
+	protected void tearDown() {
+		MongoDbUtils.setSharedClient(null);
+	}
+	
+	public void testConcurrentEventsOfNewProjectsAreAllCounted() throws Exception {
+		final int threads = 8;
+		final int eventsPerThread = 200;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					UsageStats usageStats = new UsageStats();
+					start.await();
+					for (int i = 0; i < eventsPerThread; i++) {
+						// every thread starts with the first event of every project
+						usageStats.upsertStats(clientId.toString(), snetId(i % PROJECTS), 1, 1,
+											   (double) (thread * eventsPerThread + i));
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Void> result : results) {
+			result.get(1, TimeUnit.MINUTES);
+		}
+		executor.shutdown();
+		
+		long events = (long) threads * eventsPerThread;
+		List<DBObject> projects = UsageDocuments.getProjectUsageCollection(mdbUtils).find().toArray();
+		assertEquals(PROJECTS, projects.size());
+		long sentences = 0;
+		double dpu = 0.0;
+		for (DBObject project : projects) {
+			long projectSentences = ((Number) project.get("sentences_count")).longValue();
+			assertEquals(events / PROJECTS, projectSentences);
+			assertEquals("Project " + project.get("snet_id"), project.get("project_name"));
+			sentences += projectSentences;
+			dpu += ((Number) project.get("dpu")).doubleValue();
+		}
+		DBObject totals = UsageDocuments.getTotalsCollection(mdbUtils).findOne(new BasicDBObject("_id", subscriptionId));
+		assertNotNull(totals);
+		assertEquals(sentences, ((Number) totals.get("sentences_count")).longValue());
+		assertEquals(events, ((Number) totals.get("messages_count")).longValue());
+		// the totals dpu is a sum of differences, allows for the rounding of each
+		assertEquals(dpu, ((Number) totals.get("dpu")).doubleValue(), 1e-6);
+	}
+	
+	public void testRetriedWriteIsAppliedOnce() {
+		UsageStats usageStats = new UsageStats();
+		DBCollection projectUsage = UsageDocuments.getProjectUsageCollection(mdbUtils);
+		String opId = UsageDocuments.newOpId();
+		double first = usageStats.writeProject(projectUsage, clientId.toString(), PLAN_REF_ID,
+											   subscriptionId.toString(), snetId(0), null, 5, 1, 2.5, opId, null);
+		double retried = usageStats.writeProject(projectUsage, clientId.toString(), PLAN_REF_ID,
+												 subscriptionId.toString(), snetId(0), null, 5, 1, 2.5, opId, null);
+		assertEquals(2.5, first, 1e-9);
+		assertEquals(first, retried, 1e-9);
+		DBObject project = projectUsage.findOne(UsageDocuments.projectQuery(subscriptionId.toString(), snetId(0)));
+		assertEquals(5, ((Number) project.get("sentences_count")).intValue());
+		assertEquals(1, ((Number) project.get("messages_count")).intValue());
+		assertEquals("Project " + snetId(0), project.get("project_name"));
+		
+		double next = usageStats.writeProject(projectUsage, clientId.toString(), PLAN_REF_ID,
+											  subscriptionId.toString(), snetId(0), null, 3, 1, 4.0,
+											  UsageDocuments.newOpId(), null);
+		assertEquals(1.5, next, 1e-9);
+		project = projectUsage.findOne(UsageDocuments.projectQuery(subscriptionId.toString(), snetId(0)));
+		assertEquals(8, ((Number) project.get("sentences_count")).intValue());
+		assertEquals(4.0, ((Number) project.get("dpu")).doubleValue(), 1e-9);
+	}
+	
+	private static String snetId(int project) {
+		return "UPSERT-TEST-" + project;
+	}
+}
@@ -0,0 +1,26 @@
+package com.veda.discovery.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which reports the allocation
+ * rate per operation (gc.alloc.rate.norm) next to the throughput and the
+ * p50/p99 latencies of the sample-time mode.
+ *
+ * Usage : java -jar target/benchmarks.jar [JMH options], i.e
+ * java -jar target/benchmarks.jar UsageStatsBenchmark -p clients=1000
+ */
+public class BenchmarkRunner {
+	
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+							.parent(new CommandLineOptions(args))
+							.addProfiler(GCProfiler.class)
+							.build();
+		new Runner(options).run();
+	}
+}
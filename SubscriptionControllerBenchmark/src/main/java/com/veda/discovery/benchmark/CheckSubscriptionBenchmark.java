@@ -0,0 +1,76 @@
+package com.veda.discovery.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.veda.discovery.handler.CheckSubscription;
+
+/**
+ * Subscription checks of {@link CheckSubscription} for a random mix of
+ * clients, none of which is expired or exhausted.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckSubscriptionBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class Data {
+		@Param({"100", "1000"})
+		public int clients;
+		
+		public FakeMongoFixture fixture;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			fixture = new FakeMongoFixture(clients, 10);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Client {
+		private int next;
+		
+		/**
+		 * Picks the next client, spread over all the clients
+		 */
+		String next(Data data) {
+			next = (next + 7919) & Integer.MAX_VALUE;
+			return data.fixture.getClientId(next);
+		}
+	}
+	
+	@Benchmark
+	public boolean enquireSubscriptionForClient(Data data, Client client) throws Exception {
+		return new CheckSubscription().enquireSubscriptionForClient(client.next(data));
+	}
+	
+	@Benchmark
+	public boolean checkSentences(Data data, Client client) throws Exception {
+		return new CheckSubscription().checkSentences(client.next(data));
+	}
+	
+	@Benchmark
+	public boolean checkCredits(Data data, Client client) throws Exception {
+		return new CheckSubscription().checkCredits(client.next(data));
+	}
+	
+	@Benchmark
+	public boolean checkExpiryDate(Data data, Client client) throws Exception {
+		return new CheckSubscription().checkExpiryDate(client.next(data));
+	}
+}
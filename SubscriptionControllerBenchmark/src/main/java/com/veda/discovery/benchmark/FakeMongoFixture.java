@@ -0,0 +1,102 @@
+package com.veda.discovery.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.veda.discovery.usageStats.UsageDocuments;
+import com.veda.discovery.utils.MongoDbUtils;
+
+/**
+ * Replaces the shared Mongo client with an in-process Fongo instance and
+ * seeds it with clients which have an active subscription, projects and
+ * project usage documents and totals. The quotas are large enough that no benchmarked call
+ * stops a poller.
+ */
+public class FakeMongoFixture {
+	
+	public static final String PLAN_REF_ID = "BENCHMARK_PLAN";
+	
+	private final List<String> clientIds = new ArrayList<String>();
+	private final List<String> snetIds = new ArrayList<String>();
+	private final int projectsPerClient;
+	
+	/**
+	 * @param clients : no.of clients to seed
+	 * @param projectsPerClient : no.of projects with usage per client
+	 */
+	public FakeMongoFixture(int clients, int projectsPerClient) {
+		this.projectsPerClient = projectsPerClient;
+		Fongo fongo = new Fongo("benchmark");
+		MongoDbUtils.setSharedClient(fongo.getMongo());
+		MongoDbUtils mdbUtils = new MongoDbUtils();
+		DB discoveryDb = mdbUtils.getMongoDbConnection();
+		DB subscriptionDb = mdbUtils.getSubscriptionDbConnection();
+		DBCollection clientsCollection = discoveryDb.getCollection(mdbUtils.retrieveCollectionName("MONGO_CLIENTS"));
+		DBCollection projects = discoveryDb.getCollection(mdbUtils.retrieveCollectionName("MONGO_PROJECTS"));
+		DBCollection subscriptions = subscriptionDb.getCollection(mdbUtils.retrieveCollectionName("MONGO_SUBSCRIPTIONS"));
+		DBCollection projectUsage = UsageDocuments.getProjectUsageCollection(mdbUtils);
+		DBCollection usageTotals = UsageDocuments.getTotalsCollection(mdbUtils);
+		projectUsage.createIndex(new BasicDBObject("subscription_id", 1).append("snet_id", 1),
+								 new BasicDBObject("unique", true));
+		Date endDate = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(365));
+		for (int i = 0; i < clients; i++) {
+			ObjectId clientId = new ObjectId();
+			ObjectId subscriptionId = new ObjectId();
+			clientsCollection.insert(new BasicDBObject("_id", clientId));
+			subscriptions.insert(new BasicDBObject("_id", subscriptionId)
+								.append("client_id", clientId)
+								.append("plan_ref_id", PLAN_REF_ID)
+								.append("end_date", endDate)
+								.append("total_sentences", Integer.MAX_VALUE)
+								.append("total_credits", 1.0e12)
+								.append("is_active", 1));
+			for (int j = 0; j < projectsPerClient; j++) {
+				String snetId = "SNET-" + i + "-" + j;
+				projects.insert(new BasicDBObject("snet_id", snetId)
+								.append("client_id", clientId)
+								.append("label", "Project " + snetId)
+								.append("csdl_query", "interaction.content contains \"" + snetId + "\"")
+								.append("is_active", 1));
+				projectUsage.insert(new BasicDBObject("client_id", clientId)
+								.append("subscription_id", subscriptionId)
+								.append("plan_ref_id", PLAN_REF_ID)
+								.append("snet_id", snetId)
+								.append("project_name", "Project " + snetId)
+								.append("messages_count", 100)
+								.append("sentences_count", 1000)
+								.append("dpu", 1.5));
+				snetIds.add(snetId);
+			}
+			usageTotals.insert(new BasicDBObject("_id", subscriptionId)
+								.append("client_id", clientId)
+								.append("plan_ref_id", PLAN_REF_ID)
+								.append("messages_count", 100 * projectsPerClient)
+								.append("sentences_count", 1000 * projectsPerClient)
+								.append("dpu", 1.5 * projectsPerClient));
+			clientIds.add(clientId.toString());
+		}
+	}
+	
+	public int getClientCount() {
+		return clientIds.size();
+	}
+	
+	public String getClientId(int index) {
+		return clientIds.get(index % clientIds.size());
+	}
+	
+	/**
+	 * Gets a project of the client at the same index
+	 */
+	public String getSnetId(int index, int project) {
+		return snetIds.get((index % clientIds.size()) * projectsPerClient + project % projectsPerClient);
+	}
+}
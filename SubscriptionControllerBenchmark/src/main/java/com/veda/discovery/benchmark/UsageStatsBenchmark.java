@@ -0,0 +1,76 @@
+package com.veda.discovery.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.veda.discovery.usageStats.UsageStats;
+
+/**
+ * Usage event path : the subscription check and the upsert into
+ * the project usage and totals, for a random mix of clients and projects.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsageStatsBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class Data {
+		@Param({"100", "1000"})
+		public int clients;
+		
+		@Param({"10"})
+		public int projectsPerClient;
+		
+		public FakeMongoFixture fixture;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			fixture = new FakeMongoFixture(clients, projectsPerClient);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Event {
+		private int next;
+		public String clientId;
+		public String snetId;
+		
+		/**
+		 * Picks the client and project of the next event, spread over all
+		 * the clients and projects
+		 */
+		Event next(Data data) {
+			next = (next + 7919) & Integer.MAX_VALUE;
+			clientId = data.fixture.getClientId(next);
+			snetId = data.fixture.getSnetId(next, next / data.fixture.getClientCount());
+			return this;
+		}
+	}
+	
+	@Benchmark
+	public void analyzeSubscription(Data data, Event event) throws Exception {
+		event.next(data);
+		new UsageStats().analyzeSubscription(event.clientId, event.snetId, 10, 1, 2.5);
+	}
+	
+	@Benchmark
+	public void upsertStats(Data data, Event event) {
+		event.next(data);
+		new UsageStats().upsertStats(event.clientId, event.snetId, 10, 1, 2.5);
+	}
+}